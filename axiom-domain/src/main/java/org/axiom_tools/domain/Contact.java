@@ -18,6 +18,8 @@ import java.io.Serializable;
 import javax.persistence.*;
 import javax.xml.bind.annotation.*;
 
+import org.hibernate.Hibernate;
+import org.hibernate.annotations.BatchSize;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.axiom_tools.storage.Surrogated;
@@ -28,6 +30,12 @@ import org.axiom_tools.storage.SurrogatedComposite;
  */
 @Entity
 @Table(name = "CONTACT")
+@BatchSize(size = Contact.FetchBatchSize)
+@NamedEntityGraph(name = Contact.FullGraph, attributeNodes = {
+    @NamedAttributeNode("addresses"),
+    @NamedAttributeNode("phones"),
+    @NamedAttributeNode(value = "emails", subgraph = "hosts")},
+    subgraphs = @NamedSubgraph(name = "hosts", attributeNodes = @NamedAttributeNode("host")))
 @XmlRootElement(name = "Contact", namespace = "##default")
 @SuppressWarnings("unchecked")
 public class Contact extends Surrogated<Contact> implements SurrogatedComposite, Serializable {
@@ -36,6 +44,12 @@ public class Contact extends Surrogated<Contact> implements SurrogatedComposite,
     private static final Logger Log = LoggerFactory.getLogger(Contact.class);
     private static final Contact SampleContact = new Contact();
 
+    /**
+     * The count of contacts (or of their mechanism maps) loaded together when lazily fetched.
+     */
+    public static final int FetchBatchSize = 50;
+    public static final String FullGraph = "Contact.full";
+
     /**
      * Indicates a kind of contact.
      */
@@ -63,6 +77,10 @@ public class Contact extends Surrogated<Contact> implements SurrogatedComposite,
     private static final int EmailIndex = 1;
     private static final int PhoneIndex = 2;
 
+    // the kinds in declared order, and the order in which the mechanism maps are listed
+    private static final Kind[] Kinds = Kind.values();
+    private static final int[] MechanismOrder = {AddressIndex, PhoneIndex, EmailIndex};
+
     /**
      * A logger.
      *
@@ -74,37 +92,26 @@ public class Contact extends Surrogated<Contact> implements SurrogatedComposite,
     }
 
     /**
-     * The available contact mechanisms.
+     * The available contact mechanisms: addresses, then phones, then emails, each in the order of their kinds.
+     * The list is a read-only view of the mechanism maps, so no list gets copied when a contact is serialized.
      *
      * @return a ContactMechanism list
      */
     @XmlElement(name = "mechanisms")
     public List<ContactMechanism> getMechanisms() {
-        ArrayList<ContactMechanism> results = new ArrayList();
-        for (Kind addressType : addresses.keySet()) {
-            results.add(ContactMechanism.with(addressType, addresses.get(addressType)));
-        }
-
-        for (Kind phoneType : phones.keySet()) {
-            results.add(ContactMechanism.with(phoneType, phones.get(phoneType)));
-        }
-
-        for (Kind emailType : emails.keySet()) {
-            results.add(ContactMechanism.with(emailType, emails.get(emailType)));
-        }
-        return results;
+        return new MechanismView();
     }
 
     public void setMechanisms(List<ContactMechanism> mechanisms) {
         for (ContactMechanism mechanism : mechanisms) {
             if (mechanism.getMechanism() instanceof MailAddress) {
-                updateAddress(Kind.valueOf(mechanism.getType()), (MailAddress) mechanism.getMechanism());
+                updateAddress(mechanism.getKind(), (MailAddress) mechanism.getMechanism());
             }
             if (mechanism.getMechanism() instanceof EmailAddress) {
-                updateEmail(Kind.valueOf(mechanism.getType()), (EmailAddress) mechanism.getMechanism());
+                updateEmail(mechanism.getKind(), (EmailAddress) mechanism.getMechanism());
             }
             if (mechanism.getMechanism() instanceof PhoneNumber) {
-                updatePhone(Kind.valueOf(mechanism.getType()), (PhoneNumber) mechanism.getMechanism());
+                updatePhone(mechanism.getKind(), (PhoneNumber) mechanism.getMechanism());
             }
         }
     }
@@ -124,33 +131,36 @@ public class Contact extends Surrogated<Contact> implements SurrogatedComposite,
      * Any street addresses associated with this contact.
      */
     @ManyToMany(
-            fetch = FetchType.EAGER,
+            fetch = FetchType.LAZY,
             cascade = CascadeType.ALL)
+    @BatchSize(size = FetchBatchSize)
     @MapKeyEnumerated(EnumType.STRING)
     @MapKeyColumn(name = "kind", length = 10, nullable = false)
-    private final Map<Kind, MailAddress> addresses = new HashMap<>();
+    private final Map<Kind, MailAddress> addresses = new EnumMap<>(Kind.class);
 
     /**
      * Any phone numbers associated with this contact.
      */
     @OneToMany(
-            fetch = FetchType.EAGER,
+            fetch = FetchType.LAZY,
             cascade = CascadeType.ALL,
             orphanRemoval = true)
+    @BatchSize(size = FetchBatchSize)
     @MapKeyEnumerated(EnumType.STRING)
     @MapKeyColumn(name = "kind", length = 10, nullable = false)
-    private final Map<Kind, PhoneNumber> phones = new HashMap<>();
+    private final Map<Kind, PhoneNumber> phones = new EnumMap<>(Kind.class);
 
     /**
      * Any email addresses associated with this contact.
      */
     @OneToMany(
-            fetch = FetchType.EAGER,
+            fetch = FetchType.LAZY,
             cascade = CascadeType.ALL,
             orphanRemoval = true)
+    @BatchSize(size = FetchBatchSize)
     @MapKeyEnumerated(EnumType.STRING)
     @MapKeyColumn(name = "kind", length = 10, nullable = false)
-    private final Map<Kind, EmailAddress> emails = new HashMap<>();
+    private final Map<Kind, EmailAddress> emails = new EnumMap<>(Kind.class);
 
     /**
      * Counts the number of saved contacts.
@@ -161,6 +171,19 @@ public class Contact extends Surrogated<Contact> implements SurrogatedComposite,
         return (int) SampleContact.getStore().count();
     }
 
+    /**
+     * Loads the mechanisms of this contact, if they were not yet fetched.
+     * Those of other contacts in the same session are loaded in the same batches.
+     *
+     * @return this Contact
+     */
+    public Contact loadMechanisms() {
+        Hibernate.initialize(this.addresses);
+        Hibernate.initialize(this.phones);
+        Hibernate.initialize(this.emails);
+        return this;
+    }
+
     /**
      * A count of the mail addresses associated with this contact.
      *
@@ -302,16 +325,25 @@ public class Contact extends Surrogated<Contact> implements SurrogatedComposite,
     @Override
     public void describe() {
         super.describe();
-        for (Kind addressType : addresses.keySet()) {
-            addresses.get(addressType).describe(addressType);
+        for (Kind kind : Kinds) {
+            MailAddress address = this.addresses.get(kind);
+            if (address != null) {
+                address.describe(kind);
+            }
         }
 
-        for (Kind phoneType : phones.keySet()) {
-            phones.get(phoneType).describe(phoneType);
+        for (Kind kind : Kinds) {
+            PhoneNumber phone = this.phones.get(kind);
+            if (phone != null) {
+                phone.describe(kind);
+            }
         }
 
-        for (Kind emailType : emails.keySet()) {
-            emails.get(emailType).describe(emailType);
+        for (Kind kind : Kinds) {
+            EmailAddress email = this.emails.get(kind);
+            if (email != null) {
+                email.describe(kind);
+            }
         }
     }
 
@@ -339,4 +371,41 @@ public class Contact extends Surrogated<Contact> implements SurrogatedComposite,
         }
     }
 
+    /**
+     * Lists the mechanisms of this contact by walking the slots of its maps (one slot per kind), wrapping each
+     * mechanism only when it is read.
+     */
+    private final class MechanismView extends AbstractList<ContactMechanism> implements RandomAccess {
+
+        private final Object[] maps = componentMaps();
+
+        @Override
+        public int size() {
+            return countAddresses() + countPhones() + countEmails();
+        }
+
+        @Override
+        public ContactMechanism get(int index) {
+            if (index >= 0) {
+                int remaining = index;
+                for (int mapIndex : MechanismOrder) {
+                    Map<Kind, ?> map = (Map<Kind, ?>) this.maps[mapIndex];
+                    if (remaining >= map.size()) {
+                        remaining -= map.size();
+                        continue;
+                    }
+
+                    for (Kind kind : Kinds) {
+                        Object mechanism = map.get(kind);
+                        if (mechanism != null && remaining-- == 0) {
+                            return ContactMechanism.with(kind, mechanism);
+                        }
+                    }
+                }
+            }
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+
+    } // MechanismView
+
 } // Contact
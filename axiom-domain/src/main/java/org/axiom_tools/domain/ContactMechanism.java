@@ -45,6 +45,16 @@ public class ContactMechanism<MechanismType> implements Serializable {
         return type.name();
     }
 
+    /**
+     * A mechanism kind.
+     *
+     * @return a kind
+     */
+    @XmlTransient
+    public Contact.Kind getKind() {
+        return type;
+    }
+
     /**
      * A specific contact mechanism.
      *
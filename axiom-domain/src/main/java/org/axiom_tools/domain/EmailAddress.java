@@ -22,16 +22,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.axiom_tools.storage.Hashed;
+import org.axiom_tools.storage.SurrogatedComposite;
+import org.axiom_tools.storage.SurrogatedItem;
 
 /**
- * Contains an email address.
+ * Contains an email address. Its host is stored once in a shared host table, and referenced by key.
  */
 @Entity
 @Table(name = "email_address", indexes = {
     @Index(name = "ix_email_hash", columnList = "hash_key")})
 @XmlRootElement(name = "EmailAddress", namespace = "##default")
 @SuppressWarnings("unchecked")
-public class EmailAddress extends Hashed<EmailAddress> implements Serializable {
+public class EmailAddress extends Hashed<EmailAddress> implements SurrogatedComposite, Serializable {
 
     private static final long serialVersionUID = 1001001L;
     private static final Logger Log = LoggerFactory.getLogger(EmailAddress.class);
@@ -68,9 +70,7 @@ public class EmailAddress extends Hashed<EmailAddress> implements Serializable {
         }
 
         EmailAddress result = new EmailAddress();
-        String[] parts = emailAddress.split(AT);
-        result.account = parts[0];
-        result.hostName = parts[1];
+        result.setFormattedAddress(emailAddress);
         return result;
     }
 
@@ -84,8 +84,15 @@ public class EmailAddress extends Hashed<EmailAddress> implements Serializable {
     @Column(name = "account", nullable = false, length = 30)
     private String account = Empty;
 
-    @Column(name = "hostname", nullable = false, length = 30)
-    private String hostName = Empty;
+    @ManyToOne(optional = false)
+    @JoinColumn(name = "host_id", nullable = false)
+    private EmailHost host;
+
+    /**
+     * The formatted form of this address, built once when first needed.
+     */
+    @Transient
+    private transient String formattedAddress;
 
     /**
      * A formatted email address.
@@ -105,7 +112,28 @@ public class EmailAddress extends Hashed<EmailAddress> implements Serializable {
     protected void setFormattedAddress(String emailAddress) {
         String[] parts = emailAddress.split(AT);
         this.account = parts[0];
-        this.hostName = parts[1];
+        this.host = EmailHost.named(parts[1]);
+        this.formattedAddress = null;
+    }
+
+    /**
+     * The host of this address.
+     *
+     * @return an EmailHost
+     */
+    @XmlTransient
+    public EmailHost getHost() {
+        return this.host;
+    }
+
+    /**
+     * The host name of this address.
+     *
+     * @return a host name
+     */
+    @XmlTransient
+    public String getHostName() {
+        return this.host == null ? Empty : this.host.getHostName();
     }
 
     /**
@@ -114,13 +142,33 @@ public class EmailAddress extends Hashed<EmailAddress> implements Serializable {
      * @return a formatted email address
      */
     public String formatAddress() {
-        return this.account + AT + this.hostName;
+        if (this.formattedAddress == null) {
+            this.formattedAddress = this.account + AT + getHostName();
+        }
+        return this.formattedAddress;
+    }
+
+    @Override
+    protected String[] hashSources() {
+        String[] results = {this.account, getHostName()};
+        return results;
+    }
+
+    @Override
+    public SurrogatedItem[] components() {
+        SurrogatedItem[] results = {this.host};
+        return results;
+    }
+
+    @Override
+    public void components(SurrogatedItem[] results) {
+        this.host = (EmailHost) results[0];
     }
 
     @Override
     public int hashCode() {
-        String hashSource = formatAddress();
-        return hashSource.hashCode();
+        // the formatted address caches its own hash
+        return formatAddress().hashCode();
     }
 
     @Override
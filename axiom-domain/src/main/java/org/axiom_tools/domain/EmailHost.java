@@ -0,0 +1,175 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.domain;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.*;
+import javax.xml.bind.annotation.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.axiom_tools.storage.Hashed;
+import org.axiom_tools.storage.HostStorage;
+import org.axiom_tools.storage.StorageMechanism;
+
+/**
+ * The host name of some email addresses, stored once and shared by all the addresses with that host.
+ *
+ * <h4>EmailHost Responsibilities:</h4>
+ * <ul>
+ * <li>knows a host name (e.g., gmail.com)</li>
+ * <li>interns the host names in memory, so equal host names share a single string</li>
+ * <li>counts the persons with an email address at each host</li>
+ * </ul>
+ */
+@Entity
+@Table(name = "email_host", indexes = {
+    @Index(name = "ix_email_host_hash", columnList = "hash_key"),
+    @Index(name = "ux_email_host_name", columnList = "host_name", unique = true)})
+@XmlRootElement(name = "EmailHost", namespace = "##default")
+@SuppressWarnings("unchecked")
+public class EmailHost extends Hashed<EmailHost> implements Serializable {
+
+    private static final long serialVersionUID = 1001001L;
+    private static final Logger Log = LoggerFactory.getLogger(EmailHost.class);
+
+    /**
+     * The maximum count of interned host names. Further host names are used without interning them.
+     */
+    public static final int MaximumInterned = 10000;
+    private static final ConcurrentHashMap<String, String> InternedNames = new ConcurrentHashMap<>();
+
+    @Override
+    protected Logger getLogger() {
+        return Log;
+    }
+
+    /**
+     * Counts all the email hosts saved in storage.
+     *
+     * @return a count of all saved email hosts
+     */
+    public static int count() {
+        return (int) getHostStore().count();
+    }
+
+    /**
+     * Returns a new EmailHost.
+     *
+     * @param hostName a host name
+     * @return a new EmailHost
+     */
+    public static EmailHost named(String hostName) {
+        EmailHost result = new EmailHost();
+        result.hostName = intern(hostName);
+        return result;
+    }
+
+    /**
+     * Returns the interned copy of a host name.
+     *
+     * @param hostName a host name
+     * @return an equal host name, shared if possible
+     */
+    static String intern(String hostName) {
+        String result = InternedNames.get(hostName);
+        if (result != null) {
+            return result;
+        }
+
+        if (InternedNames.size() >= MaximumInterned) {
+            return hostName;
+        }
+
+        result = InternedNames.putIfAbsent(hostName, hostName);
+        return result == null ? hostName : result;
+    }
+
+    /**
+     * Counts the persons with an email address at each host.
+     *
+     * @return the person counts, keyed by host name, largest counts first
+     */
+    public static Map<String, Long> countPersonsByHost() {
+        LinkedHashMap<String, Long> results = new LinkedHashMap<>();
+        for (Object[] row : getHostStore().countPersonsByHost()) {
+            results.put((String) row[0], (Long) row[1]);
+        }
+        return results;
+    }
+
+    /**
+     * Constructs a new EmailHost.
+     */
+    protected EmailHost() {
+        super();
+    }
+
+    @Column(name = "host_name", nullable = false, length = 30)
+    private String hostName = Empty;
+
+    /**
+     * A host name.
+     *
+     * @return a host name
+     */
+    @XmlAttribute(name = "value")
+    public String getHostName() {
+        return this.hostName;
+    }
+
+    /**
+     * Counts the persons with an email address at this host.
+     *
+     * @return a count of persons
+     */
+    public long countPersons() {
+        return getHostStore().countPersons(this.hostName);
+    }
+
+    private static HostStorage getHostStore() {
+        return StorageMechanism.getStorage(HostStorage.class);
+    }
+
+    @Override
+    protected String[] hashSources() {
+        String[] results = {this.hostName};
+        return results;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hostName.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object candidate) {
+        if (candidate == null) {
+            return false;
+        }
+        if (getClass() != candidate.getClass()) {
+            return false;
+        }
+        final EmailHost other = (EmailHost) candidate;
+        return other.hostName.equals(this.hostName);
+    }
+
+    @Override
+    public void describe() {
+        getLogger().info("key = " + getKey() + " " + this.hostName);
+    }
+
+} // EmailHost
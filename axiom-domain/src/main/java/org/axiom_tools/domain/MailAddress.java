@@ -20,7 +20,9 @@ import javax.validation.constraints.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.axiom_tools.storage.GeoHash;
 import org.axiom_tools.storage.Hashed;
+import org.axiom_tools.storage.PostalCentroids;
 import org.axiom_tools.validations.ModelValidator;
 
 /**
@@ -28,7 +30,9 @@ import org.axiom_tools.validations.ModelValidator;
  */
 @Entity
 @Table(name = "mail_address", indexes = {
-    @Index(name = "ix_address_hash", columnList = "hash_key")})
+    @Index(name = "ix_address_hash", columnList = "hash_key"),
+    @Index(name = "ix_address_postal_city", columnList = "postal_code, city"),
+    @Index(name = "ix_address_geohash", columnList = "geohash")})
 @XmlRootElement(name = "MailAddress", namespace = "##default")
 @SuppressWarnings("unchecked")
 public class MailAddress extends Hashed<MailAddress> implements Serializable {
@@ -44,6 +48,7 @@ public class MailAddress extends Hashed<MailAddress> implements Serializable {
     private static final String PostalCodeValidationPattern = "[\\w\\s]+"; // must be a code with some number(s) and/or word(s)
     //private static final String CountryCodeValidationPattern = "[A-Z]{3}"; // must be a code with 3 upper case letters
     private static final String FailedMatchMessage = "failed.match";
+    private static final String Wild = "%";
     private static final MailAddress SampleAddress = new MailAddress();
 
     /**
@@ -93,6 +98,18 @@ public class MailAddress extends Hashed<MailAddress> implements Serializable {
     @Pattern(regexp = PostalCodeValidationPattern, message = FailedMatchMessage)
     protected String postalCode;
 
+    /**
+     * The geohash of the centroid of the postal code, or null if the code was not located.
+     */
+    @Column(name = "geohash", nullable = true, length = GeoHash.Precision)
+    private String geohash;
+
+    /**
+     * The formatted form of this address, built once when first needed, and cleared by reset().
+     */
+    @Transient
+    private transient String formattedAddress;
+
     /**
      * Builds a new StreetAddress.
      *
@@ -125,6 +142,48 @@ public class MailAddress extends Hashed<MailAddress> implements Serializable {
                 .withPostalCode(postalCode);
     }
 
+    /**
+     * Returns a pattern that matches a city (normalized like a stored city), or any city if none is given.
+     *
+     * @param city a city name or LIKE pattern, or empty
+     * @return a city pattern
+     */
+    public static String cityPattern(String city) {
+        if (city == null || city.trim().isEmpty()) {
+            return Wild;
+        }
+        return city.contains(Wild) ? city.trim() : normalizeWords(city);
+    }
+
+    /**
+     * Returns a pattern that matches a postal code (normalized like a stored code), or any code if none is given.
+     *
+     * @param postalCode a postal code or LIKE pattern, or empty
+     * @return a postal code pattern
+     */
+    public static String postalPattern(String postalCode) {
+        if (postalCode == null || postalCode.trim().isEmpty()) {
+            return Wild;
+        }
+        return normalizeCode(postalCode);
+    }
+
+    /**
+     * Locates all the stored addresses by their postal codes, e.g., those saved before the centroids were loaded.
+     * Must be called inside a transaction.
+     *
+     * @return a count of the relocated addresses
+     */
+    public static int locateAll() {
+        int count = 0;
+        for (MailAddress address : SampleAddress.getStore().findAll()) {
+            if (address.locate()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     /**
      * Constructs a new StreetAddress.
      */
@@ -137,10 +196,57 @@ public class MailAddress extends Hashed<MailAddress> implements Serializable {
         this.postalCode = Empty;
     }
 
+    @Override
+    protected String[] hashSources() {
+        String[] results = {getStreet(), getOffice(), getCity(), getPostalCode()};
+        return results;
+    }
+
+    /**
+     * Locates this address before it gets inserted.
+     */
+    @PrePersist
+    protected void prepareLocation() {
+        locate();
+    }
+
+    /**
+     * Updates the geohash of this address from the centroid of its postal code.
+     *
+     * @return whether the geohash changed
+     */
+    protected boolean locate() {
+        String located = PostalCentroids.getInstance().geohash(getPostalCode());
+        if (located == null ? this.geohash == null : located.equals(this.geohash)) {
+            return false;
+        }
+        this.geohash = located;
+        return true;
+    }
+
+    /**
+     * The geohash of the centroid of the postal code of this address.
+     *
+     * @return a geohash, or null if the code was not located
+     */
+    @XmlTransient
+    public String getGeohash() {
+        return this.geohash;
+    }
+
+    /**
+     * Resets the id and hash of this address, along with its formatted form.
+     */
+    @Override
+    protected void reset() {
+        super.reset();
+        this.formattedAddress = null;
+    }
+
     @Override
     public int hashCode() {
-        String hashSource = getStreet() + getOffice() + getCity() + getPostalCode();
-        return hashSource.hashCode();
+        // the formatted address caches its own hash
+        return formatAddress().hashCode();
     }
 
     @Override
@@ -325,6 +431,13 @@ public class MailAddress extends Hashed<MailAddress> implements Serializable {
      * @return a single line description of this address
      */
     public String formatAddress() {
+        if (this.formattedAddress == null) {
+            this.formattedAddress = buildAddress();
+        }
+        return this.formattedAddress;
+    }
+
+    private String buildAddress() {
         StringBuilder builder = new StringBuilder();
         builder.append(getStreet());
 
@@ -16,6 +16,8 @@ import javax.persistence.*;
 import javax.validation.constraints.Size;
 import javax.xml.bind.annotation.*;
 
+import org.hibernate.Hibernate;
+import org.hibernate.proxy.HibernateProxy;
 import org.axiom_tools.storage.Hashed;
 import org.axiom_tools.storage.SurrogatedItem;
 import org.axiom_tools.storage.SurrogatedComposite;
@@ -32,7 +34,7 @@ public abstract class Party extends Hashed<Party> implements SurrogatedComposite
     protected String name;
 
     @ManyToOne(
-            fetch = FetchType.EAGER,
+            fetch = FetchType.LAZY,
             cascade = CascadeType.ALL,
             optional = true)
     protected Contact contact = new Contact();
@@ -57,15 +59,31 @@ public abstract class Party extends Hashed<Party> implements SurrogatedComposite
     }
 
     /**
-     * A contact.
+     * A contact. A lazily fetched contact is loaded (and unwrapped) when first needed.
      *
      * @return a contact
      */
     @XmlElement(name = "contact")
     public Contact getContact() {
+        if (this.contact instanceof HibernateProxy) {
+            this.contact = (Contact) Hibernate.unproxy(this.contact);
+        }
         return this.contact;
     }
 
+    /**
+     * Loads the contact of this party and its mechanisms, if they were not yet fetched.
+     *
+     * @param <PartyType> a party type
+     * @return this party
+     */
+    public <PartyType extends Party> PartyType loadContact() {
+        if (getContact() != null) {
+            getContact().loadMechanisms();
+        }
+        return (PartyType) this;
+    }
+
     /**
      * A contact.
      *
@@ -114,6 +132,12 @@ public abstract class Party extends Hashed<Party> implements SurrogatedComposite
         return (PartyType) this;
     }
 
+    @Override
+    protected String[] hashSources() {
+        String[] results = {getName()};
+        return results;
+    }
+
     @Override
     @XmlTransient
     public SurrogatedItem[] components() {
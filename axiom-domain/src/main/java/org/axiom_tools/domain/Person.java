@@ -13,28 +13,88 @@
 package org.axiom_tools.domain;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import javax.persistence.*;
 import javax.xml.bind.annotation.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
 
 import org.axiom_tools.codecs.ModelCodec;
+import org.axiom_tools.storage.ContentHash;
+import org.axiom_tools.storage.DuplicateFinder;
+import org.axiom_tools.storage.GeoHash;
+import org.axiom_tools.storage.KeysetPage;
+import org.axiom_tools.storage.PhoneticIndex;
 import org.axiom_tools.storage.PersonStorage;
+import org.axiom_tools.storage.PostalCentroids;
 import org.axiom_tools.storage.StorageMechanism;
+import org.axiom_tools.storage.StreamingReader;
+import org.axiom_tools.storage.TrigramIndex;
+import org.axiom_tools.validations.ModelValidator;
 
 /**
  * Identifies and describes a person.
  */
 @Entity
 @Table(name = "person", indexes = {
-    @Index(name = "ix_party_hash", columnList = "hash_key")})
+    @Index(name = "ix_party_hash", columnList = "hash_key"),
+    @Index(name = "ix_person_name", columnList = "name, id")})
+@NamedEntityGraph(name = Person.FullGraph,
+        attributeNodes = @NamedAttributeNode(value = "contact", subgraph = "mechanisms"),
+        subgraphs = {
+            @NamedSubgraph(name = "mechanisms", attributeNodes = {
+                @NamedAttributeNode("addresses"),
+                @NamedAttributeNode("phones"),
+                @NamedAttributeNode(value = "emails", subgraph = "hosts")}),
+            @NamedSubgraph(name = "hosts", attributeNodes = @NamedAttributeNode("host"))})
 @XmlRootElement(name = "Person", namespace = "##default")
 @SuppressWarnings("unchecked")
 public class Person extends Party {
 
     private static final long serialVersionUID = 1001001L;
     private static final Person SamplePerson = new Person();
+    private static final String Wild = "%";
+    private static final int MaximumInList = 500;
+
+    /**
+     * Loads a person along with its contact and all the contact mechanisms, including the hosts of its emails.
+     */
+    public static final String FullGraph = "Person.full";
+
+    /**
+     * The minimum score of a pair of duplicate persons, e.g., a shared email, or a shared phone and a similar name.
+     */
+    public static final int DuplicateThreshold = 60;
+    public static final int EmailWeight = 60;
+    public static final int PhoneWeight = 40;
+    public static final int AddressWeight = 30;
+    public static final int NameWeight = 30;
+
+    private static final String EmailBlock = "email";
+    private static final String PhoneBlock = "phone";
+    private static final String AddressBlock = "address";
+    private static final String NameBlock = "name";
+
+    /**
+     * The distinct trigrams of the person name, indexed for substring searches.
+     */
+    @ElementCollection(fetch = FetchType.LAZY)
+    @CollectionTable(name = "person_trigram", joinColumns = @JoinColumn(name = "person_id"),
+            indexes = @Index(name = "ix_person_trigram", columnList = "trigram, person_id"))
+    @Column(name = "trigram", nullable = false, length = TrigramIndex.GramLength)
+    protected Set<String> nameTrigrams = new HashSet<>();
+
+    /**
+     * The distinct phonetic codes of the words of the person name, indexed for fuzzy searches.
+     */
+    @ElementCollection(fetch = FetchType.LAZY)
+    @CollectionTable(name = "person_phonetic", joinColumns = @JoinColumn(name = "person_id"),
+            indexes = @Index(name = "ix_person_phonetic", columnList = "sound, person_id"))
+    @Column(name = "sound", nullable = false, length = PhoneticIndex.CodeLength)
+    protected Set<String> nameSounds = new HashSet<>();
 
     public static List<Person> listFromJSON(String listJSON) {
         List<Person> sampleList = new ArrayList();
@@ -49,6 +109,25 @@ public class Person extends Party {
         return ModelCodec.from(this).toJSON();
     }
 
+    /**
+     * Validates this person and its mail addresses.
+     *
+     * @return any problems detected
+     */
+    public String[] validate() {
+        ModelValidator validator = ModelValidator.getConfiguredValidator();
+        ArrayList<String> results = new ArrayList<>(Arrays.asList(validator.validate(this)));
+        if (getContact() != null) {
+            for (Contact.Kind kind : Contact.Kind.values()) {
+                MailAddress address = getContact().getAddress(kind);
+                if (address != null) {
+                    results.addAll(Arrays.asList(address.validate()));
+                }
+            }
+        }
+        return results.toArray(new String[results.size()]);
+    }
+
     @Override
     protected Logger getLogger() {
         return LoggerFactory.getLogger(getClass());
@@ -66,7 +145,8 @@ public class Person extends Party {
         if (getClass() != candidate.getClass()) {
             return false;
         }
-        return hashCode() == candidate.hashCode();
+        final Person other = (Person) candidate;
+        return other.getName().equals(getName());
     }
 
     @Override
@@ -104,6 +184,302 @@ public class Person extends Party {
         return result.findSimilar();
     }
 
+    /**
+     * Returns the Persons whose names contain some text (ignoring case), best matches first.
+     * Searches the trigram index of the names, unless the text is too short (or a LIKE pattern).
+     *
+     * @param text query text
+     * @return a ranked list of matching Persons
+     */
+    public static List<Person> search(String text) {
+        if (!TrigramIndex.searchable(text)) {
+            return like(Wild + text + Wild);
+        }
+
+        return TrigramIndex.rank(text, findKeys(findNameKeys(text)), Person::getName);
+    }
+
+    /**
+     * Returns the Persons whose names contain some text (ignoring case), and who have an address in a given city and
+     * postal code, best matches first.
+     *
+     * @param text query text
+     * @param city a city name or pattern, or empty for any city
+     * @param postalCode a postal code, or empty for any code
+     * @return a ranked list of matching located Persons
+     * @see #search(String)
+     */
+    public static List<Person> searchLocated(String text, String city, String postalCode) {
+        if (!TrigramIndex.searchable(text)) {
+            return locatedLike(Wild + text + Wild, city, postalCode);
+        }
+
+        return TrigramIndex.rank(text, findKeys(findNameKeys(text, city, postalCode)), Person::getName);
+    }
+
+    /**
+     * Returns the Persons whose names sound like a given name (e.g., "Jon Smyth" for "John Smith"), nearest first.
+     * Every word of the given name must sound like some word of a found name.
+     *
+     * @param name a name
+     * @return a list of similar sounding Persons, ranked by edit distance
+     */
+    public static List<Person> findSoundsLike(String name) {
+        Set<String> codes = PhoneticIndex.codes(name);
+        if (codes.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        List<Long> keys = StorageMechanism.getStorage(PersonStorage.class).findSoundKeys(codes, (long) codes.size());
+        return PhoneticIndex.rank(name, findKeys(keys), Person::getName);
+    }
+
+    /**
+     * Returns the Persons with an address within some distance of a postal code, nearest first. Scans the geohash
+     * index of the addresses for the few cells that cover the circle, then filters the candidates by distance.
+     *
+     * @param postalCode a postal code
+     * @param radius a distance, in kilometers
+     * @return a list of nearby Persons, or empty if the postal code was not located
+     */
+    public static List<Person> findNear(String postalCode, double radius) {
+        double[] center = PostalCentroids.getInstance().locate(normalizeCode(postalCode));
+        if (center == null) {
+            return new ArrayList<>();
+        }
+
+        PersonStorage store = StorageMechanism.getStorage(PersonStorage.class);
+        HashMap<Long, Double> distances = new HashMap<>();
+        for (String cell : GeoHash.cover(center[0], center[1], radius)) {
+            String[] range = GeoHash.range(cell);
+            for (Object[] row : store.findLocatedBetween(range[0], range[1])) {
+                double[] location = GeoHash.decode((String) row[1]);
+                double distance = GeoHash.distance(center[0], center[1], location[0], location[1]);
+                if (distance <= radius) {
+                    distances.merge((Long) row[0], distance, Math::min);
+                }
+            }
+        }
+
+        List<Person> results = findKeys(new ArrayList<>(distances.keySet()));
+        results.sort(Comparator.comparingDouble((Person person) -> distances.get(person.getKey()))
+                .thenComparing(Person::getName));
+        return results;
+    }
+
+    /**
+     * Finds the clusters of duplicate persons. Blocks the persons by the hashes of their emails, phones, and
+     * addresses, and by the sound of their names, then scores the pairs that share some blocks. Streams only keys
+     * and names, so it runs in bounded memory. Must be called inside a (read-only) transaction.
+     *
+     * @param clusters receives the (ascending) keys of each cluster of duplicate persons
+     * @return a count of the clusters
+     */
+    public static int findDuplicates(Consumer<long[]> clusters) {
+        try (DuplicateFinder finder = new DuplicateFinder(DuplicateThreshold)) {
+            return findDuplicates(finder, clusters);
+        }
+    }
+
+    /**
+     * Finds the clusters of duplicate persons with a given finder.
+     *
+     * @param finder a duplicate finder
+     * @param clusters receives the (ascending) keys of each cluster of duplicate persons
+     * @return a count of the clusters
+     */
+    public static int findDuplicates(DuplicateFinder finder, Consumer<long[]> clusters) {
+        PersonStorage store = StorageMechanism.getStorage(PersonStorage.class);
+        blockHashes(finder, store.streamEmailHashes(), EmailBlock, EmailWeight);
+        blockHashes(finder, store.streamPhoneHashes(), PhoneBlock, PhoneWeight);
+        blockHashes(finder, store.streamAddressHashes(), AddressBlock, AddressWeight);
+        try (Stream<Object[]> rows = store.streamNames()) {
+            rows.forEach(row -> {
+                String nameKey = PhoneticIndex.nameKey((String) row[1]);
+                if (!nameKey.isEmpty()) {
+                    finder.block(ContentHash.of(NameBlock, nameKey), (Long) row[0], NameWeight);
+                }
+            });
+        }
+        return finder.findClusters(clusters);
+    }
+
+    private static void blockHashes(DuplicateFinder finder, Stream<Object[]> rows, String blockType, int weight) {
+        try (Stream<Object[]> hashes = rows) {
+            hashes.forEach(row -> finder.block(
+                    ContentHash.of(blockType, String.valueOf(row[1])), (Long) row[0], weight));
+        }
+    }
+
+    private static List<Person> findKeys(List<Long> keys) {
+        PersonStorage store = StorageMechanism.getStorage(PersonStorage.class);
+        ArrayList<Person> results = new ArrayList<>(keys.size());
+        for (int index = 0; index < keys.size(); index += MaximumInList) {
+            results.addAll(store.findKeys(keys.subList(index, Math.min(keys.size(), index + MaximumInList))));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the keys of the Persons whose names have all the trigrams of some text.
+     *
+     * @param text query text
+     * @return some candidate Person keys
+     */
+    static List<Long> findNameKeys(String text) {
+        Set<String> trigrams = TrigramIndex.trigrams(text);
+        return StorageMechanism.getStorage(PersonStorage.class).findTrigramKeys(trigrams, (long) trigrams.size());
+    }
+
+    /**
+     * Returns the keys of the Persons whose names have all the trigrams of some text, and who have an address in a
+     * given city and postal code.
+     *
+     * @param text query text
+     * @param city a city name or pattern, or empty for any city
+     * @param postalCode a postal code, or empty for any code
+     * @return some candidate Person keys
+     */
+    static List<Long> findNameKeys(String text, String city, String postalCode) {
+        Set<String> trigrams = TrigramIndex.trigrams(text);
+        return StorageMechanism.getStorage(PersonStorage.class).findLocatedTrigramKeys(trigrams,
+                (long) trigrams.size(), MailAddress.cityPattern(city), MailAddress.postalPattern(postalCode));
+    }
+
+    /**
+     * Indexes the name trigrams and sounds of all the stored Persons, e.g., those saved before the index existed.
+     * Must be called inside a transaction.
+     *
+     * @return a count of the reindexed Persons
+     */
+    public static int indexAllNames() {
+        int count = 0;
+        for (Person person : StorageMechanism.getStorage(PersonStorage.class).findAll()) {
+            if (person.indexName()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Indexes the name trigrams and sounds of this person before it gets inserted or updated (e.g., renamed).
+     */
+    @PrePersist
+    @PreUpdate
+    protected void prepareNameIndex() {
+        indexName();
+    }
+
+    /**
+     * Updates the name trigrams and sounds of this person.
+     *
+     * @return whether the trigrams or sounds changed
+     */
+    protected boolean indexName() {
+        boolean trigramsChanged = replace(this.nameTrigrams, TrigramIndex.trigrams(getName()));
+        boolean soundsChanged = replace(this.nameSounds, PhoneticIndex.sounds(getName()));
+        return trigramsChanged || soundsChanged;
+    }
+
+    private static boolean replace(Set<String> indexed, Set<String> values) {
+        if (indexed.equals(values)) {
+            return false;
+        }
+
+        indexed.clear();
+        indexed.addAll(values);
+        return true;
+    }
+
+    /**
+     * Returns a stream of similar Persons, read with a forward-only cursor.
+     * The stream must be consumed and closed within a (read-only) transaction.
+     *
+     * @param text query text
+     * @return a stream of similar Persons
+     */
+    public static Stream<Person> streamLike(String text) {
+        return StreamingReader.cleared(StorageMechanism.getStorage(PersonStorage.class).streamLike(text));
+    }
+
+    /**
+     * Returns a page of similar Persons, ordered by name and key. Their contacts are loaded lazily.
+     *
+     * @param text query text
+     * @param cursor locates the page, or null for the first page
+     * @param limit a maximum count of Persons
+     * @return a page of similar Persons
+     */
+    public static KeysetPage<Person> like(String text, String cursor, int limit) {
+        PersonStorage store = StorageMechanism.getStorage(PersonStorage.class);
+        PageRequest fetch = PageRequest.of(0, limit + 1);
+        if (cursor == null || cursor.isEmpty()) {
+            return KeysetPage.of(store.findLikeFirst(text, fetch), limit, Person::seekValues);
+        }
+
+        Object[] lastValues = KeysetPage.decode(cursor, String.class, Long.class);
+        List<Person> fetched = store.findLikeAfter(text, (String) lastValues[0], (Long) lastValues[1], fetch);
+        return KeysetPage.of(fetched, limit, Person::seekValues);
+    }
+
+    /**
+     * Returns the similar Persons with an address in a given city and postal code.
+     *
+     * @param text query text
+     * @param city a city name or pattern, or empty for any city
+     * @param postalCode a postal code, or empty for any code
+     * @return a list of similar located Persons
+     */
+    public static List<Person> locatedLike(String text, String city, String postalCode) {
+        return StorageMechanism.getStorage(PersonStorage.class).findLocatedLike(
+                text, MailAddress.cityPattern(city), MailAddress.postalPattern(postalCode));
+    }
+
+    /**
+     * Returns a page of the similar Persons with an address in a given city and postal code, ordered by name and key.
+     *
+     * @param text query text
+     * @param city a city name or pattern, or empty for any city
+     * @param postalCode a postal code, or empty for any code
+     * @param cursor locates the page, or null for the first page
+     * @param limit a maximum count of Persons
+     * @return a page of similar located Persons
+     */
+    public static KeysetPage<Person> locatedLike(
+            String text, String city, String postalCode, String cursor, int limit) {
+        PersonStorage store = StorageMechanism.getStorage(PersonStorage.class);
+        String cityPattern = MailAddress.cityPattern(city);
+        String postalPattern = MailAddress.postalPattern(postalCode);
+        PageRequest fetch = PageRequest.of(0, limit + 1);
+        if (cursor == null || cursor.isEmpty()) {
+            return KeysetPage.of(store.findLocatedLikeFirst(text, cityPattern, postalPattern, fetch),
+                    limit, Person::seekValues);
+        }
+
+        Object[] lastValues = KeysetPage.decode(cursor, String.class, Long.class);
+        List<Person> fetched = store.findLocatedLikeAfter(text, cityPattern, postalPattern,
+                (String) lastValues[0], (Long) lastValues[1], fetch);
+        return KeysetPage.of(fetched, limit, Person::seekValues);
+    }
+
+    private static Object[] seekValues(Person person) {
+        return new Object[] { person.getName(), person.getKey() };
+    }
+
+    /**
+     * Loads the contacts of some persons (in batches), so that they can be used after their transaction ends.
+     *
+     * @param persons some persons
+     * @return the loaded persons
+     */
+    public static List<Person> loadContacts(List<Person> persons) {
+        for (Person person : persons) {
+            person.loadContact();
+        }
+        return persons;
+    }
+
     /**
      * Returns a new Person (intended query).
      *
@@ -0,0 +1,260 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.domain;
+
+import java.util.*;
+import javax.xml.bind.annotation.*;
+
+import org.axiom_tools.storage.KeysetPage;
+import org.axiom_tools.storage.PersonStorage;
+import org.axiom_tools.storage.StorageMechanism;
+import org.axiom_tools.storage.TrigramIndex;
+import org.springframework.data.domain.PageRequest;
+
+/**
+ * A flat, immutable summary of a person, projected directly from a query (no entity gets loaded).
+ *
+ * <h4>PersonSummary Responsibilities:</h4>
+ * <ul>
+ * <li>knows the key and name of a person</li>
+ * <li>knows the primary (HOME) email address and phone number of a person, if any</li>
+ * <li>finds summaries with the projection queries of PersonStorage</li>
+ * </ul>
+ */
+@XmlRootElement(name = "PersonSummary", namespace = "##default")
+public final class PersonSummary {
+
+    private static final String At = "@";
+    private static final String Wild = "%";
+    private static final int MaximumInList = 500;
+
+    /**
+     * The kind of contact mechanism summarized.
+     */
+    public static final Contact.Kind PrimaryKind = Contact.Kind.HOME;
+
+    private final long key;
+    private final String name;
+    private final String email;
+    private final Long phoneNumber;
+
+    /**
+     * Constructs a new PersonSummary from the columns of a projection query.
+     *
+     * @param key a person key
+     * @param name a person name
+     * @param account an email account, or null
+     * @param hostName an email host name, or null
+     * @param phoneNumber the packed digits of a phone number, or null
+     */
+    public PersonSummary(long key, String name, String account, String hostName, Long phoneNumber) {
+        this.key = key;
+        this.name = name;
+        this.email = account == null ? null : account + At + hostName;
+        this.phoneNumber = phoneNumber;
+    }
+
+    /**
+     * Returns the summaries of similar persons.
+     *
+     * @param text query text
+     * @return some PersonSummaries
+     */
+    public static List<PersonSummary> like(String text) {
+        return getStore().findSummariesLike(text, PrimaryKind);
+    }
+
+    /**
+     * Returns the summaries of the persons whose names contain some text (ignoring case), best matches first.
+     *
+     * @param text query text
+     * @return a ranked list of PersonSummaries
+     * @see Person#search(String)
+     */
+    public static List<PersonSummary> search(String text) {
+        if (!TrigramIndex.searchable(text)) {
+            return like(Wild + text + Wild);
+        }
+
+        return TrigramIndex.rank(text, findKeys(Person.findNameKeys(text)), PersonSummary::getName);
+    }
+
+    /**
+     * Returns the summaries of the persons whose names contain some text (ignoring case), and who have an address in
+     * a given city and postal code, best matches first.
+     *
+     * @param text query text
+     * @param city a city name or pattern, or empty for any city
+     * @param postalCode a postal code, or empty for any code
+     * @return a ranked list of PersonSummaries
+     * @see Person#searchLocated(String, String, String)
+     */
+    public static List<PersonSummary> searchLocated(String text, String city, String postalCode) {
+        if (!TrigramIndex.searchable(text)) {
+            return locatedLike(Wild + text + Wild, city, postalCode);
+        }
+
+        return TrigramIndex.rank(text,
+                findKeys(Person.findNameKeys(text, city, postalCode)), PersonSummary::getName);
+    }
+
+    private static List<PersonSummary> findKeys(List<Long> keys) {
+        ArrayList<PersonSummary> results = new ArrayList<>(keys.size());
+        for (int index = 0; index < keys.size(); index += MaximumInList) {
+            results.addAll(getStore().findSummariesKeys(
+                    keys.subList(index, Math.min(keys.size(), index + MaximumInList)), PrimaryKind));
+        }
+        return results;
+    }
+
+    /**
+     * Returns a page of the summaries of similar persons, ordered by name and key.
+     *
+     * @param text query text
+     * @param cursor locates the page, or null for the first page
+     * @param limit a maximum count of summaries
+     * @return a page of PersonSummaries
+     */
+    public static KeysetPage<PersonSummary> like(String text, String cursor, int limit) {
+        PageRequest fetch = PageRequest.of(0, limit + 1);
+        if (cursor == null || cursor.isEmpty()) {
+            return KeysetPage.of(getStore().findSummariesLikeFirst(text, PrimaryKind, fetch),
+                    limit, PersonSummary::seekValues);
+        }
+
+        Object[] lastValues = KeysetPage.decode(cursor, String.class, Long.class);
+        List<PersonSummary> fetched = getStore().findSummariesLikeAfter(
+                text, (String) lastValues[0], (Long) lastValues[1], PrimaryKind, fetch);
+        return KeysetPage.of(fetched, limit, PersonSummary::seekValues);
+    }
+
+    /**
+     * Returns the summaries of the similar persons with an address in a given city and postal code.
+     *
+     * @param text query text
+     * @param city a city name or pattern, or empty for any city
+     * @param postalCode a postal code, or empty for any code
+     * @return some PersonSummaries
+     */
+    public static List<PersonSummary> locatedLike(String text, String city, String postalCode) {
+        return getStore().findSummariesLocatedLike(
+                text, MailAddress.cityPattern(city), MailAddress.postalPattern(postalCode), PrimaryKind);
+    }
+
+    /**
+     * Returns a page of the summaries of the similar persons with an address in a given city and postal code,
+     * ordered by name and key.
+     *
+     * @param text query text
+     * @param city a city name or pattern, or empty for any city
+     * @param postalCode a postal code, or empty for any code
+     * @param cursor locates the page, or null for the first page
+     * @param limit a maximum count of summaries
+     * @return a page of PersonSummaries
+     */
+    public static KeysetPage<PersonSummary> locatedLike(
+            String text, String city, String postalCode, String cursor, int limit) {
+        String cityPattern = MailAddress.cityPattern(city);
+        String postalPattern = MailAddress.postalPattern(postalCode);
+        PageRequest fetch = PageRequest.of(0, limit + 1);
+        if (cursor == null || cursor.isEmpty()) {
+            return KeysetPage.of(getStore().findSummariesLocatedLikeFirst(
+                    text, cityPattern, postalPattern, PrimaryKind, fetch), limit, PersonSummary::seekValues);
+        }
+
+        Object[] lastValues = KeysetPage.decode(cursor, String.class, Long.class);
+        List<PersonSummary> fetched = getStore().findSummariesLocatedLikeAfter(text, cityPattern, postalPattern,
+                (String) lastValues[0], (Long) lastValues[1], PrimaryKind, fetch);
+        return KeysetPage.of(fetched, limit, PersonSummary::seekValues);
+    }
+
+    /**
+     * Returns the summaries of the persons equal to a sample person, found with its hash. Any persons that merely
+     * share the hash of the sample are excluded by comparing their names.
+     *
+     * @param sample a sample person
+     * @return some PersonSummaries
+     */
+    public static List<PersonSummary> withHash(Person sample) {
+        return getStore().findSummariesHash(sample.hashKey(), sample.getName(), PrimaryKind);
+    }
+
+    /**
+     * Returns the summaries of the persons with a given email address.
+     *
+     * @param email an email address
+     * @return some PersonSummaries
+     */
+    public static List<PersonSummary> withEmail(EmailAddress email) {
+        return getStore().findSummariesEmail(email.hashKey(), PrimaryKind);
+    }
+
+    /**
+     * Returns the summaries of the persons with a given phone number.
+     *
+     * @param phone a phone number
+     * @return some PersonSummaries
+     */
+    public static List<PersonSummary> withPhone(PhoneNumber phone) {
+        return getStore().findSummariesPhone(phone.hashKey(), PrimaryKind);
+    }
+
+    private static PersonStorage getStore() {
+        return StorageMechanism.getStorage(PersonStorage.class);
+    }
+
+    private static Object[] seekValues(PersonSummary summary) {
+        return new Object[] { summary.getName(), summary.getKey() };
+    }
+
+    /**
+     * A person key.
+     *
+     * @return a key
+     */
+    @XmlAttribute(name = "key")
+    public long getKey() {
+        return this.key;
+    }
+
+    /**
+     * A person name.
+     *
+     * @return a name
+     */
+    @XmlAttribute(name = "name")
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * A primary email address.
+     *
+     * @return a formatted email address, or null
+     */
+    @XmlAttribute(name = "email")
+    public String getEmail() {
+        return this.email;
+    }
+
+    /**
+     * A primary phone number.
+     *
+     * @return a formatted phone number, or null
+     */
+    @XmlAttribute(name = "phone")
+    public String getPhone() {
+        return this.phoneNumber == null ? null : PhoneNumber.format(this.phoneNumber);
+    }
+
+} // PersonSummary
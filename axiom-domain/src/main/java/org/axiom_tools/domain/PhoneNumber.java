@@ -27,11 +27,20 @@ import org.axiom_tools.storage.Hashed;
  */
 @Entity
 @Table(name = "phone", indexes = {
-    @Index(name = "ix_phone_hash", columnList = "hash_key")})
+    @Index(name = "ix_phone_hash", columnList = "hash_key"),
+    @Index(name = "ix_phone_number", columnList = "phone_number")})
 @XmlRootElement(name = "PhoneNumber", namespace = "##default")
 @SuppressWarnings("unchecked")
 public class PhoneNumber extends Hashed<PhoneNumber> implements Serializable {
 
+    private static final char DASH = '-';
+    private static final String FORMAT = "999-999-9999";
+    private static final String BadFormat = "PhoneNumbers must have a format like " + FORMAT;
+
+    private static final int FormatLength = FORMAT.length();
+    private static final int FirstDash = 3;
+    private static final int SecondDash = 7;
+
     private static final long serialVersionUID = 1001001L;
     private static final Logger Log = LoggerFactory.getLogger(PhoneNumber.class);
     private static final PhoneNumber SamplePhone = PhoneNumber.from("999-999-9999");
@@ -50,10 +59,6 @@ public class PhoneNumber extends Hashed<PhoneNumber> implements Serializable {
         return (int) SamplePhone.getStore().count();
     }
 
-    private static final String DASH = "-";
-    private static final String FORMAT = "999-999-9999";
-    private static final String PATTERN = "(\\d{3})-(\\d{3})-(\\d{4})";
-
     /**
      * Returns a new PhoneNumber.
      *
@@ -62,15 +67,59 @@ public class PhoneNumber extends Hashed<PhoneNumber> implements Serializable {
      * @exception NumberFormatException if the supplied phone number cannot be parsed
      */
     public static PhoneNumber from(String phoneNumber) {
-        if (phoneNumber == null || !phoneNumber.matches(PATTERN)) {
-            throw new NumberFormatException("PhoneNumbers must have a format like " + FORMAT);
+        PhoneNumber result = new PhoneNumber();
+        result.number = parse(phoneNumber);
+        return result;
+    }
+
+    /**
+     * Parses a formatted phone number into its 10 digits.
+     *
+     * @param phoneNumber a formatted phone number
+     * @return the packed digits of the phone number
+     * @exception NumberFormatException if the supplied phone number cannot be parsed
+     */
+    public static long parse(String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.length() != FormatLength) {
+            throw new NumberFormatException(BadFormat);
         }
 
-        PhoneNumber result = new PhoneNumber();
-        result.setFormattedNumber(phoneNumber);
+        long result = 0;
+        for (int index = 0; index < FormatLength; index++) {
+            char c = phoneNumber.charAt(index);
+            if (index == FirstDash || index == SecondDash) {
+                if (c != DASH) {
+                    throw new NumberFormatException(BadFormat);
+                }
+            } else if (c >= '0' && c <= '9') {
+                result = result * 10 + (c - '0');
+            } else {
+                throw new NumberFormatException(BadFormat);
+            }
+        }
         return result;
     }
 
+    /**
+     * Formats the packed digits of a phone number for display.
+     *
+     * @param number the packed digits of a phone number
+     * @return a formatted phone number
+     */
+    public static String format(long number) {
+        char[] results = new char[FormatLength];
+        long digits = number;
+        for (int index = FormatLength - 1; index >= 0; index--) {
+            if (index == FirstDash || index == SecondDash) {
+                results[index] = DASH;
+            } else {
+                results[index] = (char) ('0' + digits % 10);
+                digits /= 10;
+            }
+        }
+        return new String(results);
+    }
+
     /**
      * Constructs a new PhoneNumber.
      */
@@ -78,14 +127,20 @@ public class PhoneNumber extends Hashed<PhoneNumber> implements Serializable {
         super();
     }
 
-    @Column(name = "phone_area", nullable = false, length = 3)
-    private String areaCode = "";
-
-    @Column(name = "phone_prefix", nullable = false, length = 3)
-    private String prefix = "";
+    /**
+     * The 10 digits of this phone number, packed as a number.
+     */
+    @Column(name = "phone_number", nullable = false)
+    private long number = 0;
 
-    @Column(name = "phone_suffix", nullable = false, length = 4)
-    private String suffix = "";
+    /**
+     * The packed digits of this phone number.
+     *
+     * @return the packed digits
+     */
+    public long packedNumber() {
+        return this.number;
+    }
 
     /**
      * A formatted phone number.
@@ -103,10 +158,7 @@ public class PhoneNumber extends Hashed<PhoneNumber> implements Serializable {
      * @param phoneNumber a formatted phone number
      */
     protected void setFormattedNumber(String phoneNumber) {
-        String[] parts = phoneNumber.split(DASH);
-        this.areaCode = parts[0];
-        this.prefix = parts[1];
-        this.suffix = parts[2];
+        this.number = parse(phoneNumber);
     }
 
     /**
@@ -115,17 +167,27 @@ public class PhoneNumber extends Hashed<PhoneNumber> implements Serializable {
      * @return a formatted phone number
      */
     public String formatNumber() {
-        return this.areaCode + DASH + this.prefix + DASH + this.suffix;
+        return format(this.number);
     }
 
 //    public PhoneNumber findWithHash() {
 //        int hashKey = hashKey();
 //        return StorageBean.Registry.Instance.getStorage(PhoneStorage.class).findHash(hashKey);
 //    }
+    @Override
+    protected String[] hashSources() {
+        // the separate parts keep the stored hashes of earlier (unpacked) phone numbers
+        String formatted = formatNumber();
+        String[] results = {
+            formatted.substring(0, FirstDash),
+            formatted.substring(FirstDash + 1, SecondDash),
+            formatted.substring(SecondDash + 1)};
+        return results;
+    }
+
     @Override
     public int hashCode() {
-        String hashSource = formatNumber();
-        return hashSource.hashCode();
+        return Long.hashCode(this.number);
     }
 
     @Override
@@ -137,7 +199,7 @@ public class PhoneNumber extends Hashed<PhoneNumber> implements Serializable {
             return false;
         }
         final PhoneNumber other = (PhoneNumber) candidate;
-        return other.formatNumber().equals(formatNumber());
+        return other.number == this.number;
     }
 
     @Override
@@ -15,6 +15,7 @@
  */
 package org.axiom_tools.storage;
 
+import java.util.List;
 import org.axiom_tools.domain.MailAddress;
 import org.axiom_tools.storage.Hashed.Search;
 import org.springframework.data.jpa.repository.Query;
@@ -33,6 +34,6 @@ public interface AddressStorage
 
     @Override
     @Query("SELECT m FROM MailAddress m WHERE m.hashKey = :hashKey")
-    MailAddress findHash(@Param("hashKey") Integer key);
+    List<MailAddress> findHash(@Param("hashKey") Long key);
 
 } // AddressStorage
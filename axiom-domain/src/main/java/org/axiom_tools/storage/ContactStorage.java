@@ -15,8 +15,10 @@
  */
 package org.axiom_tools.storage;
 
+import java.util.Optional;
 import org.axiom_tools.domain.Contact;
 import org.axiom_tools.domain.PhoneNumber;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
@@ -28,6 +30,10 @@ import org.springframework.data.repository.query.Param;
 public interface ContactStorage
         extends CrudRepository<Contact, Long> {
 
+    @Override
+    @EntityGraph(Contact.FullGraph)
+    Optional<Contact> findById(Long key);
+
     @Query("SELECT c FROM Contact c WHERE c.key = :key")
     PhoneNumber findKey(@Param("key") Long key);
 
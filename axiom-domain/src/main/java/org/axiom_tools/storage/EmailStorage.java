@@ -15,6 +15,7 @@
  */
 package org.axiom_tools.storage;
 
+import java.util.List;
 import org.axiom_tools.domain.EmailAddress;
 import org.axiom_tools.storage.Hashed.Search;
 import org.springframework.data.jpa.repository.Query;
@@ -33,6 +34,6 @@ public interface EmailStorage
 
     @Override
     @Query("SELECT e FROM EmailAddress e WHERE e.hashKey = :hashKey")
-    EmailAddress findHash(@Param("hashKey") Integer key);
+    List<EmailAddress> findHash(@Param("hashKey") Long key);
 
 } // EmailStorage
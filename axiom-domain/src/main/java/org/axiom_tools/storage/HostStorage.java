@@ -0,0 +1,48 @@
+/**
+ * Copyright 2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.List;
+import org.axiom_tools.domain.EmailHost;
+import org.axiom_tools.storage.Hashed.Search;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+/**
+ * A storage mechanism for email hosts.
+ * @author nik
+ */
+public interface HostStorage
+        extends CrudRepository<EmailHost, Long>, Search<EmailHost> {
+
+    @Query("SELECT h FROM EmailHost h WHERE h.key = :key")
+    EmailHost findKey(@Param("key") Long key);
+
+    @Override
+    @Query("SELECT h FROM EmailHost h WHERE h.hashKey = :hashKey")
+    List<EmailHost> findHash(@Param("hashKey") Long key);
+
+    @Query("SELECT h.hostName, COUNT(DISTINCT p.key) FROM Person p"
+            + " JOIN p.contact c JOIN c.emails e JOIN e.host h"
+            + " GROUP BY h.hostName ORDER BY COUNT(DISTINCT p.key) DESC, h.hostName")
+    List<Object[]> countPersonsByHost();
+
+    @Query("SELECT COUNT(DISTINCT p.key) FROM Person p"
+            + " JOIN p.contact c JOIN c.emails e JOIN e.host h WHERE h.hostName = :hostName")
+    long countPersons(@Param("hostName") String hostName);
+
+} // HostStorage
@@ -16,6 +16,7 @@
 package org.axiom_tools.storage;
 
 import javax.persistence.EntityManagerFactory;
+import org.axiom_tools.data.BasicDataSource;
 import org.axiom_tools.data.CloudDataSource;
 import org.axiom_tools.data.DirectDataSource;
 
@@ -24,6 +25,10 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.data.jpa.repository.support.JpaRepositoryFactory;
 import org.springframework.orm.jpa.JpaTransactionManager;
@@ -31,6 +36,7 @@ import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import org.axiom_tools.domain.*;
 
@@ -89,6 +95,17 @@ public class PersistenceContext {
         return new JpaRepositoryFactory(emf.createEntityManager());
     }
 
+    @Bean
+    public KeyAllocator keyAllocator(EntityManagerFactory emf) {
+        return KeyAllocator.with(emf);
+    }
+
+    @Bean
+    public StreamingReader streamingReader(EntityManagerFactory emf) {
+        BasicDataSource dataSource = (cloudDataSource != null ? cloudDataSource : directDataSource);
+        return StreamingReader.with(emf, dataSource.streamClearInterval());
+    }
+
     @Bean
     public StorageMechanism<Person, PersonStorage> personStorageMechanism(PersonStorage store) {
         return new StorageMechanism(store, PersonStorage.class, Person.class);
@@ -109,6 +126,11 @@ public class PersistenceContext {
         return new StorageMechanism(store, EmailStorage.class, EmailAddress.class);
     }
 
+    @Bean
+    public StorageMechanism<EmailHost, HostStorage> hostStorageMechanism(HostStorage store) {
+        return new StorageMechanism(store, HostStorage.class, EmailHost.class);
+    }
+
     @Bean
     public StorageMechanism<PhoneNumber, PhoneStorage> phoneStorageMechanism(PhoneStorage store) {
         return new StorageMechanism(store, PhoneStorage.class, PhoneNumber.class);
@@ -119,10 +141,64 @@ public class PersistenceContext {
             StorageMechanism<Person, PersonStorage> personStorage,
             StorageMechanism<Contact, ContactStorage> contactStorage,
             StorageMechanism<PhoneNumber, PhoneStorage> phoneStorage,
+            StorageMechanism<EmailHost, HostStorage> hostStorage,
             StorageMechanism<EmailAddress, EmailStorage> emailStorage,
             StorageMechanism<MailAddress, AddressStorage> addressStorage) {
         return StorageMechanism.Registry.with(
-                phoneStorage, emailStorage, addressStorage, contactStorage, personStorage);
+                phoneStorage, hostStorage, emailStorage, addressStorage, contactStorage, personStorage);
+    }
+
+    @Bean
+    public PostalCentroids postalCentroids() {
+        BasicDataSource dataSource = (cloudDataSource != null ? cloudDataSource : directDataSource);
+        return PostalCentroids.install(PostalCentroids.load(dataSource.postalCentroids()));
+    }
+
+    @Bean(destroyMethod = "close")
+    public IdempotencyStore idempotencyStore() {
+        BasicDataSource dataSource = (cloudDataSource != null ? cloudDataSource : directDataSource);
+        return IdempotencyStore.install(dataSource.openIdempotencyStore());
+    }
+
+    @Bean(destroyMethod = "close")
+    public ShardSet shardSet(StorageMechanism.Registry registry) {
+        return cloudDataSource != null ? cloudDataSource.shards(registry) : directDataSource.shards(registry);
+    }
+
+    @EventListener
+    @Order(1)
+    public void loadHashFilters(ContextRefreshedEvent event) {
+        BasicDataSource dataSource = (cloudDataSource != null ? cloudDataSource : directDataSource);
+        if (dataSource == null || !dataSource.usesHashFilters()) {
+            return;
+        }
+
+        StorageMechanism.Registry registry = event.getApplicationContext().getBean(StorageMechanism.Registry.class);
+        TransactionTemplate transaction =
+                new TransactionTemplate(event.getApplicationContext().getBean(PlatformTransactionManager.class));
+        transaction.setReadOnly(true);
+        transaction.executeWithoutResult(status -> HashFilter.rebuildAll(registry));
+    }
+
+    @EventListener
+    @Order(2)
+    public void startWriteBehind(ContextRefreshedEvent event) {
+        // after the hash filters load, since the queue only accepts persons the filters prove are new
+        BasicDataSource dataSource = (cloudDataSource != null ? cloudDataSource : directDataSource);
+        if (dataSource == null || !dataSource.usesWriteBehind() || WriteBehindQueue.forType(Person.class) != null) {
+            return;
+        }
+
+        TransactionTemplate transaction =
+                new TransactionTemplate(event.getApplicationContext().getBean(PlatformTransactionManager.class));
+        WriteBehindQueue.register(new WriteBehindQueue<>(Person.class, dataSource.openWriteBehindLog(),
+                Person::toJSON, Person::fromJSON, transaction,
+                dataSource.writeBehindBatch(), dataSource.writeBehindInterval())).start();
+    }
+
+    @EventListener
+    public void stopWriteBehind(ContextClosedEvent event) {
+        WriteBehindQueue.closeAll();
     }
 
 }
@@ -16,12 +16,23 @@
 package org.axiom_tools.storage;
 
 import java.util.*;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
+import org.axiom_tools.domain.Contact;
 import org.axiom_tools.domain.Person;
+import org.axiom_tools.domain.PersonSummary;
 import org.axiom_tools.storage.Hashed.Search;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_PASS_DISTINCT_THROUGH;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
+
 /**
  * A storage mechanism for phone numbers.
  * @author nik
@@ -29,20 +40,173 @@ import org.springframework.data.repository.query.Param;
 public interface PersonStorage
         extends CrudRepository<Person, Long>, Search<Person> {
 
-    @Query("SELECT p FROM Person p WHERE p.key = :key")
+    /**
+     * Projects the key, name, and primary email and phone of each person, without loading any entities.
+     */
+    public static final String SummarySelect = "SELECT new org.axiom_tools.domain.PersonSummary("
+            + "p.key, p.name, em.account, eh.hostName, ph.number) FROM Person p"
+            + " LEFT JOIN p.contact c"
+            + " LEFT JOIN c.emails em ON KEY(em) = :primary"
+            + " LEFT JOIN em.host eh"
+            + " LEFT JOIN c.phones ph ON KEY(ph) = :primary";
+
+    /**
+     * Selects the keys of the persons with an address that matches a postal code and city (patterns).
+     */
+    public static final String LocatedKeys = "SELECT pa.key FROM Person pa"
+            + " JOIN pa.contact ca JOIN ca.addresses a"
+            + " WHERE a.postalCode like :postalCode AND a.city like :city";
+
+    @Override
+    @EntityGraph(Person.FullGraph)
+    Optional<Person> findById(Long key);
+
+    @EntityGraph(Person.FullGraph)
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    @Query("SELECT DISTINCT p FROM Person p WHERE p.key = :key")
     Person findKey(@Param("key") Long key);
 
     @Override
-    @Query("SELECT p FROM Person p WHERE p.hashKey = :hashKey")
-    Person findHash(@Param("hashKey") Integer key);
+    @EntityGraph(Person.FullGraph)
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    @Query("SELECT DISTINCT p FROM Person p WHERE p.hashKey = :hashKey")
+    List<Person> findHash(@Param("hashKey") Long key);
 
-    @Query("SELECT p FROM Person p WHERE p.name like :personName")
+    @EntityGraph(Person.FullGraph)
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    @Query("SELECT DISTINCT p FROM Person p WHERE p.name like :personName")
     List<Person> findLike(@Param("personName") String personName);
-    
-    @Query("SELECT p FROM Person p join p.contact c join c.emails em WHERE em.hashKey = :emailKey")
-    List<Person> findEmail(@Param("emailKey") Integer emailKey);
-    
-    @Query("SELECT p FROM Person p join p.contact c join c.phones ph WHERE ph.hashKey = :phoneKey")
-    List<Person> findPhone(@Param("phoneKey") Integer phoneKey);
+
+    @Query("SELECT p.key FROM Person p JOIN p.nameTrigrams t WHERE t IN :trigrams"
+            + " GROUP BY p.key HAVING COUNT(t) = :count")
+    List<Long> findTrigramKeys(@Param("trigrams") Collection<String> trigrams, @Param("count") Long count);
+
+    @Query("SELECT p.key FROM Person p JOIN p.nameTrigrams t WHERE t IN :trigrams AND p.key IN (" + LocatedKeys + ")"
+            + " GROUP BY p.key HAVING COUNT(t) = :count")
+    List<Long> findLocatedTrigramKeys(@Param("trigrams") Collection<String> trigrams, @Param("count") Long count,
+            @Param("city") String city, @Param("postalCode") String postalCode);
+
+    @Query("SELECT p.key FROM Person p JOIN p.nameSounds s WHERE s IN :sounds"
+            + " GROUP BY p.key HAVING COUNT(s) = :count")
+    List<Long> findSoundKeys(@Param("sounds") Collection<String> sounds, @Param("count") Long count);
+
+    @EntityGraph(Person.FullGraph)
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    @Query("SELECT DISTINCT p FROM Person p WHERE p.key IN :keys")
+    List<Person> findKeys(@Param("keys") Collection<Long> keys);
+
+    @QueryHints({
+        @QueryHint(name = HINT_FETCH_SIZE, value = StreamingReader.FetchSize),
+        @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query("SELECT p FROM Person p WHERE p.name like :personName ORDER BY p.key")
+    Stream<Person> streamLike(@Param("personName") String personName);
+
+    @QueryHints({
+        @QueryHint(name = HINT_FETCH_SIZE, value = StreamingReader.FetchSize),
+        @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query("SELECT p.key, p.name FROM Person p")
+    Stream<Object[]> streamNames();
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = StreamingReader.FetchSize))
+    @Query("SELECT p.key, e.hashKey FROM Person p JOIN p.contact c JOIN c.emails e")
+    Stream<Object[]> streamEmailHashes();
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = StreamingReader.FetchSize))
+    @Query("SELECT p.key, ph.hashKey FROM Person p JOIN p.contact c JOIN c.phones ph")
+    Stream<Object[]> streamPhoneHashes();
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = StreamingReader.FetchSize))
+    @Query("SELECT p.key, a.hashKey FROM Person p JOIN p.contact c JOIN c.addresses a")
+    Stream<Object[]> streamAddressHashes();
+
+    @Query("SELECT p.key, a.geohash FROM Person p JOIN p.contact c JOIN c.addresses a"
+            + " WHERE a.geohash BETWEEN :firstHash AND :lastHash")
+    List<Object[]> findLocatedBetween(@Param("firstHash") String firstHash, @Param("lastHash") String lastHash);
+
+    @Query("SELECT p FROM Person p WHERE p.name like :personName ORDER BY p.name, p.key")
+    List<Person> findLikeFirst(@Param("personName") String personName, Pageable limit);
+
+    @Query("SELECT p FROM Person p WHERE p.name like :personName"
+            + " AND (p.name > :lastName OR (p.name = :lastName AND p.key > :lastKey))"
+            + " ORDER BY p.name, p.key")
+    List<Person> findLikeAfter(@Param("personName") String personName,
+            @Param("lastName") String lastName, @Param("lastKey") Long lastKey, Pageable limit);
+
+    @EntityGraph(Person.FullGraph)
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    @Query("SELECT DISTINCT p FROM Person p WHERE p.name like :personName AND p.key IN (" + LocatedKeys + ")")
+    List<Person> findLocatedLike(@Param("personName") String personName,
+            @Param("city") String city, @Param("postalCode") String postalCode);
+
+    @Query("SELECT p FROM Person p WHERE p.name like :personName AND p.key IN (" + LocatedKeys + ")"
+            + " ORDER BY p.name, p.key")
+    List<Person> findLocatedLikeFirst(@Param("personName") String personName,
+            @Param("city") String city, @Param("postalCode") String postalCode, Pageable limit);
+
+    @Query("SELECT p FROM Person p WHERE p.name like :personName AND p.key IN (" + LocatedKeys + ")"
+            + " AND (p.name > :lastName OR (p.name = :lastName AND p.key > :lastKey))"
+            + " ORDER BY p.name, p.key")
+    List<Person> findLocatedLikeAfter(@Param("personName") String personName,
+            @Param("city") String city, @Param("postalCode") String postalCode,
+            @Param("lastName") String lastName, @Param("lastKey") Long lastKey, Pageable limit);
+
+    @Query(SummarySelect + " WHERE p.name like :personName")
+    List<PersonSummary> findSummariesLike(
+            @Param("personName") String personName, @Param("primary") Contact.Kind primary);
+
+    @Query(SummarySelect + " WHERE p.name like :personName ORDER BY p.name, p.key")
+    List<PersonSummary> findSummariesLikeFirst(@Param("personName") String personName,
+            @Param("primary") Contact.Kind primary, Pageable limit);
+
+    @Query(SummarySelect + " WHERE p.name like :personName"
+            + " AND (p.name > :lastName OR (p.name = :lastName AND p.key > :lastKey))"
+            + " ORDER BY p.name, p.key")
+    List<PersonSummary> findSummariesLikeAfter(@Param("personName") String personName,
+            @Param("lastName") String lastName, @Param("lastKey") Long lastKey,
+            @Param("primary") Contact.Kind primary, Pageable limit);
+
+    @Query(SummarySelect + " WHERE p.name like :personName AND p.key IN (" + LocatedKeys + ")")
+    List<PersonSummary> findSummariesLocatedLike(@Param("personName") String personName,
+            @Param("city") String city, @Param("postalCode") String postalCode,
+            @Param("primary") Contact.Kind primary);
+
+    @Query(SummarySelect + " WHERE p.name like :personName AND p.key IN (" + LocatedKeys + ")"
+            + " ORDER BY p.name, p.key")
+    List<PersonSummary> findSummariesLocatedLikeFirst(@Param("personName") String personName,
+            @Param("city") String city, @Param("postalCode") String postalCode,
+            @Param("primary") Contact.Kind primary, Pageable limit);
+
+    @Query(SummarySelect + " WHERE p.name like :personName AND p.key IN (" + LocatedKeys + ")"
+            + " AND (p.name > :lastName OR (p.name = :lastName AND p.key > :lastKey))"
+            + " ORDER BY p.name, p.key")
+    List<PersonSummary> findSummariesLocatedLikeAfter(@Param("personName") String personName,
+            @Param("city") String city, @Param("postalCode") String postalCode,
+            @Param("lastName") String lastName, @Param("lastKey") Long lastKey,
+            @Param("primary") Contact.Kind primary, Pageable limit);
+
+    @Query(SummarySelect + " WHERE p.key IN :keys")
+    List<PersonSummary> findSummariesKeys(@Param("keys") Collection<Long> keys, @Param("primary") Contact.Kind primary);
+
+    @Query(SummarySelect + " WHERE p.hashKey = :hashKey AND p.name = :personName")
+    List<PersonSummary> findSummariesHash(@Param("hashKey") Long hashKey,
+            @Param("personName") String personName, @Param("primary") Contact.Kind primary);
+
+    @Query(SummarySelect + " WHERE p.key IN (SELECT pe.key FROM Person pe"
+            + " join pe.contact ce join ce.emails e WHERE e.hashKey = :emailKey)")
+    List<PersonSummary> findSummariesEmail(@Param("emailKey") Long emailKey, @Param("primary") Contact.Kind primary);
+
+    @Query(SummarySelect + " WHERE p.key IN (SELECT pp.key FROM Person pp"
+            + " join pp.contact cp join cp.phones ph2 WHERE ph2.hashKey = :phoneKey)")
+    List<PersonSummary> findSummariesPhone(@Param("phoneKey") Long phoneKey, @Param("primary") Contact.Kind primary);
+
+    @EntityGraph(Person.FullGraph)
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    @Query("SELECT DISTINCT p FROM Person p join p.contact c join c.emails em WHERE em.hashKey = :emailKey")
+    List<Person> findEmail(@Param("emailKey") Long emailKey);
+
+    @EntityGraph(Person.FullGraph)
+    @QueryHints(@QueryHint(name = HINT_PASS_DISTINCT_THROUGH, value = "false"))
+    @Query("SELECT DISTINCT p FROM Person p join p.contact c join c.phones ph WHERE ph.hashKey = :phoneKey")
+    List<Person> findPhone(@Param("phoneKey") Long phoneKey);
 
 } // PersonStorage
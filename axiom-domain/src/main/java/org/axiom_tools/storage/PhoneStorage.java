@@ -15,6 +15,7 @@
  */
 package org.axiom_tools.storage;
 
+import java.util.List;
 import org.axiom_tools.domain.PhoneNumber;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
@@ -32,6 +33,6 @@ public interface PhoneStorage
 
     @Override
     @Query("SELECT p FROM PhoneNumber p WHERE p.hashKey = :hashKey")
-    PhoneNumber findHash(@Param("hashKey") Integer key);
+    List<PhoneNumber> findHash(@Param("hashKey") Long key);
 
 } // PhoneStorage
@@ -15,6 +15,7 @@
  */
 package org.axiom_tools.domain;
 
+import java.util.List;
 import org.junit.*;
 import static org.junit.Assert.*;
 import org.slf4j.Logger;
@@ -44,6 +45,32 @@ public class ContentTest {
         test.describe();
     }
 
+    @Test
+    public void contactMechanisms() {
+        Contact sample = new Contact()
+            .withEmail(Kind.WORK, EmailAddress.from("george@work.com"))
+            .withPhone(Kind.MOBILE, PhoneNumber.from("415-888-8800"))
+            .withEmail(Kind.HOME, EmailAddress.from("george@home.com"))
+            .withAddress(Kind.HOME, MailAddress.with("1234 Main St", "Anytown", "CA", "94005"))
+            .withPhone(Kind.HOME, PhoneNumber.from("415-888-8899"));
+
+        // addresses, then phones, then emails, each in the order of their kinds
+        List<ContactMechanism> mechanisms = sample.getMechanisms();
+        assertTrue(mechanisms.size() == 5);
+        String[] types = {"HOME", "HOME", "MOBILE", "HOME", "WORK"};
+        for (int index = 0; index < types.length; index++) {
+            assertTrue(mechanisms.get(index).getType().equals(types[index]));
+        }
+        assertTrue(mechanisms.get(2).getMechanism().equals(PhoneNumber.from("415-888-8800")));
+        assertTrue(mechanisms.get(4).getMechanism().equals(EmailAddress.from("george@work.com")));
+
+        Contact test = ModelCodec.to(Contact.class).fromJSON(ModelCodec.from(sample).toJSON());
+        assertTrue(test.getMechanisms().size() == 5);
+        assertTrue(test.getEmail(Kind.WORK).equals(sample.getEmail(Kind.WORK)));
+        assertTrue(test.getPhone(Kind.MOBILE).equals(sample.getPhone(Kind.MOBILE)));
+        assertTrue(test.getAddress(Kind.HOME).equals(sample.getAddress(Kind.HOME)));
+    }
+
     @Test
     public void addressCodec() {
         MailAddress sample = MailAddress.with("1234 Main St", "Anytown", "CA", "94005");
@@ -67,6 +94,19 @@ public class ContentTest {
 //        getLogger().info(xml);
     }
 
+    @Test
+    public void distinctHashes() {
+        // these addresses share a 32-bit String hash, but not a 64-bit content hash
+        EmailAddress a = EmailAddress.from("Aa@sample.com");
+        EmailAddress b = EmailAddress.from("BB@sample.com");
+        assertTrue(a.formatAddress().hashCode() == b.formatAddress().hashCode());
+        assertFalse(a.hashKey() == b.hashKey());
+
+        MailAddress x = MailAddress.with("1234 Main St", "Anytown", "CA", "94005");
+        MailAddress y = MailAddress.with("1234 Main St", "Anytown", "CA", "94005");
+        assertTrue(x.hashKey() == y.hashKey());
+    }
+
     private Logger getLogger() {
         return LoggerFactory.getLogger(getClass());
     }
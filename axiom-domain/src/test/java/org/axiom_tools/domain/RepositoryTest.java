@@ -16,6 +16,26 @@
 package org.axiom_tools.domain;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.sql.DataSource;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.WordUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import static org.junit.Assert.*;
@@ -23,13 +43,43 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.repository.CrudRepository;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.transaction.annotation.Transactional;
 
 import org.axiom_tools.codecs.ModelCodec;
+import org.axiom_tools.data.BasicDataSource;
+import org.axiom_tools.data.ReplicaRoutingDataSource;
 import org.axiom_tools.domain.Contact.Kind;
+import org.axiom_tools.storage.ContentHash;
+import org.axiom_tools.storage.DuplicateFinder;
+import org.axiom_tools.storage.ExternalSorter;
+import org.axiom_tools.storage.GeoHash;
+import org.axiom_tools.storage.HashCache;
+import org.axiom_tools.storage.HashFilter;
+import org.axiom_tools.storage.Hashed;
+import org.axiom_tools.storage.HashedItem;
+import org.axiom_tools.storage.IdempotencyStore;
+import org.axiom_tools.storage.KeyAllocator;
+import org.axiom_tools.storage.KeysetPage;
+import org.axiom_tools.storage.PersonStorage;
+import org.axiom_tools.storage.PostalCentroids;
+import org.axiom_tools.storage.QueryBuilder;
+import org.axiom_tools.storage.QueryPlan;
+import org.axiom_tools.storage.ShardRebalancer;
+import org.axiom_tools.storage.ShardSet;
 import org.axiom_tools.storage.StorageMechanism;
+import org.axiom_tools.storage.StreamingReader;
+import org.axiom_tools.storage.SurrogatedComposite;
+import org.axiom_tools.storage.SurrogatedItem;
+import org.axiom_tools.storage.WriteBehindLog;
+import org.axiom_tools.storage.WriteBehindQueue;
 import org.axiom_tools.storage.PersistenceContext;
 import org.springframework.test.context.ActiveProfiles;
 
@@ -50,6 +100,18 @@ public class RepositoryTest {
     @Autowired
     private StorageMechanism.Registry registry;
 
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ShardSet shards;
+
+    @Autowired
+    private EntityManagerFactory factory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
     @Test
     public void registeredStores() {
         getLogger().info("registered stores count = " + registry.size());
@@ -111,6 +173,149 @@ public class RepositoryTest {
         assertTrue(x.getKey() == p.getKey());
     }
 
+    @Test
+    public void packedPhones() {
+        PhoneNumber p = PhoneNumber.from("012-345-6789");
+        assertTrue(p.packedNumber() == 123456789L);
+        assertTrue(p.formatNumber().equals("012-345-6789"));
+        assertTrue(p.equals(PhoneNumber.from("012-345-6789")));
+        assertTrue(p.hashCode() == PhoneNumber.from("012-345-6789").hashCode());
+        assertTrue(p.hashKey() == ContentHash.of("012", "345", "6789"));
+
+        for (String bad : Arrays.asList("012-345-678", "012 345 6789", "0123456789", "012-34x-6789", null)) {
+            try {
+                PhoneNumber.from(bad);
+                fail("parsed " + bad);
+            } catch (NumberFormatException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    @Transactional
+    public void emailHosts() {
+        EmailAddress a = EmailAddress.from("first@hosted.com");
+        EmailAddress b = EmailAddress.from("second@hosted.com");
+        assertTrue(a.getHostName() == b.getHostName()); // interned
+        assertTrue(a.hashKey() == ContentHash.of("first", "hosted.com"));
+        assertTrue(a.formatAddress() == a.formatAddress()); // cached
+
+        Person.named("First Hosted").with(Kind.HOME, a).saveItem();
+        Person.named("Second Hosted").with(Kind.HOME, b).saveItem();
+        Person.named("Third Hosted").with(Kind.WORK, EmailAddress.from("third@hosted.com"))
+                .with(Kind.HOME, EmailAddress.from("third@otherhost.com")).saveItem();
+
+        int hosts = EmailHost.count();
+        EmailAddress.from("fourth@hosted.com").saveItem();
+        assertTrue(EmailHost.count() == hosts);
+
+        EmailAddress found = EmailAddress.from("second@hosted.com").findItem();
+        assertTrue(found != null && found.getHost().getKey() > 0);
+        assertTrue(found.formatAddress().equals("second@hosted.com"));
+
+        assertTrue(EmailHost.named("hosted.com").countPersons() == 3);
+        Map<String, Long> counts = EmailHost.countPersonsByHost();
+        assertTrue(counts.get("hosted.com") == 3);
+        assertTrue(counts.get("otherhost.com") == 1);
+    }
+
+    @Test
+    public void racingHosts() throws Exception {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        EntityManager manager = SharedEntityManagerCreator.createSharedEntityManager(factory);
+        CountDownLatch inserted = new CountDownLatch(1);
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            // another request inserts the new host first, and commits it while this one waits to insert it too
+            Future<?> first = other.submit(() -> transaction.executeWithoutResult(status -> {
+                Person.named("First Racer").with(Kind.HOME, EmailAddress.from("first@racing.com")).saveItem();
+                manager.flush();
+                inserted.countDown();
+                sleep(300);
+            }));
+
+            assertTrue(inserted.await(10, TimeUnit.SECONDS));
+            int[] attempts = { 0 };
+            Person second = Hashed.saveRetried(transaction, () -> {
+                attempts[0]++;
+                Person racer = Person.named("Second Racer").with(Kind.HOME, EmailAddress.from("second@racing.com"));
+                return racer.saveItem();
+            });
+            first.get();
+
+            assertTrue(second.getKey() > 0);
+            assertTrue(attempts[0] == 2);
+            assertTrue(EmailHost.named("racing.com").countPersons() == 2);
+        } finally {
+            other.shutdown();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void hashCaching() {
+        HashCache cache = HashCache.getInstance();
+        PhoneNumber n = PhoneNumber.from("777-888-9999").saveItem();
+        long hits = cache.hitCount();
+
+        PhoneNumber p = PhoneNumber.from("777-888-9999").saveItem();
+        assertTrue(p.getKey() == n.getKey());
+        assertTrue(cache.hitCount() > hits);
+        assertTrue(StorageMechanism.Registry.of().within(() -> cache.find(PhoneNumber.class, n.hashKey())) == null);
+        cache.describe(getLogger());
+
+        // within a transaction, a save refers to a cached item without a query
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        Statistics statistics = factory.unwrap(SessionFactory.class).getStatistics();
+        transaction.executeWithoutResult(status -> {
+            statistics.clear();
+            PhoneNumber r = PhoneNumber.from("777-888-9999").saveItem();
+            assertTrue(r.getKey() == n.getKey());
+            assertTrue(statistics.getPrepareStatementCount() == 0);
+        });
+
+        // a referred person still answers its key after its transaction
+        Person cached = transaction.execute(status -> Person.named("Cached Referral").saveItem());
+        Person referred = transaction.execute(status -> Person.named("Cached Referral").saveItem());
+        assertTrue(referred.getKey() == cached.getKey());
+
+        // the key of an item saved by a rolled back transaction is never cached
+        PhoneNumber rolled = PhoneNumber.from("777-888-9990");
+        transaction.executeWithoutResult(status -> {
+            rolled.saveItem();
+            assertFalse(cache.find(PhoneNumber.class, rolled.hashKey()) == null);
+            status.setRollbackOnly();
+        });
+        assertTrue(cache.find(PhoneNumber.class, rolled.hashKey()) == null);
+
+        assertTrue(p.removeItem());
+        assertTrue(cache.find(PhoneNumber.class, p.hashKey()) == null);
+        assertTrue(PhoneNumber.from("777-888-9999").findWithHash() == null);
+    }
+
+    @Test
+    public void hashFiltering() {
+        HashFilter filter = HashFilter.forType(PhoneNumber.class);
+        assertFalse(filter == null);
+
+        PhoneNumber p = PhoneNumber.from("666-777-8888");
+        assertFalse(filter.mightContain(p.hashKey()));
+        assertTrue(p.findWithHash() == null);
+
+        p = p.saveItem();
+        assertTrue(filter.mightContain(p.hashKey()));
+        assertTrue(PhoneNumber.from("666-777-8888").findWithHash() != null);
+        p.removeItem();
+    }
+
     @Test
     public void addressStability() {
         MailAddress a = MailAddress.with("1234 Main St", "Anytown", "CA", "94005").saveItem();
@@ -246,6 +451,731 @@ public class RepositoryTest {
         x.removeItem();
     }
 
+    @Test
+    @Transactional
+    public void batchSave() {
+        MailAddress home = MailAddress.with("1234 Main St", "Anytown", "CA", "94005");
+        List<Person> batch = Arrays.asList(
+            Person.named("George Batchman")
+                .with(Kind.HOME, home)
+                .with(Kind.HOME, EmailAddress.from("george@batchman.com")),
+            Person.named("Martha Batchman")
+                .with(Kind.HOME, MailAddress.with("1234 Main St", "Anytown", "CA", "94005"))
+                .with(Kind.HOME, PhoneNumber.from("415-777-8899")),
+            Person.named("George Batchman"));
+
+        List<Person> results = Person.saveAll(batch);
+        assertTrue(results.size() == 3);
+        for (Person p : results) {
+            assertTrue(p.getKey() > 0);
+        }
+
+        assertTrue(results.get(0).getKey() == results.get(2).getKey());
+        MailAddress a = results.get(0).getContact().getAddress(Kind.HOME);
+        MailAddress b = results.get(1).getContact().getAddress(Kind.HOME);
+        assertTrue(a.getKey() > 0);
+        assertTrue(a.getKey() == b.getKey());
+
+        Person x = Person.named("Martha Batchman").findWithHash();
+        assertTrue(x != null);
+        assertTrue(x.getContact().getPhone(Kind.HOME).getKey() > 0);
+    }
+
+    @Test
+    @Transactional
+    public void keyAllocation() {
+        KeyAllocator allocator = KeyAllocator.getInstance();
+        long first = allocator.nextKey(PhoneNumber.class);
+        long second = allocator.nextKey(PhoneNumber.class);
+        assertTrue(first > 0);
+        assertTrue(second == first + 1);
+
+        PhoneNumber sample = PhoneNumber.from("415-888-1122");
+        allocator.assignKeys(Arrays.asList(sample));
+        assertFalse(sample.wasSaved());
+
+        long key = sample.getKey();
+        PhoneNumber result = sample.saveItem();
+        assertTrue(result.wasSaved());
+        assertTrue(result.getKey() == key);
+
+        PhoneNumber generated = PhoneNumber.from("415-888-3344").saveItem();
+        assertTrue(generated.getKey() > 0);
+        assertTrue(generated.getKey() != key);
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        assertFalse(HashFilter.forType(Person.class) == null);
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        Person stored = transaction.execute(status -> Person.named("Stored Writebehind").saveItem());
+        Path logPath = Files.createTempFile("axiom-write-behind-", ".log");
+        try {
+            // a crash leaves a logged person unsaved, and another logged person already saved
+            long crashedKey = KeyAllocator.getInstance().nextKey(Person.class);
+            Person crashed = Person.named("Crashed Writebehind");
+            crashed.assignKey(crashedKey);
+            try (WriteBehindLog log = WriteBehindLog.open(logPath, 1 << 16, false)) {
+                assertTrue(log.append(crashedKey, crashed.toJSON().getBytes(StandardCharsets.UTF_8)));
+                assertTrue(log.append(stored.getKey(), stored.toJSON().getBytes(StandardCharsets.UTF_8)));
+            }
+
+            WriteBehindQueue<Person> queue = new WriteBehindQueue<>(Person.class,
+                    WriteBehindLog.open(logPath, 1 << 16, false), Person::toJSON, Person::fromJSON,
+                    transaction, 2, 60000);
+            try {
+                queue.start();
+                assertTrue(queue.flushedCount() == 1);
+                assertTrue(Person.withKey(crashedKey).findItem().getName().equals("Crashed Writebehind"));
+
+                Person sample = Person.named("Queued Writebehind")
+                        .with(Kind.HOME, EmailAddress.from("queued@writebehind.com"));
+                long key = queue.offer(sample);
+                assertTrue(key > 0);
+                assertTrue(queue.offer(Person.named("Queued Writebehind")) == key);
+                assertTrue(queue.offer(Person.named("Stored Writebehind")) == 0);
+                assertTrue(queue.queuedCount() == 1);
+                assertTrue(Person.withKey(key).findItem() == null);
+
+                queue.flush();
+                assertTrue(queue.queuedCount() == 0);
+                Person found = Person.withKey(key).findItem();
+                assertTrue(found != null && found.getName().equals("Queued Writebehind"));
+                assertTrue(Person.named("Queued Writebehind").findWithHash().getKey() == key);
+
+                // an accepted person that cannot be saved (its name is too long) is dropped, and counted
+                long dropped = queue.offer(Person.named(StringUtils.repeat("Dropped Writebehind ", 5)));
+                assertTrue(dropped > 0);
+                queue.flush();
+                assertTrue(queue.droppedCount() == 1);
+                assertTrue(queue.queuedCount() == 0);
+                assertTrue(Person.withKey(dropped).findItem() == null);
+            } finally {
+                queue.close();
+            }
+
+            // a flushed log starts over, and a full log refuses appends
+            try (WriteBehindLog log = WriteBehindLog.open(logPath, 1 << 16, false)) {
+                assertTrue(log.isEmpty());
+                byte[] payload = new byte[1 << 14];
+                int count = 0;
+                while (log.append(count + 1, payload)) {
+                    count++;
+                }
+                assertTrue(count == 3);
+                WriteBehindLog.Batch batch = log.read(count);
+                assertTrue(batch.getRecords().size() == 3);
+                log.commit(batch);
+                assertTrue(log.isEmpty() && log.append(1, payload));
+            }
+        } finally {
+            Files.deleteIfExists(logPath);
+        }
+    }
+
+    @Test
+    public void idempotentReplies() throws Exception {
+        Path storePath = Files.createTempFile("axiom-replies-", ".dat");
+        try {
+            IdempotencyStore store = IdempotencyStore.open(32, 60000, storePath.toString());
+            assertTrue(store.reserve("POST /persons first", 11) == null);
+            assertTrue(store.reserve("POST /persons first", 11).isPending());
+            store.complete("POST /persons first", 11, 200, "{\"id\":1}");
+
+            IdempotencyStore.Reply reply = store.reserve("POST /persons first", 11);
+            assertTrue(reply.getStatus() == 200 && reply.getBody().equals("{\"id\":1}"));
+            assertFalse(store.reserve("POST /persons first", 12).matches(12));
+            assertTrue(store.hitCount() == 2);
+
+            assertTrue(store.reserve("POST /persons failed", 13) == null);
+            store.release("POST /persons failed");
+            assertTrue(store.reserve("POST /persons failed", 13) == null);
+
+            for (int index = 0; index < 100; index++) {
+                store.reserve("POST /persons " + index, index);
+                store.complete("POST /persons " + index, index, 202, null);
+            }
+            assertTrue(store.size() <= 32);
+            assertTrue(store.evictionCount() > 0);
+            store.close();
+
+            // the live replies are reloaded from the file
+            IdempotencyStore reloaded = IdempotencyStore.open(32, 60000, storePath.toString());
+            IdempotencyStore.Reply last = reloaded.reserve("POST /persons 99", 99);
+            assertTrue(last != null && last.getStatus() == 202 && last.getBody() == null);
+            reloaded.close();
+
+            IdempotencyStore expiring = IdempotencyStore.open(32, 1, "");
+            expiring.reserve("PUT /persons/1 retry", 1);
+            expiring.complete("PUT /persons/1 retry", 1, 200, "{}");
+            Thread.sleep(5);
+            assertTrue(expiring.reserve("PUT /persons/1 retry", 1) == null);
+        } finally {
+            Files.deleteIfExists(storePath);
+        }
+    }
+
+    @Test
+    public void pooledConnections() throws Exception {
+        assertTrue(dataSource instanceof HikariDataSource);
+        try (Connection c = dataSource.getConnection()) {
+            assertTrue(c.isValid(1));
+        }
+        BasicDataSource.describePool(dataSource, getLogger());
+    }
+
+    @Test
+    public void replicaRouting() throws Exception {
+        DataSource primary = new DriverManagerDataSource(PrimaryURL);
+        DataSource replica = new DriverManagerDataSource(ReplicaURL);
+        DataSource missing = new DriverManagerDataSource(MissingURL);
+        ReplicaRoutingDataSource router =
+                new ReplicaRoutingDataSource(primary, Arrays.asList(missing, replica), 60000);
+
+        assertTrue(connectedURL(router).startsWith(PrimaryURL));
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(true);
+        try {
+            assertTrue(connectedURL(router).startsWith(ReplicaURL));
+            assertTrue(connectedURL(router).startsWith(ReplicaURL));
+            assertTrue(router.healthyCount() == 1);
+
+            router = new ReplicaRoutingDataSource(primary, Arrays.asList(missing), 60000);
+            assertTrue(connectedURL(router).startsWith(PrimaryURL));
+        } finally {
+            TransactionSynchronizationManager.setCurrentTransactionReadOnly(false);
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+        }
+    }
+
+    @Test
+    @Transactional
+    public void pagedQueries() {
+        Person.named("Paged Person One").saveItem();
+        Person.named("Paged Person Two").saveItem();
+        Person.named("Paged Person Three").saveItem();
+
+        EntityManager manager = SharedEntityManagerCreator.createSharedEntityManager(factory);
+        QueryBuilder builder = QueryBuilder
+                .withQueryText("SELECT p FROM Person p WHERE p.name LIKE :name ORDER BY p.name")
+                .withCountText("SELECT COUNT(p) FROM Person p WHERE p.name LIKE :name")
+                .withValue("name", "Paged Person%")
+                .withPage(0, 2);
+
+        assertTrue(builder.hasTextCount());
+        assertFalse(builder.hasNamedCount());
+        assertTrue(builder.buildQuery(manager).getResultList().size() == 2);
+        assertTrue(((Number) builder.buildCount(manager).getSingleResult()).longValue() == 3);
+
+        int plans = QueryPlan.size();
+        assertTrue(builder.withPage(2, 2).buildQuery(manager).getResultList().size() == 1);
+        assertTrue(QueryPlan.size() == plans);
+    }
+
+    @Test
+    @Transactional
+    public void keysetPages() {
+        Person.named("Keyset Person A").saveItem();
+        Person.named("Keyset Person B").saveItem();
+        Person.named("Keyset Person C").saveItem();
+
+        EntityManager manager = SharedEntityManagerCreator.createSharedEntityManager(factory);
+        KeysetPage<Person> page = QueryBuilder
+                .withQueryText("SELECT p FROM Person p WHERE p.name LIKE :name")
+                .withValue("name", "Keyset Person%")
+                .orderedBy("p.name", "p.key").limit(2)
+                .buildPage(manager, (Person p) -> new Object[] { p.getName(), p.getKey() });
+
+        assertTrue(page.getItems().size() == 2);
+        assertTrue(page.hasMore());
+        assertTrue(page.getItems().get(0).getName().equals("Keyset Person A"));
+
+        KeysetPage<Person> last = QueryBuilder
+                .withQueryText("SELECT p FROM Person p WHERE p.name LIKE :name")
+                .withValue("name", "Keyset Person%")
+                .orderedBy("p.name", "p.key").afterCursor(page.getNextCursor()).limit(2)
+                .buildPage(manager, (Person p) -> new Object[] { p.getName(), p.getKey() });
+
+        assertTrue(last.getItems().size() == 1);
+        assertFalse(last.hasMore());
+        assertTrue(last.getItems().get(0).getName().equals("Keyset Person C"));
+
+        QueryBuilder either = QueryBuilder
+                .withQueryText("SELECT p FROM Person p where p.name = :first or p.name = :last")
+                .withValue("first", "Keyset Person A").withValue("last", "Keyset Person C")
+                .orderedBy("p.name", "p.key");
+        page = either.limit(1).buildPage(manager, (Person p) -> new Object[] { p.getName(), p.getKey() });
+        assertTrue(page.getItems().get(0).getName().equals("Keyset Person A"));
+        last = either.afterCursor(page.getNextCursor()).limit(Integer.MAX_VALUE)
+                .buildPage(manager, (Person p) -> new Object[] { p.getName(), p.getKey() });
+        assertTrue(last.getItems().size() == 1);
+        assertTrue(last.getItems().get(0).getName().equals("Keyset Person C"));
+
+        try {
+            QueryBuilder.withQueryText("SELECT p FROM Person p ORDER BY p.name").orderedBy("p.key").getSeekText();
+            fail("sorted keyset query text was accepted");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        page = Person.like("Keyset Person%", null, 2);
+        assertTrue(page.getItems().size() == 2);
+        last = Person.like("Keyset Person%", page.getNextCursor(), 2);
+        assertTrue(last.getItems().size() == 1);
+        assertTrue(last.getItems().get(0).getName().equals("Keyset Person C"));
+    }
+
+    @Test
+    @Transactional
+    public void streamedQueries() {
+        Person.named("Streamed Person A").saveItem();
+        Person.named("Streamed Person B").saveItem();
+        Person.named("Streamed Person C").saveItem();
+
+        EntityManager manager = SharedEntityManagerCreator.createSharedEntityManager(factory);
+        StreamingReader configured = StreamingReader.getInstance();
+        StreamingReader.with(factory, 1);
+        try (Stream<Person> results = Person.streamLike("Streamed Person%")) {
+            List<Person> persons = results.collect(Collectors.toList());
+            assertTrue(persons.size() == 3);
+            assertFalse(manager.contains(persons.get(0)));
+        } finally {
+            StreamingReader.with(factory, configured.getClearInterval());
+        }
+    }
+
+    @Test
+    public void fetchGraphs() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> {
+            for (int index = 0; index < 6; index++) {
+                Person.named("Fetched Person " + index)
+                        .with(Kind.HOME, MailAddress.with(index + "00 Fetch St", "Anytown", "CA", "94005"))
+                        .with(Kind.HOME, EmailAddress.from("fetched" + index + "@example.com"))
+                        .with(Kind.HOME, PhoneNumber.from("415-555-100" + index))
+                        .saveItem();
+            }
+        });
+
+        Statistics statistics = factory.unwrap(SessionFactory.class).getStatistics();
+        PersistenceUnitUtil units = factory.getPersistenceUnitUtil();
+        transaction.setReadOnly(true);
+
+        // a full read joins the contacts and their mechanisms
+        statistics.clear();
+        List<Person> persons = Person.like("Fetched Person%");
+        assertTrue(persons.size() == 6);
+        assertTrue(statistics.getPrepareStatementCount() == 1);
+        assertTrue(persons.get(5).getContact().countPhones() == 1);
+        assertTrue(persons.get(5).getContact().getEmail(Kind.HOME).formatAddress().equals("fetched5@example.com"));
+
+        // a page reads its contacts and each kind of mechanism in batches
+        statistics.clear();
+        KeysetPage<Person> page = transaction.execute(status -> {
+            KeysetPage<Person> result = Person.like("Fetched Person%", null, 5);
+            assertFalse(units.isLoaded(result.getItems().get(0), "contact"));
+            Person.loadContacts(result.getItems());
+            return result;
+        });
+        assertTrue(page.getItems().size() == 5);
+        assertTrue(statistics.getPrepareStatementCount() == 5);
+        Contact contact = page.getItems().get(4).getContact();
+        assertTrue(contact.countEmails() == 1);
+        assertTrue(contact.getEmail(Kind.HOME).formatAddress().equals("fetched4@example.com"));
+    }
+
+    @Test
+    public void summaryProjections() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> {
+            Person.named("Projected Person A")
+                    .with(Kind.HOME, EmailAddress.from("projected@example.com"))
+                    .with(Kind.HOME, PhoneNumber.from("415-555-2001"))
+                    .with(Kind.WORK, PhoneNumber.from("415-555-2002"))
+                    .saveItem();
+            Person.named("Projected Person B").saveItem();
+        });
+
+        Statistics statistics = factory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        List<PersonSummary> results = PersonSummary.like("Projected Person%");
+        assertTrue(results.size() == 2);
+        assertTrue(statistics.getPrepareStatementCount() == 1);
+        assertTrue(statistics.getEntityLoadCount() == 0);
+
+        PersonSummary summary = results.get(0).getName().endsWith("A") ? results.get(0) : results.get(1);
+        assertTrue(summary.getEmail().equals("projected@example.com"));
+        assertTrue(summary.getPhone().equals("415-555-2001"));
+
+        assertTrue(PersonSummary.withPhone(PhoneNumber.from("415-555-2002")).get(0).getKey() == summary.getKey());
+        assertTrue(PersonSummary.withEmail(EmailAddress.from("projected@example.com")).size() == 1);
+        assertTrue(PersonSummary.withHash(Person.named("Projected Person B")).get(0).getEmail() == null);
+
+        KeysetPage<PersonSummary> page = PersonSummary.like("Projected Person%", null, 1);
+        assertTrue(page.getItems().get(0).getName().endsWith("A"));
+        page = PersonSummary.like("Projected Person%", page.getNextCursor(), 1);
+        assertTrue(page.getItems().get(0).getName().endsWith("B"));
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void locatedQueries() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> {
+            Person.named("Located Person A")
+                    .with(Kind.HOME, MailAddress.with("100 Oak St", "Springfield", "IL", "62701"))
+                    .with(Kind.WORK, MailAddress.with("200 Elm St", "Springfield", "IL", "62702"))
+                    .saveItem();
+            Person.named("Located Person B")
+                    .with(Kind.HOME, MailAddress.with("300 Oak St", "Springfield", "IL", "62701"))
+                    .saveItem();
+            Person.named("Located Person C")
+                    .with(Kind.HOME, MailAddress.with("400 Oak St", "Shelbyville", "IL", "62565"))
+                    .saveItem();
+        });
+
+        Statistics statistics = factory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        List<Person> results = Person.locatedLike("Located Person%", "springfield", "62701");
+        assertTrue(results.size() == 2);
+        assertTrue(statistics.getPrepareStatementCount() == 1);
+
+        assertTrue(Person.locatedLike("Located Person%", "", "62702").size() == 1);
+        assertTrue(Person.locatedLike("Located Person%", "S%", null).size() == 3);
+        assertTrue(Person.locatedLike("Located Person%", "Shelbyville", "62701").isEmpty());
+        assertTrue(PersonSummary.locatedLike("Located Person%", "Springfield", "").size() == 2);
+
+        // searches ignore case, as the unlocated searches do
+        assertTrue(Person.searchLocated("located person", "springfield", "62701").size() == 2);
+        assertTrue(PersonSummary.searchLocated("PERSON C", "", "62565").get(0).getName().endsWith("C"));
+        assertTrue(Person.searchLocated("located person", "Shelbyville", "62701").isEmpty());
+
+        KeysetPage<Person> page = Person.locatedLike("Located Person%", "Springfield", "", null, 1);
+        assertTrue(page.getItems().get(0).getName().endsWith("A"));
+        KeysetPage<PersonSummary> last =
+                PersonSummary.locatedLike("Located Person%", "Springfield", "", page.getNextCursor(), 1);
+        assertTrue(last.getItems().get(0).getName().endsWith("B"));
+        assertFalse(last.hasMore());
+    }
+
+    @Test
+    public void nameSearch() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> {
+            Person.named("Vonkellerman Test").saveItem();
+            Person.named("Trigram Kellerman").saveItem();
+            Person.named("Kellerman Trigram").saveItem();
+            Person.named("Otto Kellerman").saveItem();
+            Person.named("Kellerman").saveItem();
+        });
+
+        List<String> names = Person.search("kellerman").stream()
+                .map(Person::getName).collect(Collectors.toList());
+        assertTrue(names.equals(Arrays.asList("Kellerman", "Kellerman Trigram",
+                "Otto Kellerman", "Trigram Kellerman", "Vonkellerman Test")));
+
+        List<PersonSummary> summaries = PersonSummary.search("LERMAN TRI");
+        assertTrue(summaries.size() == 1);
+        assertTrue(summaries.get(0).getName().equals("Kellerman Trigram"));
+
+        assertTrue(Person.search("Otto Kel").size() == 1);
+        assertTrue(Person.search("Kellerman%").size() == 4);
+        assertTrue(transaction.execute(status -> Person.indexAllNames()) == 0);
+
+        transaction.executeWithoutResult(status ->
+                assertTrue(Person.named("Otto Kellerman").findWithHash().removeItem()));
+        assertTrue(Person.search("Otto Kel").isEmpty());
+        assertTrue(Person.search("kellerman").size() == 4);
+
+        transaction.executeWithoutResult(status ->
+                Person.named("Trigram Kellerman").findWithHash().setName("Trigram Renamed"));
+        assertTrue(Person.search("kellerman").size() == 3);
+        assertTrue(Person.search("renamed").get(0).getName().equals("Trigram Renamed"));
+    }
+
+    @Test
+    public void soundsLike() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> {
+            Person.named("John Smith").saveItem();
+            Person.named("Jon Smythe").saveItem();
+            Person.named("Joan Schmidt").saveItem();
+            Person.named("John Jones").saveItem();
+        });
+
+        Statistics statistics = factory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        List<String> names = Person.findSoundsLike("Jon Smyth").stream()
+                .map(Person::getName).collect(Collectors.toList());
+        assertTrue(statistics.getPrepareStatementCount() == 2);
+        assertTrue(names.get(0).equals("Jon Smythe"));
+        assertTrue(names.contains("John Smith"));
+        assertFalse(names.contains("John Jones"));
+
+        assertTrue(Person.findSoundsLike("Schmidt").size() >= 3);
+        assertTrue(Person.findSoundsLike("").isEmpty());
+    }
+
+    @Test
+    public void nearbyPersons() {
+        double[] location = GeoHash.decode(GeoHash.encode(37.7898, -122.3942, GeoHash.Precision));
+        assertTrue(GeoHash.distance(37.7898, -122.3942, location[0], location[1]) < 0.01);
+        assertTrue(PostalCentroids.getInstance().geohash("94105").startsWith("9q8yy"));
+
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> {
+            Person.named("Nearby Mission").with(Kind.HOME, MailAddress.with("2 Mission St", "Anytown", "CA", "94107"))
+                    .saveItem();
+            Person.named("Nearby Market").with(Kind.HOME, MailAddress.with("1 Market St", "Anytown", "CA", "94105"))
+                    .with(Kind.WORK, MailAddress.with("3 Broadway", "Anytown", "NY", "10001")).saveItem();
+            Person.named("Nearby Oakland").with(Kind.HOME, MailAddress.with("4 Oak St", "Anytown", "CA", "94601"))
+                    .saveItem();
+            Person.named("Nearby Palo Alto").with(Kind.HOME, MailAddress.with("5 Alto St", "Anytown", "CA", "94301"))
+                    .saveItem();
+            Person.named("Nearby Unknown").with(Kind.HOME, MailAddress.with("6 Lost St", "Anytown", "CA", "99999"))
+                    .saveItem();
+        });
+
+        assertTrue(nearbyNames("94105", 10).equals(Arrays.asList("Nearby Market", "Nearby Mission")));
+        assertTrue(nearbyNames("94105", 20).equals(
+                Arrays.asList("Nearby Market", "Nearby Mission", "Nearby Oakland")));
+        assertTrue(nearbyNames("94301", 5).equals(Arrays.asList("Nearby Palo Alto")));
+        assertTrue(nearbyNames("10001", 5000).size() == 4); // covered by the empty prefix
+        assertTrue(Person.findNear("99999", 10).isEmpty());
+        assertTrue(transaction.execute(status -> MailAddress.locateAll()) == 0);
+    }
+
+    private static List<String> nearbyNames(String postalCode, double radius) {
+        return Person.findNear(postalCode, radius).stream().map(Person::getName)
+                .filter(name -> name.startsWith("Nearby")).collect(Collectors.toList());
+    }
+
+    @Test
+    public void duplicateClusters() {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> {
+            // duplicates hold separate copies of a mechanism, as if imported without the hash lookup
+            Person.named("Alice Duplicate").with(Kind.HOME, storedCopy(EmailAddress.from("dupalice@example.com")))
+                    .saveItem();
+            Person.named("Alyce Duplicate").with(Kind.WORK, storedCopy(EmailAddress.from("dupalice@example.com")))
+                    .saveItem();
+            Person.named("Robert Twin").with(Kind.HOME, storedCopy(PhoneNumber.from("415-555-3001"))).saveItem();
+            Person.named("Bob Twin").with(Kind.HOME, storedCopy(PhoneNumber.from("415-555-3001"))).saveItem();
+            Person.named("Carla Triple").with(Kind.HOME, storedCopy(PhoneNumber.from("415-555-3002"))).saveItem();
+            Person.named("Karla Triple").with(Kind.HOME, storedCopy(PhoneNumber.from("415-555-3002"))).saveItem();
+            Person.named("Dana Address").with(Kind.HOME, storedCopy(sharedAddress())).saveItem();
+            Person.named("Dana Adress").with(Kind.WORK, storedCopy(sharedAddress())).saveItem();
+        });
+
+        // a tiny run size makes the finder spill and merge sorted runs
+        ArrayList<Set<String>> clusters = new ArrayList<>();
+        transaction.setReadOnly(true);
+        transaction.executeWithoutResult(status -> {
+            try (DuplicateFinder finder = new DuplicateFinder(Person.DuplicateThreshold, 3, 4, 100)) {
+                Person.findDuplicates(finder, keys -> clusters.add(Arrays.stream(keys)
+                        .mapToObj(key -> Person.withKey(key).findItem().getName()).collect(Collectors.toSet())));
+                assertTrue(finder.pairCount() >= 3);
+            }
+        });
+
+        assertTrue(clusters.contains(new HashSet<>(Arrays.asList("Alice Duplicate", "Alyce Duplicate"))));
+        assertTrue(clusters.contains(new HashSet<>(Arrays.asList("Carla Triple", "Karla Triple"))));
+        assertTrue(clusters.contains(new HashSet<>(Arrays.asList("Dana Address", "Dana Adress"))));
+        assertFalse(clusters.stream().anyMatch(names -> names.contains("Robert Twin")));
+
+        try (ExternalSorter sorter = new ExternalSorter(2, 3)) {
+            for (long value = 10; value > 0; value--) {
+                sorter.add(value % 3, value);
+            }
+            assertTrue(sorter.runCount() == 3);
+            Iterator<long[]> sorted = sorter.sorted();
+            long[] prior = sorted.next();
+            while (sorted.hasNext()) {
+                long[] next = sorted.next();
+                assertTrue(ExternalSorter.compare(prior, next) < 0);
+                prior = next;
+            }
+        }
+    }
+
+    private static MailAddress sharedAddress() {
+        return MailAddress.with("3003 Shared St", "Anytown", "CA", "94005");
+    }
+
+    private static <ItemType extends HashedItem> ItemType storedCopy(ItemType item) {
+        item.hashKey();
+        if (item instanceof SurrogatedComposite) {
+            SurrogatedComposite composite = (SurrogatedComposite) item;
+            SurrogatedItem[] components = composite.components();
+            for (int index = 0; index < components.length; index++) {
+                components[index] = components[index].saveItem();
+            }
+            composite.components(components);
+        }
+        CrudRepository<ItemType, Long> store = StorageMechanism.get(item.getClass());
+        return store.save(item);
+    }
+
+    @Test
+    public void nameSearchBenchmark() {
+        int count = Integer.getInteger(BenchmarkSize, 500);
+        ArrayList<Person> batch = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            batch.add(Person.named("Benchmarked Name " + index));
+        }
+
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.executeWithoutResult(status -> Person.saveAll(batch));
+        transaction.setReadOnly(true);
+
+        for (String query : Arrays.asList("Name 12", "Name 377", "Benchmarked")) {
+            Person.like("%" + query + "%");
+            long start = System.nanoTime();
+            Set<Long> likeKeys = transaction.execute(status -> Person.like("%" + query + "%").stream()
+                    .map(Person::getKey).collect(Collectors.toSet()));
+            long likeTime = System.nanoTime() - start;
+
+            Person.search(query);
+            start = System.nanoTime();
+            Set<Long> searchKeys = transaction.execute(status -> Person.search(query).stream()
+                    .map(Person::getKey).collect(Collectors.toSet()));
+            long searchTime = System.nanoTime() - start;
+
+            assertTrue(searchKeys.equals(likeKeys));
+            getLogger().info(String.format("name search '%s' among %d persons: %d found, LIKE %.2f ms, trigrams %.2f ms",
+                    query, count, searchKeys.size(), likeTime / 1e6, searchTime / 1e6));
+        }
+    }
+
+    static final String BenchmarkSize = "axiom.benchmark.persons";
+    static final String AddressBenchmarkSize = "axiom.benchmark.addresses";
+
+    @Test
+    public void addressNormalizing() {
+        List<String> corpus = new ArrayList<>(Arrays.asList(
+                "", "  ", "1234 main st", "1234  MAIN   ST.", "apt #5 / b", "st. john's", "O'NEIL-SMITH",
+                " - leading dash", "tab\tseparated  words", "MC DONALD'S (rear)", "São Paulo", "Straße 12"));
+        String[] streets = {"Main St", "OAK AVENUE", "el camino real", "Martin Luther King, Jr. Blvd.",
+            "N.W. 23rd Pl", "county rd #12", "1/2 Mile Rd"};
+        String[] cities = {"anytown", "SAN FRANCISCO", "st. louis", "Winston-Salem", "coeur d'alene"};
+        int count = Integer.getInteger(AddressBenchmarkSize, 20000);
+        for (int index = 0; corpus.size() < count; index++) {
+            corpus.add((index % 9000 + 100) + " " + streets[index % streets.length]);
+            corpus.add(cities[index % cities.length]);
+        }
+
+        for (String text : corpus) {
+            assertTrue(text, MailAddress.normalizeWords(text).equals(normalizedWithPatterns(text)));
+        }
+
+        for (int pass = 0; pass < 2; pass++) { // the first pass warms up
+            long start = System.nanoTime();
+            for (String text : corpus) {
+                normalizedWithPatterns(text);
+            }
+            long patternTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (String text : corpus) {
+                MailAddress.normalizeWords(text);
+            }
+            long scanTime = System.nanoTime() - start;
+            getLogger().info(String.format("normalized %d texts: patterns %.2f ms, scanner %.2f ms",
+                    corpus.size(), patternTime / 1e6, scanTime / 1e6));
+        }
+
+        MailAddress a = MailAddress.with("1234 main st.", "anytown", "ca", "94005");
+        String formatted = a.formatAddress();
+        assertTrue(formatted.equals("1234 Main St, Anytown, CA 94005"));
+        assertTrue(a.formatAddress() == formatted); // cached
+        assertTrue(a.hashCode() == formatted.hashCode());
+        a.withCity("Othertown");
+        assertTrue(a.formatAddress().equals("1234 Main St, Othertown, CA 94005"));
+        assertFalse(a.equals(MailAddress.with("1234 Main St", "Anytown", "CA", "94005")));
+    }
+
+    private static String normalizedWithPatterns(String text) {
+        return WordUtils.capitalizeFully(StringUtils.defaultString(text).trim())
+                .replaceAll("[\\p{S}\\p{P}&&[^/#]]", "").replaceAll(" +", " ");
+    }
+
+    @Test
+    public void registryLookups() {
+        StorageMechanism.Registry installed = StorageMechanism.Registry.getInstance();
+        assertTrue(installed.getModelStorage(Preferred.class) == installed.getModelStorage(Person.class));
+        assertTrue(installed.getStorageType(Preferred.class) == PersonStorage.class);
+        assertTrue(installed.getModelStorage(Business.class) == null);
+
+        StorageMechanism.Registry empty = StorageMechanism.Registry.of();
+        assertTrue(StorageMechanism.Registry.install(empty) == installed);
+        try {
+            assertTrue(StorageMechanism.get(Person.class) == null);
+        } finally {
+            assertTrue(StorageMechanism.Registry.replace(empty, installed));
+        }
+        assertTrue(StorageMechanism.get(Person.class) != null);
+    }
+
+    /**
+     * A person subtype without its own storage.
+     */
+    static class Preferred extends Person {
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Test
+    public void sharding() {
+        assertTrue(shards.size() == 2);
+        for (int index = 0; index < 8; index++) {
+            Person sample = Person.named("Sharded Person " + index)
+                    .with(Kind.HOME, PhoneNumber.from("415-555-" + (1000 + index)));
+            Person p = shards.save(sample);
+            assertTrue(shards.shardForKey(p.getKey()) == shards.shardFor(p.hashKey()));
+            assertTrue(shards.findById(Person.class, p.getKey()).getName().equals(p.getName()));
+            assertTrue(shards.findHash(Person.class, p.hashKey()).size() == 1);
+        }
+
+        List<Person> results = shards.gather(PersonStorage.class, store -> store.findLike("Sharded Person%"));
+        assertTrue(results.size() == 8);
+    }
+
+    @Test
+    public void shardRebalancing() {
+        HashMap<Long, String> names = new HashMap<>();
+        for (int index = 0; index < 8; index++) {
+            Person sample = Person.named("Misplaced Person " + index)
+                    .with(Kind.HOME, EmailAddress.from("misplaced" + index + "@sample.com"));
+            int wrongShard = 1 - shards.shardFor(sample.hashKey());
+            Person p = shards.within(wrongShard, false, () -> sample.saveItem());
+            names.put(p.getKey(), p.getName());
+        }
+
+        ShardRebalancer<Person> rebalancer =
+                new ShardRebalancer<>(shards, Person.class, p -> Person.fromJSON(p.toJSON())).rebalance();
+        assertTrue(rebalancer.movedCount() >= 8);
+        assertTrue(rebalancer.failedCount() == 0);
+
+        List<Person> results = shards.gather(PersonStorage.class, store -> store.findLike("Misplaced Person%"));
+        assertTrue(results.size() == 8);
+        for (Person p : results) {
+            // a moved person keeps its key, and is still found by it
+            assertTrue(names.get(p.getKey()).equals(p.getName()));
+            assertTrue(shards.shardForKey(p.getKey()) != shards.shardFor(p.hashKey()));
+            assertTrue(shards.findById(Person.class, p.getKey()).getName().equals(p.getName()));
+            assertTrue(p.getContact().getEmail(Kind.HOME) != null);
+        }
+    }
+
+    static final String PrimaryURL = "jdbc:h2:mem:primary";
+    static final String ReplicaURL = "jdbc:h2:mem:replica";
+    static final String MissingURL = "jdbc:h2:mem:missing;IFEXISTS=TRUE";
+
+    private static String connectedURL(DataSource dataSource) throws Exception {
+        try (Connection c = dataSource.getConnection()) {
+            return c.getMetaData().getURL();
+        }
+    }
+
     private Logger getLogger() {
         return LoggerFactory.getLogger(getClass());
     }
@@ -31,18 +31,32 @@ public interface IPersonService {
     public static final String PersonPath = "/persons";
     public static final String PersonIdPath = PersonPath + IdPath;
     public static final String HashedIdPath = PersonPath + "/hash";
+    public static final String StreamPath = PersonPath + "/stream";
+    public static final String NDJSON = "application/x-ndjson";
 
     public static final String Type = "type";
     public static final String Name = "name";
     public static final String City = "city";
     public static final String Zip = "zip";
+    public static final String Limit = "limit";
+    public static final String Cursor = "cursor";
+    public static final String NextCursor = "X-Next-Cursor";
+    public static final String View = "view";
+    public static final String FullView = "full";
+    public static final String SummaryView = "summary";
+    public static final String IdempotencyKey = "Idempotency-Key";
 
     /**
-     * Lists the selected persons.
+     * Lists the selected persons: those whose names contain the given name (ignoring case), best matches first,
+     * or ordered by name when paged. A city or zip selects only the persons with an address there.
+     * A paged list returns the cursor of its next page (if any) in the X-Next-Cursor header.
      *
      * @param name a person full name or name pattern
      * @param city a city name or pattern
      * @param zip a zip code
+     * @param limit a maximum count of persons per page (all persons if zero)
+     * @param cursor locates a page, as returned with the previous page
+     * @param view either full (with contacts) or summary (flat key, name, email, and phone)
      * @return Contains a list of the selected persons.
      */
     @GET
@@ -50,15 +64,38 @@ public interface IPersonService {
     @TypeHint(List.class)
     @Produces({MediaType.APPLICATION_JSON})
     @StatusCodes({
-        @ResponseCode(code = 200, condition = "selected persons")})
+        @ResponseCode(code = 200, condition = "selected persons"),
+        @ResponseCode(code = 400, condition = "malformed cursor")})
+    @ResponseHeaders({
+        @ResponseHeader(name = NextCursor, description = "locates the next page of persons")})
     public Response listPersons(
             @QueryParam(Name) String name,
             @QueryParam(City) String city,
-            @QueryParam(Zip) String zip);
+            @QueryParam(Zip) String zip,
+            @QueryParam(Limit) @DefaultValue("0") int limit,
+            @QueryParam(Cursor) String cursor,
+            @QueryParam(View) @DefaultValue(FullView) String view);
+
+    /**
+     * Streams the selected persons as JSON lines (NDJSON), writing each person as it is read.
+     *
+     * @param name a person full name or name pattern
+     * @return Contains a stream of the selected persons, one per line.
+     */
+    @GET
+    @Path(StreamPath)
+    @TypeHint(Person.class)
+    @Produces({NDJSON})
+    @StatusCodes({
+        @ResponseCode(code = 200, condition = "selected persons")})
+    public Response streamPersons(
+            @QueryParam(Name) String name);
 
     /**
-     * Creates and registers a new Person.
+     * Creates and registers a new Person. With a write-behind log configured, a new person may be accepted and
+     * saved shortly afterwards, in a batch. A retry with the same Idempotency-Key gets the original reply.
      *
+     * @param requestKey a client key unique to this request, or null
      * @param personJSON contains personal details
      * @return Contains the personal IDs usable for retrieval.
      */
@@ -68,14 +105,20 @@ public interface IPersonService {
     @Produces({MediaType.APPLICATION_JSON})
     @Consumes({MediaType.APPLICATION_JSON})
     @StatusCodes({
-        @ResponseCode(code = 201, condition = "created a person")})
+        @ResponseCode(code = 201, condition = "created a person"),
+        @ResponseCode(code = 202, condition = "accepted a person, saved shortly"),
+        @ResponseCode(code = 400, condition = "invalid person (write-behind only)"),
+        @ResponseCode(code = 409, condition = "a request with the same idempotency key is in progress"),
+        @ResponseCode(code = 422, condition = "the idempotency key was used with other personal details")})
     public Response createPerson(
+            @HeaderParam(IdempotencyKey) String requestKey,
             @TypeHint(Person.class) String personJSON);
 
     /**
-     * Saves changes to an existing Person.
+     * Saves changes to an existing Person. A retry with the same Idempotency-Key gets the original reply.
      *
      * @param personID identifies a Person
+     * @param requestKey a client key unique to this request, or null
      * @param personJSON contains personal details
      * @return Contains updated details for a Person.
      */
@@ -86,9 +129,12 @@ public interface IPersonService {
     @Consumes({MediaType.APPLICATION_JSON})
     @StatusCodes({
         @ResponseCode(code = 200, condition = "saved a person"),
-        @ResponseCode(code = 410, condition = "missing person")})
+        @ResponseCode(code = 409, condition = "mismatched person, or its idempotency key is in use"),
+        @ResponseCode(code = 410, condition = "missing person"),
+        @ResponseCode(code = 422, condition = "the idempotency key was used with other personal details")})
     public Response savePerson(
             @PathParam(ValueMap.ID) long personID,
+            @HeaderParam(IdempotencyKey) String requestKey,
             @TypeHint(Person.class) String personJSON);
 
     /**
@@ -112,6 +158,7 @@ public interface IPersonService {
      *
      * @param idType indicates a kind of ID
      * @param personID identifies a Person
+     * @param view either full (with contacts) or summary (flat key, name, email, and phone)
      * @return Contains the details of a Person (if registered).
      */
     @GET
@@ -123,7 +170,8 @@ public interface IPersonService {
         @ResponseCode(code = 410, condition = "missing person")})
     public Response getPersonWithHash(
             @QueryParam(Type) Contact.Type idType,
-            @QueryParam(ValueMap.ID) String personID);
+            @QueryParam(ValueMap.ID) String personID,
+            @QueryParam(View) @DefaultValue(FullView) String view);
 
     /**
      * Deletes a registered Person.
@@ -15,21 +15,37 @@
  */
 package org.axiom_tools.services;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import javax.ws.rs.Path;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import org.axiom_tools.codecs.ModelCodec;
 import org.axiom_tools.codecs.ValueMap;
 import org.axiom_tools.domain.Contact;
 import org.axiom_tools.domain.EmailAddress;
 import org.springframework.stereotype.Service;
 
 import org.axiom_tools.domain.Person;
+import org.axiom_tools.domain.PersonSummary;
 import org.axiom_tools.domain.PhoneNumber;
 import org.axiom_tools.faces.IPersonService;
+import org.axiom_tools.storage.ContentHash;
+import org.axiom_tools.storage.Hashed;
+import org.axiom_tools.storage.IdempotencyStore;
+import org.axiom_tools.storage.KeysetPage;
 import org.axiom_tools.storage.StorageMechanism;
+import org.axiom_tools.storage.WriteBehindQueue;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * A service for maintaining Persons and their Contact information.
@@ -42,26 +58,135 @@ public class PersonFacade implements IPersonService {
 
     private static final String Empty = "";
     private static final String Wild = "%";
+    private static final String Blank = " ";
+    private static final String CreateScope = "POST " + PersonPath + Blank;
+    private static final String SaveScope = "PUT " + PersonPath + "/";
+    private static final int UnprocessableEntity = 422;
+    private static final int ServerError = 500;
 
     @Autowired
     private StorageMechanism.Registry registry;
 
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private IdempotencyStore idempotencyStore;
+
+    @Override
+    @Transactional(readOnly = true)
+    public Response listPersons(String name, String city, String zip, int limit, String cursor, String view) {
+        boolean summary = SummaryView.equals(view);
+        boolean located = !(isBlank(city) && isBlank(zip));
+        if (limit < 1) {
+            List<?> results;
+            if (located) {
+                results = summary
+                        ? PersonSummary.searchLocated(name, city, zip)
+                        : Person.searchLocated(name, city, zip);
+            } else {
+                results = summary ? PersonSummary.search(name) : Person.search(name);
+            }
+            return Response.ok(results).build();
+        }
+
+        KeysetPage<?> page;
+        try {
+            if (summary) {
+                page = located
+                        ? PersonSummary.locatedLike(Wild + name + Wild, city, zip, cursor, limit)
+                        : PersonSummary.like(Wild + name + Wild, cursor, limit);
+            } else {
+                // a page is read without its contacts, so load them (in batches) before the transaction ends
+                KeysetPage<Person> persons = located
+                        ? Person.locatedLike(Wild + name + Wild, city, zip, cursor, limit)
+                        : Person.like(Wild + name + Wild, cursor, limit);
+                Person.loadContacts(persons.getItems());
+                page = persons;
+            }
+        } catch (IllegalArgumentException ex) {
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+
+        Response.ResponseBuilder result = Response.ok(page.getItems());
+        if (page.hasMore()) {
+            result.header(NextCursor, page.getNextCursor());
+        }
+        return result.build();
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
     @Override
-    public Response listPersons(String name, String city, String zip) {
-        List<Person> results = Person.like(Wild + name + Wild);
-        return Response.ok(results).build();
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Response streamPersons(String name) {
+        // the persons are read while the response is written, so within a transaction of their own
+        StreamingOutput output = stream -> {
+            TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+            transaction.setReadOnly(true);
+            try {
+                transaction.executeWithoutResult(status -> {
+                    try (Stream<Person> results = Person.streamLike(Wild + name + Wild)) {
+                        ModelCodec.writeJSONLines(results, stream);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        };
+        return Response.ok(output, NDJSON).build();
     }
 
     @Override
-    public Response createPerson(String personJSON) {
-        Person sample = Person.fromJSON(personJSON);
-        Person p = sample.saveItem();
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Response createPerson(String requestKey, String personJSON) {
+        // a retry is answered from the idempotency store, without parsing its body or opening a transaction
+        if (isBlank(requestKey)) {
+            return createPerson(personJSON);
+        }
+        return performOnce(CreateScope + requestKey, personJSON, () -> createPerson(personJSON));
+    }
+
+    private Response createPerson(String personJSON) {
+        WriteBehindQueue<Person> queue = WriteBehindQueue.forType(Person.class);
+        if (queue != null) {
+            // a queued person gets saved later, so it must be valid now
+            Person sample = Person.fromJSON(personJSON);
+            if (sample.validate().length > 0) {
+                return Response.status(Status.BAD_REQUEST).build();
+            }
+
+            long key = queue.offer(sample);
+            if (key > 0) {
+                return Response.accepted(ValueMap.withID(key).toJSON()).build();
+            }
+        }
+
+        // a retry (with the person parsed anew) finds any new email host saved concurrently by another request
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        Person p = Hashed.saveRetried(transaction, () -> Person.fromJSON(personJSON).saveItem());
         ValueMap result = ValueMap.withID(p.getKey());
         return Response.ok(result.toJSON()).build();
     }
 
     @Override
-    public Response savePerson(long personID, String personJSON) {
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Response savePerson(long personID, String requestKey, String personJSON) {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        if (isBlank(requestKey)) {
+            return Hashed.saveRetried(transaction, () -> savePerson(personID, personJSON));
+        }
+
+        // the reply is encoded within the transaction, while its person can still load its contact
+        return performOnce(SaveScope + personID + Blank + requestKey, personJSON,
+                () -> Hashed.saveRetried(transaction, () -> encodeEntity(savePerson(personID, personJSON))));
+    }
+
+    private Response savePerson(long personID, String personJSON) {
         Person sample = Person.fromJSON(personJSON);
         if (sample.getKey() != personID) {
             return Response.status(Status.CONFLICT).build();
@@ -76,7 +201,56 @@ public class PersonFacade implements IPersonService {
         return Response.ok(p).build();
     }
 
+    /**
+     * Performs a request once for a given idempotency key, and answers any retries with the stored reply.
+     */
+    private Response performOnce(String requestKey, String body, Supplier<Response> work) {
+        long fingerprint = ContentHash.of(body);
+        IdempotencyStore.Reply prior = idempotencyStore.reserve(requestKey, fingerprint);
+        if (prior != null) {
+            if (prior.isPending()) {
+                return Response.status(Status.CONFLICT).build();
+            }
+            if (!prior.matches(fingerprint)) {
+                return Response.status(UnprocessableEntity).build();
+            }
+            return replay(prior);
+        }
+
+        Response result;
+        try {
+            result = encodeEntity(work.get());
+        } catch (RuntimeException ex) {
+            idempotencyStore.release(requestKey);
+            throw ex;
+        }
+
+        if (result.getStatus() >= ServerError) {
+            idempotencyStore.release(requestKey); // a failure may be retried
+        } else {
+            idempotencyStore.complete(requestKey, fingerprint, result.getStatus(), (String) result.getEntity());
+        }
+        return result;
+    }
+
+    private static Response encodeEntity(Response response) {
+        Object entity = response.getEntity();
+        if (entity == null || entity instanceof String) {
+            return response;
+        }
+        return Response.fromResponse(response).entity(ModelCodec.from(entity).toJSON()).build();
+    }
+
+    private static Response replay(IdempotencyStore.Reply reply) {
+        Response.ResponseBuilder result = Response.status(reply.getStatus());
+        if (reply.getBody() != null) {
+            result.entity(reply.getBody()).type(MediaType.APPLICATION_JSON);
+        }
+        return result.build();
+    }
+
     @Override
+    @Transactional(readOnly = true)
     public Response getPerson(long personID) {
         Person p = Person.withKey(personID).findItem();
         if (p == null) {
@@ -88,7 +262,12 @@ public class PersonFacade implements IPersonService {
     }
 
     @Override
-    public Response getPersonWithHash(Contact.Type idType, String personID) {
+    @Transactional(readOnly = true)
+    public Response getPersonWithHash(Contact.Type idType, String personID, String view) {
+        if (SummaryView.equals(view)) {
+            return Response.ok(summarize(idType, personID)).build();
+        }
+
         switch (idType) {
             case hash: {
                 Person result = Person.named(personID).findWithHash();
@@ -109,6 +288,18 @@ public class PersonFacade implements IPersonService {
         return Response.ok(Arrays.asList(results)).build();
     }
 
+    private static List<PersonSummary> summarize(Contact.Type idType, String personID) {
+        switch (idType) {
+            case hash:
+                return PersonSummary.withHash(Person.named(personID));
+            case email:
+                return PersonSummary.withEmail(EmailAddress.from(personID));
+            case phone:
+                return PersonSummary.withPhone(PhoneNumber.from(personID));
+        }
+        return new ArrayList<>();
+    }
+
     @Override
     public Response deletePerson(long personID) {
         Person p = Person.withKey(personID).findItem();
@@ -16,7 +16,9 @@
 package org.axiom_tools.services;
 
 import java.util.*;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import org.apache.cxf.jaxrs.client.WebClient;
 import org.axiom_tools.codecs.ValueMap;
 
 import org.junit.*;
@@ -75,10 +77,18 @@ public class ServiceTest {
             .with(HOME, createSamplePhone());
 
         sample.describe();
-        Response r = getService().createPerson(sample.toJSON());
+        String requestKey = UUID.randomUUID().toString();
+        Response r = getService().createPerson(requestKey, sample.toJSON());
         assertTrue(r.getStatus() == 200);
         Integer idA = ValueMap.fromJSON(readJSON(r)).getValue(ValueMap.ID);
 
+        r = getService().createPerson(requestKey, sample.toJSON());
+        assertTrue(r.getStatus() == 200);
+        assertTrue(idA.equals(ValueMap.fromJSON(readJSON(r)).getValue(ValueMap.ID)));
+
+        r = getService().createPerson(requestKey, Person.named("George Otherman").toJSON());
+        assertTrue(r.getStatus() == 422);
+
         r = getService().getPerson(idA);
         assertTrue(r.getStatus() == 200);
         Person p = Person.fromJSON(readJSON(r));
@@ -86,25 +96,29 @@ public class ServiceTest {
         p.describe();
 
         PhoneNumber ph = p.getContact().getPhone(HOME);
-        r = getService().getPersonWithHash(Type.phone, ph.formatNumber());
+        r = getService().getPersonWithHash(Type.phone, ph.formatNumber(), IPersonService.FullView);
         assertTrue(r.getStatus() == 200);
         List<Person> results = Person.listFromJSON(readJSON(r));
         assertFalse(results.isEmpty());
 
         EmailAddress em = p.getContact().getEmail(HOME);
-        r = getService().getPersonWithHash(Type.email, em.formatAddress());
+        r = getService().getPersonWithHash(Type.email, em.formatAddress(), IPersonService.FullView);
         assertTrue(r.getStatus() == 200);
         results = Person.listFromJSON(readJSON(r));
         assertFalse(results.isEmpty());
 
-        r = getService().getPersonWithHash(Type.hash, p.getName());
+        r = getService().getPersonWithHash(Type.hash, p.getName(), IPersonService.FullView);
         assertTrue(r.getStatus() == 200);
         results = Person.listFromJSON(readJSON(r));
         assertFalse(results.isEmpty());
 
+        r = getService().getPersonWithHash(Type.email, em.formatAddress(), IPersonService.SummaryView);
+        assertTrue(r.getStatus() == 200);
+        assertTrue(readJSON(r).contains(ph.formatNumber()));
+
         MailAddress a = p.getContact().getAddress(HOME);
         p.getContact().withAddress(HOME, a.withCity("Sometown"));
-        r = getService().savePerson(p.getKey(), p.toJSON());
+        r = getService().savePerson(p.getKey(), null, p.toJSON());
         assertTrue(r.getStatus() == 200);
 
         p = Person.fromJSON(readJSON(r));
@@ -116,21 +130,41 @@ public class ServiceTest {
             .with(HOME, createSampleAddress("4321 Main St"))
             .with(HOME, PhoneNumber.from("415-889-9988"));
 
-        r = getService().createPerson(simple.toJSON());
+        r = getService().createPerson(null, simple.toJSON());
         assertTrue(r.getStatus() == 200);
         Integer idB = ValueMap.fromJSON(readJSON(r)).getValue(ValueMap.ID);
 
-        r = getService().listPersons("George", "", "94005");
+        r = getService().listPersons("George", "", "94005", 0, null, IPersonService.FullView);
         assertTrue(r.getStatus() == 200);
 
         results = Person.listFromJSON(readJSON(r));
         assertFalse(results.isEmpty());
         getLogger().info("found " + results.size() + " matches");
 
+        r = getService().listPersons("George", "Anytown", "94006", 0, null, IPersonService.FullView);
+        assertTrue(r.getStatus() == 200);
+        assertTrue(Person.listFromJSON(readJSON(r)).isEmpty());
+
+        r = streamPersons("George");
+        assertTrue(r.getStatus() == 200);
+        String[] lines = readJSON(r).split("\n");
+        assertTrue(lines.length == results.size());
+        assertFalse(Person.fromJSON(lines[0]) == null);
+
+        r = getService().listPersons("George", "", "94005", 1, null, IPersonService.FullView);
+        assertTrue(r.getStatus() == 200);
+        assertTrue(Person.listFromJSON(readJSON(r)).size() == 1);
+
+        String cursor = r.getHeaderString(IPersonService.NextCursor);
+        assertFalse(cursor == null);
+        r = getService().listPersons("George", "", "94005", 1, cursor, IPersonService.SummaryView);
+        assertTrue(r.getStatus() == 200);
+        assertTrue(Person.listFromJSON(readJSON(r)).size() == 1);
+
         getService().deletePerson(idB);
         getService().deletePerson(idA);
 
-        r = getService().listPersons("George", "", "94005");
+        r = getService().listPersons("George", "", "94005", 0, null, IPersonService.FullView);
         assertTrue(r.getStatus() == 200);
         assertTrue(Person.listFromJSON(readJSON(r)).isEmpty());
     }
@@ -147,6 +181,13 @@ public class ServiceTest {
         return PhoneNumber.from("415-888-8899");
     }
     
+    private Response streamPersons(String name) {
+        // the shared client accepts only JSON, while the stream produces JSON lines
+        return WebClient.fromClient(WebClient.client(getService()))
+                .path(IPersonService.StreamPath).query(IPersonService.Name, name)
+                .replaceHeader(HttpHeaders.ACCEPT, IPersonService.NDJSON).get();
+    }
+
     private String readJSON(Response r) {
         return r.readEntity(String.class);
     }
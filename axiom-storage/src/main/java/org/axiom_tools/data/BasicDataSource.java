@@ -12,10 +12,24 @@
  */
 package org.axiom_tools.data;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import javax.sql.DataSource;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.axiom_tools.storage.IdempotencyStore;
+import org.axiom_tools.storage.ShardSet;
+import org.axiom_tools.storage.StorageMechanism;
+import org.axiom_tools.storage.SurrogateKeyGenerator;
+import org.axiom_tools.storage.WriteBehindLog;
+import org.slf4j.Logger;
 import org.springframework.context.annotation.Bean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 /**
  * Abstract data source.
@@ -25,8 +39,16 @@ import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 public abstract class BasicDataSource {
 
     public static final String Comma = ",";
+    public static final String Equals = "=";
+    public static final String Dot = ".";
     public static final String HibernateDialect = "hibernate.dialect";
     public static final String HibernateCodeDDL = "hibernate.hbm2ddl.auto";
+    public static final String HibernateBatchSize = "hibernate.jdbc.batch_size";
+    public static final String HibernateOrderInserts = "hibernate.order_inserts";
+    public static final String HibernateOrderUpdates = "hibernate.order_updates";
+    public static final String HibernateBatchVersioned = "hibernate.jdbc.batch_versioned_data";
+    public static final String HibernatePlanCacheSize = "hibernate.query.plan_cache_max_size";
+    public static final String HibernateStatistics = "hibernate.generate_statistics";
 
     @Bean
     public static PropertySourcesPlaceholderConfigurer propertyReplacer() {
@@ -42,16 +64,351 @@ public abstract class BasicDataSource {
     @Value("${db.model.packages}")
     private String modelPackages;
 
+    @Value("${db.batch.size:50}")
+    private int batchSize;
+
+    @Value("${db.query.plan.cache.size:2048}")
+    private int planCacheSize;
+
+    @Value("${db.id.optimizer:pooled-lo}")
+    private String keyOptimizer;
+
+    @Value("${db.id.allocation.size:50}")
+    private int allocationSize;
+
+    @Value("${db.id.allocations:}")
+    private String allocations;
+
+    @Value("${db.pool.enabled:false}")
+    private boolean poolEnabled;
+
+    @Value("${db.pool.name:axiom-pool}")
+    private String poolName;
+
+    @Value("${db.pool.min.idle:2}")
+    private int poolMinimumIdle;
+
+    @Value("${db.pool.max.size:10}")
+    private int poolMaximumSize;
+
+    @Value("${db.pool.idle.timeout:600000}")
+    private long poolIdleTimeout;
+
+    @Value("${db.pool.validation.query:}")
+    private String poolValidationQuery;
+
+    @Value("${db.pool.statement.cache:0}")
+    private int statementCacheSize;
+
+    @Value("${${db.type}.db.statement.cache.property:}")
+    private String statementCacheProperty;
+
+    @Value("${db.replica.urls:}")
+    private String replicaURLs;
+
+    @Value("${db.replica.retry.interval:30000}")
+    private long replicaRetryInterval;
+
+    @Value("${db.shard.urls:}")
+    private String shardURLs;
+
+    @Value("${db.hash.filters:false}")
+    private boolean hashFilters;
+
+    @Value("${db.stream.clear.interval:500}")
+    private int streamClearInterval;
+
+    @Value("${db.statistics:false}")
+    private boolean statistics;
+
+    @Value("${db.postal.centroids:}")
+    private String postalCentroids;
+
+    @Value("${db.write.behind.log:}")
+    private String writeBehindLog;
+
+    @Value("${db.write.behind.capacity:64}")
+    private int writeBehindCapacity;
+
+    @Value("${db.write.behind.forced:false}")
+    private boolean writeBehindForced;
+
+    @Value("${db.write.behind.batch:500}")
+    private int writeBehindBatch;
+
+    @Value("${db.write.behind.interval:50}")
+    private long writeBehindInterval;
+
+    @Value("${db.idempotency.capacity:10000}")
+    private int idempotencyCapacity;
+
+    @Value("${db.idempotency.ttl:86400}")
+    private long idempotencyTimeToLive;
+
+    @Value("${db.idempotency.file:}")
+    private String idempotencyFile;
+
     public String[] modelPackages() {
         return modelPackages.split(Comma);
     }
 
+    /**
+     * Indicates whether to guard hash searches with filters loaded at startup.
+     * Enable only when this process is the sole writer of the hashed items.
+     *
+     * @return whether to use hash filters
+     */
+    public boolean usesHashFilters() {
+        return hashFilters;
+    }
+
+    /**
+     * The count of items streamed between clearing the persistence context.
+     *
+     * @return a count
+     */
+    public int streamClearInterval() {
+        return streamClearInterval;
+    }
+
+    /**
+     * The location of a postal code centroid file (CSV lines: code,latitude,longitude), either a file path or a
+     * class path resource (e.g., classpath:postal-centroids.csv).
+     *
+     * @return a file path or resource location, or empty if none is configured
+     */
+    public String postalCentroids() {
+        return postalCentroids;
+    }
+
+    /**
+     * Indicates whether to accept new persons into a write-behind log, saving them later in batches.
+     * Requires hash filters, since only the sole writer can use a local log.
+     *
+     * @return whether to use a write-behind log
+     * @exception IllegalStateException if a log is configured without hash filters
+     */
+    public boolean usesWriteBehind() {
+        if (writeBehindLog.trim().isEmpty()) {
+            return false;
+        }
+
+        if (!usesHashFilters()) {
+            throw new IllegalStateException(String.format(WriteBehindUnfiltered, writeBehindLog.trim()));
+        }
+        return true;
+    }
+
+    static final String WriteBehindUnfiltered = "write-behind log %s needs db.hash.filters=true";
+
+    /**
+     * Opens the configured write-behind log (sized in megabytes).
+     *
+     * @return a new WriteBehindLog
+     */
+    public WriteBehindLog openWriteBehindLog() {
+        int capacity = (int) Math.min(Integer.MAX_VALUE, (long) writeBehindCapacity << 20);
+        return WriteBehindLog.open(Paths.get(writeBehindLog.trim()), capacity, writeBehindForced);
+    }
+
+    /**
+     * The maximum count of logged items saved together.
+     *
+     * @return a count
+     */
+    public int writeBehindBatch() {
+        return writeBehindBatch;
+    }
+
+    /**
+     * The milliseconds between flushes of the write-behind log.
+     *
+     * @return a count of milliseconds
+     */
+    public long writeBehindInterval() {
+        return writeBehindInterval;
+    }
+
+    /**
+     * Opens the configured store of the replies to requests with idempotency keys (kept for a time to live given in
+     * seconds, and saved in a local file if one is configured).
+     *
+     * @return a new IdempotencyStore
+     */
+    public IdempotencyStore openIdempotencyStore() {
+        return IdempotencyStore.open(idempotencyCapacity, idempotencyTimeToLive * 1000, idempotencyFile);
+    }
+
+    /**
+     * Indicates whether to pool the database connections.
+     *
+     * @return whether to pool connections
+     */
+    public boolean usesPool() {
+        return poolEnabled;
+    }
+
+    /**
+     * Lists the configured replica database URLs.
+     *
+     * @return some JDBC URLs
+     */
+    public List<String> replicaURLs() {
+        return splitURLs(replicaURLs);
+    }
+
+    private static List<String> splitURLs(String urls) {
+        ArrayList<String> results = new ArrayList<>();
+        for (String url : urls.split(Comma)) {
+            if (!url.trim().isEmpty()) {
+                results.add(url.trim());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Lists the configured shard database URLs.
+     *
+     * @return some JDBC URLs
+     */
+    public List<String> shardURLs() {
+        return splitURLs(shardURLs);
+    }
+
+    /**
+     * Builds the configured shards, whose stores mirror those of a given registry.
+     *
+     * @param driverClassName a JDBC driver class name
+     * @param username a database user name
+     * @param password a database password
+     * @param registry a storage registry
+     * @return a new ShardSet, empty if no shards are configured
+     */
+    protected ShardSet buildShards(
+            String driverClassName, String username, String password, StorageMechanism.Registry registry) {
+        List<String> urls = shardURLs();
+        ArrayList<DataSource> shards = new ArrayList<>();
+        for (int index = 0; index < urls.size(); index++) {
+            shards.add(buildConnections(poolName + ShardSuffix + index,
+                    driverClassName, urls.get(index), username, password));
+        }
+        return ShardSet.with(shards, modelPackages(), additionalProperties(), registry);
+    }
+
+    private static final String ShardSuffix = "-shard-";
+
+    /**
+     * Builds a data source for a database, pooling its connections if so configured.
+     * When replicas are configured, read-only transactions are routed to them.
+     *
+     * @param driverClassName a JDBC driver class name
+     * @param databaseURL a JDBC URL
+     * @param username a database user name
+     * @param password a database password
+     * @return a new DataSource
+     */
+    protected DataSource buildDataSource(
+            String driverClassName, String databaseURL, String username, String password) {
+        DataSource primary = buildConnections(poolName, driverClassName, databaseURL, username, password);
+        List<String> urls = replicaURLs();
+        if (urls.isEmpty()) {
+            return primary;
+        }
+
+        ArrayList<DataSource> replicas = new ArrayList<>();
+        for (int index = 0; index < urls.size(); index++) {
+            replicas.add(buildConnections(poolName + ReplicaSuffix + index,
+                    driverClassName, urls.get(index), username, password));
+        }
+        return ReplicaRoutingDataSource.lazily(primary, replicas, replicaRetryInterval);
+    }
+
+    private static final String ReplicaSuffix = "-replica-";
+
+    private DataSource buildConnections(String name,
+            String driverClassName, String databaseURL, String username, String password) {
+        if (!poolEnabled) {
+            DriverManagerDataSource dataSource = new DriverManagerDataSource();
+            dataSource.setDriverClassName(driverClassName);
+            dataSource.setUsername(username);
+            dataSource.setPassword(password);
+            dataSource.setUrl(databaseURL);
+            return dataSource;
+        }
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setDriverClassName(driverClassName);
+        config.setJdbcUrl(databaseURL);
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMinimumIdle(poolMinimumIdle);
+        config.setMaximumPoolSize(poolMaximumSize);
+        config.setIdleTimeout(poolIdleTimeout);
+        config.setRegisterMbeans(true);
+        if (!poolValidationQuery.isEmpty()) {
+            config.setConnectionTestQuery(poolValidationQuery);
+        }
+        if (statementCacheSize > 0 && !statementCacheProperty.isEmpty()) {
+            config.addDataSourceProperty(statementCacheProperty, String.valueOf(statementCacheSize));
+        }
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * Logs the connection counts of a pooled data source, or those of each routed data source.
+     *
+     * @param dataSource a data source
+     * @param log a logger
+     */
+    public static void describePool(DataSource dataSource, Logger log) {
+        if (dataSource instanceof ReplicaRoutingDataSource.Lazy) {
+            ReplicaRoutingDataSource router = ((ReplicaRoutingDataSource.Lazy) dataSource).getRouter();
+            for (DataSource routed : router.dataSources()) {
+                describePool(routed, log);
+            }
+            return;
+        }
+
+        if (!(dataSource instanceof HikariDataSource)) {
+            return;
+        }
+
+        HikariDataSource pool = (HikariDataSource) dataSource;
+        HikariPoolMXBean metrics = pool.getHikariPoolMXBean();
+        if (metrics != null) {
+            log.info(String.format(PoolDescription, pool.getPoolName(),
+                    metrics.getActiveConnections(), metrics.getIdleConnections(),
+                    metrics.getTotalConnections(), metrics.getThreadsAwaitingConnection()));
+        }
+    }
+
+    static final String PoolDescription = "pool %s active = %d, idle = %d, total = %d, waiting = %d";
+
     public Properties additionalProperties() {
         Properties properties = new Properties();
         properties.setProperty(HibernateDialect, databaseDialect);
         if (!codeGeneration.isEmpty()) {
             properties.setProperty(HibernateCodeDDL, codeGeneration);
         }
+        if (batchSize > 1) {
+            properties.setProperty(HibernateBatchSize, String.valueOf(batchSize));
+            properties.setProperty(HibernateOrderInserts, Boolean.TRUE.toString());
+            properties.setProperty(HibernateOrderUpdates, Boolean.TRUE.toString());
+            properties.setProperty(HibernateBatchVersioned, Boolean.TRUE.toString());
+        }
+        properties.setProperty(HibernatePlanCacheSize, String.valueOf(planCacheSize));
+        properties.setProperty(HibernateStatistics, String.valueOf(statistics));
+        properties.setProperty(SurrogateKeyGenerator.Interceptor, SurrogateKeyGenerator.AssignedKeys.class.getName());
+        properties.setProperty(SurrogateKeyGenerator.Optimizer, keyOptimizer);
+        properties.setProperty(SurrogateKeyGenerator.AllocationSize, String.valueOf(allocationSize));
+        for (String allocation : allocations.split(Comma)) {
+            String[] parts = allocation.split(Equals);
+            if (parts.length == 2) {
+                properties.setProperty(SurrogateKeyGenerator.AllocationSize + Dot + parts[0].trim(), parts[1].trim());
+            }
+        }
         return properties;
     }
 
@@ -18,8 +18,9 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
+import org.axiom_tools.storage.ShardSet;
+import org.axiom_tools.storage.StorageMechanism;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import static org.axiom_tools.data.DirectDataSource.DatabaseConfiguration;
@@ -53,12 +54,17 @@ public class DirectDataSource extends BasicDataSource {
         getLogger().info(String.format(DirectDriver, driverClassName));
         getLogger().info(String.format(DirectURL, databaseURL));
 
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setDriverClassName(driverClassName);
-        dataSource.setUsername(databaseUsername);
-        dataSource.setPassword(databasePassword);
-        dataSource.setUrl(databaseURL);
-        return dataSource;
+        return buildDataSource(driverClassName, databaseURL, databaseUsername, databasePassword);
+    }
+
+    /**
+     * Builds the configured shards.
+     *
+     * @param registry a storage registry
+     * @return a new ShardSet, empty if no shards are configured
+     */
+    public ShardSet shards(StorageMechanism.Registry registry) {
+        return buildShards(driverClassName, databaseUsername, databasePassword, registry);
     }
 
     private Logger getLogger() {
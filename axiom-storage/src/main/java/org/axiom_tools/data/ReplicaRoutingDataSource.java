@@ -0,0 +1,227 @@
+/**
+ * Copyright 2015,2016 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.data;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Routes the connections of read-only transactions to replica databases, and all others to the primary database.
+ *
+ * <h4>ReplicaRoutingDataSource Responsibilities:</h4>
+ * <ul>
+ * <li>balances read-only connections across the healthy replicas (round robin)</li>
+ * <li>marks a replica down when it fails to connect, and retries it after an interval</li>
+ * <li>falls back to the primary when no replica can connect</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>wraps this router with a LazyConnectionDataSourceProxy (see lazily), so that the transaction read-only
+ * flag is known when a connection is first needed</li>
+ * <li>marks query-only transactions read-only</li>
+ * </ul>
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource implements AutoCloseable {
+
+    private static final Logger Log = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final long retryInterval;
+
+    /**
+     * Returns a lazy connection proxy around a new router.
+     *
+     * @param primary a primary data source
+     * @param replicas some replica data sources
+     * @param retryInterval the milliseconds to wait before retrying a failed replica
+     * @return a new DataSource
+     */
+    public static DataSource lazily(DataSource primary, List<DataSource> replicas, long retryInterval) {
+        return new Lazy(new ReplicaRoutingDataSource(primary, replicas, retryInterval));
+    }
+
+    /**
+     * Constructs a new ReplicaRoutingDataSource.
+     *
+     * @param primary a primary data source
+     * @param replicas some replica data sources
+     * @param retryInterval the milliseconds to wait before retrying a failed replica
+     */
+    public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, long retryInterval) {
+        this.primary = primary;
+        this.retryInterval = retryInterval;
+        for (DataSource replica : replicas) {
+            this.replicas.add(new Replica(replica));
+        }
+    }
+
+    /**
+     * The primary data source.
+     *
+     * @return a DataSource
+     */
+    public DataSource getPrimary() {
+        return this.primary;
+    }
+
+    /**
+     * Lists the primary and replica data sources.
+     *
+     * @return some DataSources
+     */
+    public List<DataSource> dataSources() {
+        ArrayList<DataSource> results = new ArrayList<>();
+        results.add(this.primary);
+        for (Replica replica : this.replicas) {
+            results.add(replica.dataSource);
+        }
+        return results;
+    }
+
+    /**
+     * Closes the primary and replica data sources, if they can be closed.
+     *
+     * @throws Exception if any fails to close
+     */
+    @Override
+    public void close() throws Exception {
+        for (DataSource dataSource : dataSources()) {
+            if (dataSource instanceof AutoCloseable) {
+                ((AutoCloseable) dataSource).close();
+            }
+        }
+    }
+
+    /**
+     * A count of the replicas currently considered healthy.
+     *
+     * @return a count
+     */
+    public int healthyCount() {
+        long now = System.currentTimeMillis();
+        int result = 0;
+        for (Replica replica : this.replicas) {
+            if (replica.isAvailable(now)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return isReadOnly() ? readConnection(null, null) : this.primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return isReadOnly()
+                ? readConnection(username, password)
+                : this.primary.getConnection(username, password);
+    }
+
+    private static boolean isReadOnly() {
+        return TransactionSynchronizationManager.isActualTransactionActive()
+                && TransactionSynchronizationManager.isCurrentTransactionReadOnly();
+    }
+
+    private Connection readConnection(String username, String password) throws SQLException {
+        int count = this.replicas.size();
+        long now = System.currentTimeMillis();
+        int start = Math.floorMod(this.nextReplica.getAndIncrement(), Math.max(1, count));
+        for (int index = 0; index < count; index++) {
+            Replica replica = this.replicas.get((start + index) % count);
+            if (replica.isAvailable(now)) {
+                try {
+                    return replica.getConnection(username, password);
+                } catch (SQLException ex) {
+                    replica.markDown(now + this.retryInterval);
+                    Log.warn(String.format(ReplicaFailed, (start + index) % count, ex.getMessage()));
+                }
+            }
+        }
+
+        // no replica available, so read from the primary
+        return username == null
+                ? this.primary.getConnection()
+                : this.primary.getConnection(username, password);
+    }
+
+    static final String ReplicaFailed = "replica %d marked down: %s";
+
+    /**
+     * A lazy connection proxy that closes its router.
+     */
+    public static final class Lazy extends LazyConnectionDataSourceProxy implements AutoCloseable {
+
+        Lazy(ReplicaRoutingDataSource router) {
+            super(router);
+        }
+
+        /**
+         * The wrapped router.
+         *
+         * @return a ReplicaRoutingDataSource
+         */
+        public ReplicaRoutingDataSource getRouter() {
+            return (ReplicaRoutingDataSource) getTargetDataSource();
+        }
+
+        @Override
+        public void close() throws Exception {
+            getRouter().close();
+        }
+
+    } // Lazy
+
+    /**
+     * A replica data source and its health.
+     */
+    private static final class Replica {
+
+        private final DataSource dataSource;
+        private final AtomicLong downUntil = new AtomicLong();
+
+        Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        boolean isAvailable(long now) {
+            return this.downUntil.get() <= now;
+        }
+
+        void markDown(long until) {
+            this.downUntil.set(until);
+        }
+
+        Connection getConnection(String username, String password) throws SQLException {
+            return username == null
+                    ? this.dataSource.getConnection()
+                    : this.dataSource.getConnection(username, password);
+        }
+
+    } // Replica
+
+} // ReplicaRoutingDataSource
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * Saves a batch of surrogated items and their components, one item type at a time.
+ *
+ * <h4>BatchWriter Responsibilities:</h4>
+ * <ul>
+ * <li>orders the items of a batch so that components are saved before their composites</li>
+ * <li>merges hashed items with equal contents across the whole batch</li>
+ * <li>finds the already stored hashed items of each type with a few hash key (IN) queries</li>
+ * <li>inserts the remaining items of each type together, so the configured JDBC batching applies</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>saves a batch inside a transaction, so the found items stay managed while their composites are saved</li>
+ * <li>saves only items whose types do not (transitively) contain components of their own type</li>
+ * </ul>
+ */
+@SuppressWarnings("unchecked")
+public class BatchWriter {
+
+    private static final int MaximumInList = 500;
+
+    private final IdentityHashMap<SurrogatedItem, Integer> heights = new IdentityHashMap<>();
+    private final ArrayList<SurrogatedItem> visited = new ArrayList<>();
+    private final IdentityHashMap<SurrogatedItem, SurrogatedItem> resolved = new IdentityHashMap<>();
+
+    /**
+     * Saves a batch of items.
+     *
+     * @param <ItemType> a kind of item
+     * @param items some items
+     * @return the saved items, in the same order
+     */
+    public static <ItemType extends SurrogatedItem> List<ItemType> saveAll(Collection<ItemType> items) {
+        return new BatchWriter().save(items);
+    }
+
+    private <ItemType extends SurrogatedItem> List<ItemType> save(Collection<ItemType> items) {
+        for (ItemType item : items) {
+            measure(item);
+        }
+
+        // save all the items of a type together, at the greatest height of that type
+        HashMap<Class<?>, Integer> typeHeights = new HashMap<>();
+        for (SurrogatedItem item : this.visited) {
+            typeHeights.merge(item.getClass(), this.heights.get(item), Math::max);
+        }
+
+        TreeMap<Integer, List<SurrogatedItem>> levels = new TreeMap<>();
+        for (SurrogatedItem item : this.visited) { // earlier items win when merging equal items
+            levels.computeIfAbsent(typeHeights.get(item.getClass()), height -> new ArrayList<>()).add(item);
+        }
+
+        for (List<SurrogatedItem> level : levels.values()) {
+            saveLevel(level);
+        }
+
+        ArrayList<ItemType> results = new ArrayList<>(items.size());
+        for (ItemType item : items) {
+            results.add((ItemType) this.resolved.get(item));
+        }
+        return results;
+    }
+
+    /**
+     * Measures the height of an item within its graph, where items without components have zero height.
+     */
+    private int measure(SurrogatedItem item) {
+        Integer result = this.heights.get(item);
+        if (result != null) {
+            return result;
+        }
+
+        int height = 0;
+        for (SurrogatedItem component : listComponents(item)) {
+            height = Math.max(height, measure(component) + 1);
+        }
+        this.heights.put(item, height);
+        this.visited.add(item);
+        return height;
+    }
+
+    private void saveLevel(List<SurrogatedItem> items) {
+        LinkedHashMap<Class<?>, List<SurrogatedItem>> types = new LinkedHashMap<>();
+        for (SurrogatedItem item : items) {
+            replaceComponents(item);
+            types.computeIfAbsent(item.getClass(), type -> new ArrayList<>()).add(item);
+        }
+
+        for (Map.Entry<Class<?>, List<SurrogatedItem>> entry : types.entrySet()) {
+            saveType(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void saveType(Class<?> itemType, List<SurrogatedItem> items) {
+        CrudRepository<SurrogatedItem, Long> store = Surrogated.getStore(itemType);
+        ArrayList<SurrogatedItem> saved = new ArrayList<>();
+        ArrayList<SurrogatedItem> unsaved = new ArrayList<>();
+        for (SurrogatedItem item : items) {
+            (item.wasSaved() ? saved : unsaved).add(item);
+        }
+
+        resolveSaved(store, saved);
+        if (store instanceof Hashed.Search) {
+            resolveHashed(itemType, (Hashed.Search<SurrogatedItem>) store, unsaved);
+        } else {
+            insert(store, unsaved);
+        }
+    }
+
+    private void resolveSaved(CrudRepository<SurrogatedItem, Long> store, List<SurrogatedItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        HashMap<Long, SurrogatedItem> keys = new HashMap<>();
+        for (SurrogatedItem item : items) {
+            keys.put(item.getKey(), item);
+        }
+
+        HashMap<Long, SurrogatedItem> found = new HashMap<>();
+        for (SurrogatedItem item : store.findAllById(keys.keySet())) {
+            found.put(item.getKey(), item);
+        }
+
+        for (SurrogatedItem item : items) {
+            this.resolved.put(item, found.getOrDefault(item.getKey(), item));
+        }
+    }
+
+    private void resolveHashed(Class<?> itemType, Hashed.Search<SurrogatedItem> store, List<SurrogatedItem> items) {
+        // merge items with equal contents
+        HashMap<Long, List<SurrogatedItem>> distinct = new HashMap<>();
+        IdentityHashMap<SurrogatedItem, SurrogatedItem> aliases = new IdentityHashMap<>();
+        for (SurrogatedItem item : items) {
+            List<SurrogatedItem> candidates =
+                    distinct.computeIfAbsent(((HashedItem) item).hashKey(), hashKey -> new ArrayList<>());
+            SurrogatedItem canonical = findEqual(candidates, item);
+            if (canonical == null) {
+                canonical = item;
+                candidates.add(item);
+            }
+            aliases.put(item, canonical);
+        }
+
+        // find any stored items, querying only those hashes that might be stored
+        ArrayList<Long> hashKeys = new ArrayList<>();
+        for (Long hashKey : distinct.keySet()) {
+            if (HashFilter.mightContain(itemType, hashKey)) {
+                hashKeys.add(hashKey);
+            }
+        }
+
+        IdentityHashMap<SurrogatedItem, SurrogatedItem> stored = new IdentityHashMap<>();
+        for (int index = 0; index < hashKeys.size(); index += MaximumInList) {
+            List<Long> hashKeyList = hashKeys.subList(index, Math.min(hashKeys.size(), index + MaximumInList));
+            for (SurrogatedItem found : store.findHashes(hashKeyList)) {
+                SurrogatedItem canonical = findEqual(distinct.get(((HashedItem) found).hashKey()), found);
+                if (canonical != null && !stored.containsKey(canonical)) {
+                    stored.put(canonical, found);
+                }
+            }
+        }
+
+        // insert the rest
+        ArrayList<SurrogatedItem> inserts = new ArrayList<>();
+        for (List<SurrogatedItem> candidates : distinct.values()) {
+            for (SurrogatedItem canonical : candidates) {
+                if (!stored.containsKey(canonical)) {
+                    inserts.add(canonical);
+                }
+            }
+        }
+        insert(store, inserts);
+
+        HashCache cache = HashCache.getInstance();
+        for (SurrogatedItem canonical : inserts) {
+            SurrogatedItem saved = this.resolved.get(canonical);
+            HashFilter.record(itemType, ((HashedItem) saved).hashKey());
+            cache.put(itemType, ((HashedItem) saved).hashKey(), saved.getKey());
+        }
+
+        for (Map.Entry<SurrogatedItem, SurrogatedItem> entry : stored.entrySet()) {
+            this.resolved.put(entry.getKey(), entry.getValue());
+        }
+
+        for (SurrogatedItem item : items) {
+            this.resolved.put(item, this.resolved.get(aliases.get(item)));
+        }
+    }
+
+    private void insert(CrudRepository<SurrogatedItem, Long> store, List<SurrogatedItem> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+
+        Iterator<SurrogatedItem> results = store.saveAll(items).iterator();
+        for (SurrogatedItem item : items) {
+            this.resolved.put(item, results.next());
+        }
+    }
+
+    private static SurrogatedItem findEqual(List<SurrogatedItem> candidates, SurrogatedItem item) {
+        if (candidates != null) {
+            for (SurrogatedItem candidate : candidates) {
+                if (candidate.equals(item)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    static List<SurrogatedItem> listComponents(SurrogatedItem item) {
+        ArrayList<SurrogatedItem> results = new ArrayList<>();
+        if (!(item instanceof SurrogatedComposite)) {
+            return results;
+        }
+
+        SurrogatedComposite composite = (SurrogatedComposite) item;
+        for (Object componentMap : composite.componentMaps()) {
+            results.addAll(((Map<Object, SurrogatedItem>) componentMap).values());
+        }
+
+        for (Object componentSet : composite.componentSets()) {
+            results.addAll((Set<SurrogatedItem>) componentSet);
+        }
+
+        results.addAll(Arrays.asList(composite.components()));
+        return results;
+    }
+
+    private void replaceComponents(SurrogatedItem item) {
+        if (!(item instanceof SurrogatedComposite)) {
+            return;
+        }
+
+        SurrogatedComposite composite = (SurrogatedComposite) item;
+        for (Object componentMap : composite.componentMaps()) {
+            for (Map.Entry<Object, SurrogatedItem> entry : ((Map<Object, SurrogatedItem>) componentMap).entrySet()) {
+                entry.setValue(this.resolved.get(entry.getValue()));
+            }
+        }
+
+        for (Object componentSet : composite.componentSets()) {
+            Set<SurrogatedItem> components = (Set<SurrogatedItem>) componentSet;
+            ArrayList<SurrogatedItem> results = new ArrayList<>();
+            for (SurrogatedItem component : components) {
+                results.add(this.resolved.get(component));
+            }
+            components.clear();
+            components.addAll(results);
+        }
+
+        SurrogatedItem[] components = composite.components();
+        if (components.length > 0) {
+            for (int index = 0; index < components.length; index++) {
+                components[index] = this.resolved.get(components[index]);
+            }
+            composite.components(components);
+        }
+    }
+
+} // BatchWriter
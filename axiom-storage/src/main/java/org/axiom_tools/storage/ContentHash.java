@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Computes a 64-bit hash of some content fields (MurmurHash3 x64, lower 64 bits of the 128-bit result).
+ *
+ * <h4>ContentHash Responsibilities:</h4>
+ * <ul>
+ * <li>encodes content fields canonically (length prefixed UTF-8) so field boundaries are significant</li>
+ * <li>hashes the encoded content into a stable 64-bit value</li>
+ * </ul>
+ */
+public final class ContentHash {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final int Seed = 0x41786f6d; // "Axom"
+    private static final int NullField = -1;
+
+    private ContentHash() { }
+
+    /**
+     * Returns a hash of some content fields.
+     *
+     * @param fields some content fields
+     * @return a 64-bit content hash
+     */
+    public static long of(String... fields) {
+        return hash(encode(fields));
+    }
+
+    /**
+     * Encodes some content fields, each as a length followed by its UTF-8 bytes.
+     *
+     * @param fields some content fields
+     * @return the canonical encoding of the fields
+     */
+    static byte[] encode(String... fields) {
+        byte[][] parts = new byte[fields.length][];
+        int size = 0;
+        for (int index = 0; index < fields.length; index++) {
+            parts[index] = fields[index] == null ? null : fields[index].getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + (parts[index] == null ? 0 : parts[index].length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] part : parts) {
+            buffer.putInt(part == null ? NullField : part.length);
+            if (part != null) {
+                buffer.put(part);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Hashes some bytes with MurmurHash3 x64 128.
+     *
+     * @param data some bytes
+     * @return the lower 64 bits of the 128-bit hash
+     */
+    static long hash(byte[] data) {
+        long h1 = Seed;
+        long h2 = Seed;
+        int blocks = data.length / 16;
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int index = 0; index < blocks; index++) {
+            long k1 = buffer.getLong(index * 16);
+            long k2 = buffer.getLong(index * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        int rest = data.length & 15;
+        for (int index = rest - 1; index >= 8; index--) {
+            k2 ^= (long) (data[tail + index] & 0xff) << ((index - 8) * 8);
+        }
+        if (rest > 8) {
+            h2 ^= mixK2(k2);
+        }
+
+        for (int index = Math.min(rest, 8) - 1; index >= 0; index--) {
+            k1 ^= (long) (data[tail + index] & 0xff) << (index * 8);
+        }
+        if (rest > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= data.length;
+        h2 ^= data.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        return h1;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+} // ContentHash
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Finds clusters of duplicate items in bounded memory, by blocking them on shared keys (e.g., the hashes of their
+ * email addresses) and scoring the pairs of items that share some blocks.
+ *
+ * <h4>DuplicateFinder Responsibilities:</h4>
+ * <ul>
+ * <li>partitions the blocked items by block key, and sorts each partition externally (spilling sorted runs)</li>
+ * <li>pairs the items of each block in parallel, skipping blocks too large to be useful</li>
+ * <li>partitions the candidate pairs, and scores each distinct pair in parallel by summing the weights of the blocks
+ * it shares</li>
+ * <li>joins the pairs that reach a threshold score into clusters</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>blocks every item with all its keys (e.g., streamed from queries), before finding clusters</li>
+ * <li>derives block keys so that each kind of key yields distinct block keys</li>
+ * <li>closes a finder after use</li>
+ * </ul>
+ */
+public class DuplicateFinder implements AutoCloseable {
+
+    public static final int DefaultRunSize = 100000;
+    public static final int DefaultMaximumBlock = 100;
+
+    private static final int BlockWidth = 3;
+    private static final int PairWidth = 3;
+
+    private final int threshold;
+    private final int maximumBlock;
+    private final ExternalSorter[] blocks;
+    private final ExternalSorter[] pairs;
+    private final HashMap<Long, Long> parents = new HashMap<>();
+
+    private final AtomicLong pairCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong matchCount = new AtomicLong();
+
+    /**
+     * Constructs a new DuplicateFinder, partitioned by the available processors.
+     *
+     * @param threshold the minimum score of a duplicate pair
+     */
+    public DuplicateFinder(int threshold) {
+        this(threshold, Runtime.getRuntime().availableProcessors(), DefaultRunSize, DefaultMaximumBlock);
+    }
+
+    /**
+     * Constructs a new DuplicateFinder.
+     *
+     * @param threshold the minimum score of a duplicate pair
+     * @param partitions a count of partitions, processed in parallel
+     * @param runSize the maximum count of records held in memory per partition
+     * @param maximumBlock the maximum count of items in a block, larger blocks are skipped
+     */
+    public DuplicateFinder(int threshold, int partitions, int runSize, int maximumBlock) {
+        this.threshold = threshold;
+        this.maximumBlock = maximumBlock;
+        this.blocks = new ExternalSorter[Math.max(1, partitions)];
+        this.pairs = new ExternalSorter[this.blocks.length];
+        for (int index = 0; index < this.blocks.length; index++) {
+            this.blocks[index] = new ExternalSorter(BlockWidth, runSize);
+            this.pairs[index] = new ExternalSorter(PairWidth, runSize);
+        }
+    }
+
+    /**
+     * Places an item in a block.
+     *
+     * @param blockKey identifies a block
+     * @param itemKey identifies an item
+     * @param weight the score contributed by sharing this block
+     */
+    public void block(long blockKey, long itemKey, int weight) {
+        this.blocks[partition(blockKey)].add(blockKey, itemKey, weight);
+    }
+
+    /**
+     * Finds the clusters of duplicate items.
+     *
+     * @param clusters receives the (ascending) item keys of each cluster
+     * @return a count of the clusters
+     */
+    public int findClusters(Consumer<long[]> clusters) {
+        IntStream.range(0, this.blocks.length).parallel().forEach(this::pairBlocks);
+        IntStream.range(0, this.pairs.length).parallel().forEach(this::scorePairs);
+
+        HashMap<Long, List<Long>> members = new HashMap<>();
+        for (Long itemKey : this.parents.keySet()) {
+            members.computeIfAbsent(findRoot(itemKey), root -> new ArrayList<>()).add(itemKey);
+        }
+
+        for (List<Long> cluster : members.values()) {
+            long[] result = cluster.stream().mapToLong(Long::longValue).sorted().toArray();
+            clusters.accept(result);
+        }
+        return members.size();
+    }
+
+    /**
+     * Pairs the items of each block in a partition.
+     */
+    private void pairBlocks(int partition) {
+        Iterator<long[]> records = this.blocks[partition].sorted();
+        ArrayList<long[]> block = new ArrayList<>();
+        while (records.hasNext()) {
+            long[] record = records.next();
+            if (!block.isEmpty() && block.get(0)[0] != record[0]) {
+                pairBlock(block);
+                block.clear();
+            }
+            if (block.size() <= this.maximumBlock) {
+                block.add(record);
+            }
+        }
+        pairBlock(block);
+        this.blocks[partition].close();
+    }
+
+    private void pairBlock(List<long[]> block) {
+        if (block.isEmpty()) {
+            return;
+        }
+
+        if (block.size() > this.maximumBlock) {
+            this.skippedCount.incrementAndGet();
+            return;
+        }
+
+        // records are sorted by item key within a block, so each pair is (smaller, larger)
+        long[] itemKeys = block.stream().mapToLong(record -> record[1]).distinct().toArray();
+        long weight = block.get(0)[2];
+        for (int first = 0; first < itemKeys.length; first++) {
+            for (int second = first + 1; second < itemKeys.length; second++) {
+                this.pairs[partition(itemKeys[first])].add(itemKeys[first], itemKeys[second], weight);
+                this.pairCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Scores each distinct pair in a partition, joining those that reach the threshold.
+     */
+    private void scorePairs(int partition) {
+        Iterator<long[]> records = this.pairs[partition].sorted();
+        long[] current = null;
+        long score = 0;
+        while (records.hasNext()) {
+            long[] record = records.next();
+            if (current != null && (current[0] != record[0] || current[1] != record[1])) {
+                join(current, score);
+                score = 0;
+            }
+            current = record;
+            score += record[2];
+        }
+
+        if (current != null) {
+            join(current, score);
+        }
+        this.pairs[partition].close();
+    }
+
+    private void join(long[] pair, long score) {
+        if (score >= this.threshold) {
+            this.matchCount.incrementAndGet();
+            synchronized (this.parents) {
+                long first = findRoot(pair[0]);
+                long second = findRoot(pair[1]);
+                if (first != second) {
+                    this.parents.put(Math.max(first, second), Math.min(first, second));
+                }
+            }
+        }
+    }
+
+    private long findRoot(long itemKey) {
+        long root = itemKey;
+        Long parent = this.parents.putIfAbsent(root, root);
+        while (parent != null && parent != root) {
+            root = parent;
+            parent = this.parents.get(root);
+        }
+
+        // compress the path
+        long current = itemKey;
+        while (current != root) {
+            current = this.parents.put(current, root);
+        }
+        return root;
+    }
+
+    private int partition(long key) {
+        return Math.floorMod(Long.hashCode(key * 0x9E3779B97F4A7C15L), this.blocks.length);
+    }
+
+    /**
+     * A count of the candidate pairs found in the blocks (before merging).
+     *
+     * @return a count
+     */
+    public long pairCount() {
+        return this.pairCount.get();
+    }
+
+    /**
+     * A count of the distinct pairs that reached the threshold.
+     *
+     * @return a count
+     */
+    public long matchCount() {
+        return this.matchCount.get();
+    }
+
+    /**
+     * A count of the blocks skipped for being too large.
+     *
+     * @return a count
+     */
+    public long skippedCount() {
+        return this.skippedCount.get();
+    }
+
+    /**
+     * Deletes any temporary files of this finder.
+     */
+    @Override
+    public void close() {
+        for (int index = 0; index < this.blocks.length; index++) {
+            this.blocks[index].close();
+            this.pairs[index].close();
+        }
+    }
+
+} // DuplicateFinder
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Sorts fixed width records of long values in bounded memory, spilling sorted runs to temporary files and merging
+ * them when read.
+ *
+ * <h4>ExternalSorter Responsibilities:</h4>
+ * <ul>
+ * <li>buffers up to a run size of records in memory</li>
+ * <li>sorts and writes each full buffer to a temporary file (a sorted run)</li>
+ * <li>merges the runs (and any buffered records) into a single sorted sequence</li>
+ * <li>deletes its temporary files when closed</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>adds all the records before reading the sorted records</li>
+ * <li>closes a sorter after use</li>
+ * </ul>
+ */
+public class ExternalSorter implements AutoCloseable {
+
+    private static final String FilePrefix = "axiom-sort-";
+    private static final String FileSuffix = ".run";
+    private static final int BufferSize = 1 << 16;
+
+    private static final Comparator<long[]> RecordOrder = ExternalSorter::compare;
+
+    private final int width;
+    private final int runSize;
+    private final ArrayList<long[]> buffer = new ArrayList<>();
+    private final ArrayList<Path> runs = new ArrayList<>();
+    private final ArrayList<RunReader> readers = new ArrayList<>();
+    private long count = 0;
+
+    /**
+     * Constructs a new ExternalSorter.
+     *
+     * @param width the count of values in each record
+     * @param runSize the maximum count of records held in memory
+     */
+    public ExternalSorter(int width, int runSize) {
+        if (width < 1 || runSize < 1) {
+            throw new IllegalArgumentException(String.format(BadSize, width, runSize));
+        }
+        this.width = width;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Adds a record to this sorter.
+     *
+     * @param values the values of a record
+     */
+    public synchronized void add(long... values) {
+        if (values.length != this.width) {
+            throw new IllegalArgumentException(String.format(BadRecord, this.width, values.length));
+        }
+
+        this.buffer.add(values.clone());
+        this.count++;
+        if (this.buffer.size() >= this.runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * A count of the added records.
+     *
+     * @return a count
+     */
+    public synchronized long size() {
+        return this.count;
+    }
+
+    /**
+     * A count of the runs spilled to temporary files.
+     *
+     * @return a count
+     */
+    public synchronized int runCount() {
+        return this.runs.size();
+    }
+
+    /**
+     * Returns the added records in ascending (lexicographic) order.
+     *
+     * @return the sorted records
+     */
+    public synchronized Iterator<long[]> sorted() {
+        this.buffer.sort(RecordOrder);
+        if (this.runs.isEmpty()) {
+            return new ArrayList<>(this.buffer).iterator();
+        }
+
+        spill();
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> RecordOrder.compare(a.current, b.current));
+        for (Path run : this.runs) {
+            RunReader reader = new RunReader(run, this.width);
+            this.readers.add(reader);
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+
+        return new Iterator<long[]>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public long[] next() {
+                RunReader reader = queue.poll();
+                if (reader == null) {
+                    throw new NoSuchElementException();
+                }
+
+                long[] result = reader.current;
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Deletes the temporary files of this sorter.
+     */
+    @Override
+    public synchronized void close() {
+        for (RunReader reader : this.readers) {
+            reader.close();
+        }
+        this.readers.clear();
+
+        for (Path run : this.runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException ex) {
+                // best effort, the file was created in the temporary directory
+            }
+        }
+        this.runs.clear();
+        this.buffer.clear();
+    }
+
+    /**
+     * Compares two records lexicographically: value by value, and then by length.
+     *
+     * @param record a record
+     * @param other another record
+     * @return a negative, zero, or positive comparison
+     */
+    public static int compare(long[] record, long[] other) {
+        int count = Math.min(record.length, other.length);
+        for (int index = 0; index < count; index++) {
+            int result = Long.compare(record[index], other[index]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(record.length, other.length);
+    }
+
+    private void spill() {
+        if (this.buffer.isEmpty()) {
+            return;
+        }
+
+        this.buffer.sort(RecordOrder);
+        try {
+            Path run = Files.createTempFile(FilePrefix, FileSuffix);
+            this.runs.add(run);
+            try (DataOutputStream data = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(run), BufferSize))) {
+                for (long[] record : this.buffer) {
+                    for (long value : record) {
+                        data.writeLong(value);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        this.buffer.clear();
+    }
+
+    /**
+     * Reads the records of a sorted run.
+     */
+    private static final class RunReader {
+
+        private final DataInputStream data;
+        private final int width;
+        private long[] current;
+
+        RunReader(Path run, int width) {
+            try {
+                this.data = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), BufferSize));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            this.width = width;
+        }
+
+        boolean advance() {
+            try {
+                long[] result = new long[this.width];
+                result[0] = this.data.readLong();
+                for (int index = 1; index < this.width; index++) {
+                    result[index] = this.data.readLong();
+                }
+                this.current = result;
+                return true;
+            } catch (EOFException ex) {
+                close();
+                return false;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        void close() {
+            try {
+                this.data.close();
+            } catch (IOException ex) {
+                // already read
+            }
+        }
+
+    } // RunReader
+
+    static final String BadSize = "bad record width %d or run size %d";
+    static final String BadRecord = "expected %d values, found %d";
+
+} // ExternalSorter
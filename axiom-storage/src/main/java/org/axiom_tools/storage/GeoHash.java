@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+
+/**
+ * Encodes locations as geohashes, so that nearby locations can be found with prefix (range) scans of an ordinary
+ * B-tree index. Locations that share a geohash prefix lie within the same cell.
+ *
+ * <h4>GeoHash Responsibilities:</h4>
+ * <ul>
+ * <li>encodes a latitude and longitude as a geohash, and decodes the center of a geohash cell</li>
+ * <li>covers a circle with the few cells (prefixes) that contain it, and knows the range of geohashes in a cell</li>
+ * <li>knows the great circle distance between two locations</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>stores the geohash of each located item in an indexed column</li>
+ * <li>selects the items whose geohashes lie in a covering cell, then filters them by distance</li>
+ * </ul>
+ */
+public final class GeoHash {
+
+    /**
+     * The length of a stored geohash (cells of a few meters).
+     */
+    public static final int Precision = 9;
+
+    /**
+     * The mean radius of the earth, in kilometers.
+     */
+    public static final double EarthRadius = 6371.0088;
+
+    private static final String Digits = "0123456789bcdefghjkmnpqrstuvwxyz";
+    private static final int BitsPerDigit = 5;
+    private static final double KilometersPerDegree = Math.PI * EarthRadius / 180;
+    private static final double MaximumLatitude = 90;
+    private static final double MaximumLongitude = 180;
+
+    private GeoHash() { }
+
+    /**
+     * Encodes a location.
+     *
+     * @param latitude a latitude, in degrees
+     * @param longitude a longitude, in degrees
+     * @param precision the length of the geohash
+     * @return a geohash
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double[] latitudes = {-MaximumLatitude, MaximumLatitude};
+        double[] longitudes = {-MaximumLongitude, MaximumLongitude};
+        double wrapped = wrapLongitude(longitude);
+        char[] results = new char[precision];
+        boolean even = true;
+        for (int index = 0; index < precision; index++) {
+            int digit = 0;
+            for (int bit = 0; bit < BitsPerDigit; bit++) {
+                digit = (digit << 1) | (even ? split(longitudes, wrapped) : split(latitudes, latitude));
+                even = !even;
+            }
+            results[index] = Digits.charAt(digit);
+        }
+        return new String(results);
+    }
+
+    /**
+     * Decodes the center of a geohash cell.
+     *
+     * @param geohash a geohash
+     * @return the latitude and longitude of the cell center, in degrees
+     */
+    public static double[] decode(String geohash) {
+        double[] latitudes = {-MaximumLatitude, MaximumLatitude};
+        double[] longitudes = {-MaximumLongitude, MaximumLongitude};
+        boolean even = true;
+        for (int index = 0; index < geohash.length(); index++) {
+            int digit = Digits.indexOf(geohash.charAt(index));
+            if (digit < 0) {
+                throw new IllegalArgumentException(String.format(BadHash, geohash));
+            }
+
+            for (int bit = BitsPerDigit - 1; bit >= 0; bit--) {
+                double[] range = even ? longitudes : latitudes;
+                range[((digit >> bit) & 1) == 0 ? 1 : 0] = (range[0] + range[1]) / 2;
+                even = !even;
+            }
+        }
+
+        double[] results = {(latitudes[0] + latitudes[1]) / 2, (longitudes[0] + longitudes[1]) / 2};
+        return results;
+    }
+
+    /**
+     * Returns the cells that cover a circle: the cells of the longest geohash prefix still larger than the circle's
+     * radius, which contain the center and the edges of its bounding box. A circle larger than any cell is covered
+     * by the empty prefix.
+     *
+     * @param latitude the latitude of the center, in degrees
+     * @param longitude the longitude of the center, in degrees
+     * @param radius a radius, in kilometers
+     * @return some geohash prefixes
+     */
+    public static Set<String> cover(double latitude, double longitude, double radius) {
+        double latitudeSpan = radius / KilometersPerDegree;
+        double longitudeSpan = radius / (KilometersPerDegree * Math.max(Math.cos(Math.toRadians(latitude)), 1e-6));
+        LinkedHashSet<String> results = new LinkedHashSet<>();
+        if (cellHeight(1) <= latitudeSpan || cellWidth(1) <= longitudeSpan) {
+            results.add(""); // the circle is larger than any cell, so every location is a candidate
+            return results;
+        }
+
+        int precision = 1;
+        while (precision < Precision
+                && cellHeight(precision + 1) > latitudeSpan && cellWidth(precision + 1) > longitudeSpan) {
+            precision++;
+        }
+
+        for (int row = -1; row <= 1; row++) {
+            double cellLatitude = Math.max(-MaximumLatitude, Math.min(MaximumLatitude, latitude + row * latitudeSpan));
+            for (int column = -1; column <= 1; column++) {
+                results.add(encode(cellLatitude, longitude + column * longitudeSpan, precision));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the first and last stored geohashes in a cell, so that a cell can be selected with a range predicate
+     * (BETWEEN), which any B-tree index serves.
+     *
+     * @param prefix a geohash prefix
+     * @return the first and last geohashes of the given precision with the prefix
+     */
+    public static String[] range(String prefix) {
+        StringBuilder first = new StringBuilder(prefix);
+        StringBuilder last = new StringBuilder(prefix);
+        while (first.length() < Precision) {
+            first.append(Digits.charAt(0));
+            last.append(Digits.charAt(Digits.length() - 1));
+        }
+
+        String[] results = {first.toString(), last.toString()};
+        return results;
+    }
+
+    /**
+     * Returns the great circle (haversine) distance between two locations.
+     *
+     * @param latitude a latitude, in degrees
+     * @param longitude a longitude, in degrees
+     * @param otherLatitude another latitude, in degrees
+     * @param otherLongitude another longitude, in degrees
+     * @return a distance, in kilometers
+     */
+    public static double distance(double latitude, double longitude, double otherLatitude, double otherLongitude) {
+        double latitudeDelta = Math.toRadians(otherLatitude - latitude);
+        double longitudeDelta = Math.toRadians(otherLongitude - longitude);
+        double a = Math.pow(Math.sin(latitudeDelta / 2), 2)
+                + Math.cos(Math.toRadians(latitude)) * Math.cos(Math.toRadians(otherLatitude))
+                * Math.pow(Math.sin(longitudeDelta / 2), 2);
+        return 2 * EarthRadius * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static int split(double[] range, double value) {
+        double middle = (range[0] + range[1]) / 2;
+        if (value >= middle) {
+            range[0] = middle;
+            return 1;
+        }
+        range[1] = middle;
+        return 0;
+    }
+
+    private static double cellHeight(int precision) {
+        return 2 * MaximumLatitude / Math.pow(2, (BitsPerDigit * precision) / 2);
+    }
+
+    private static double cellWidth(int precision) {
+        return 2 * MaximumLongitude / Math.pow(2, (BitsPerDigit * precision + 1) / 2);
+    }
+
+    private static double wrapLongitude(double longitude) {
+        double result = (longitude + MaximumLongitude) % (2 * MaximumLongitude);
+        return (result < 0 ? result + 2 * MaximumLongitude : result) - MaximumLongitude;
+    }
+
+    static final String BadHash = "bad geohash %s";
+
+} // GeoHash
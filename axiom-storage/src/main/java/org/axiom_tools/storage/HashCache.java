@@ -0,0 +1,334 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A process-local, size-bounded cache of the surrogate keys of saved hashed items.
+ *
+ * <h4>HashCache Responsibilities:</h4>
+ * <ul>
+ * <li>maps an item type and content hash to the surrogate key of a saved item</li>
+ * <li>scopes each key by the storage registry in use (e.g., that of a shard), so a key saved in one database is never
+ * looked up in another</li>
+ * <li>shares a key cached within a transaction only once the transaction commits, so a key saved by a rolled back
+ * transaction is never cached</li>
+ * <li>evicts the least recently used entries when full</li>
+ * <li>counts its hits, misses, and evictions</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>caches a key after an item is saved or found</li>
+ * <li>removes a key after an item is removed</li>
+ * </ul>
+ */
+public class HashCache {
+
+    public static final int DefaultCapacity = 100000;
+    private static final int SegmentCount = 16;
+
+    private static volatile HashCache Instance = new HashCache(DefaultCapacity);
+
+    private final Segment[] segments = new Segment[SegmentCount];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final int capacity;
+
+    /**
+     * The configured cache.
+     *
+     * @return a HashCache
+     */
+    public static HashCache getInstance() {
+        return Instance;
+    }
+
+    /**
+     * Replaces the configured cache with an empty one of a given capacity.
+     *
+     * @param capacity a maximum entry count, or zero to disable caching
+     * @return the new HashCache
+     */
+    public static HashCache withCapacity(int capacity) {
+        Instance = new HashCache(capacity);
+        return Instance;
+    }
+
+    /**
+     * Constructs a new HashCache.
+     *
+     * @param capacity a maximum entry count
+     */
+    protected HashCache(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        int segmentCapacity = (this.capacity + SegmentCount - 1) / SegmentCount;
+        for (int index = 0; index < SegmentCount; index++) {
+            this.segments[index] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Returns the surrogate key of a saved item, as saved with the current storage registry.
+     *
+     * @param itemType a kind of hashed item
+     * @param hashKey a content hash
+     * @return a surrogate key, or null
+     */
+    public Long find(Class<?> itemType, long hashKey) {
+        if (this.capacity == 0) {
+            return null;
+        }
+
+        CacheKey cacheKey = new CacheKey(StorageMechanism.Registry.current(), itemType, hashKey);
+        Map<CacheKey, Long> pending = pendingKeys(false);
+        Long result = (pending == null ? null : pending.get(cacheKey));
+        if (result == null) {
+            result = segmentFor(cacheKey).find(cacheKey);
+        }
+        if (result == null) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Caches the surrogate key of an item saved with the current storage registry. Within a transaction, the key is
+     * found only by that transaction until it commits.
+     *
+     * @param itemType a kind of hashed item
+     * @param hashKey a content hash
+     * @param key a surrogate key
+     */
+    public void put(Class<?> itemType, long hashKey, long key) {
+        if (this.capacity == 0 || hashKey == 0 || key == 0) {
+            return;
+        }
+
+        CacheKey cacheKey = new CacheKey(StorageMechanism.Registry.current(), itemType, hashKey);
+        Map<CacheKey, Long> pending = pendingKeys(true);
+        if (pending != null) {
+            pending.put(cacheKey, key);
+        } else {
+            segmentFor(cacheKey).put(cacheKey, key);
+        }
+    }
+
+    /**
+     * Removes the cached key of an item saved with the current storage registry.
+     *
+     * @param itemType a kind of hashed item
+     * @param hashKey a content hash
+     */
+    public void remove(Class<?> itemType, long hashKey) {
+        CacheKey cacheKey = new CacheKey(StorageMechanism.Registry.current(), itemType, hashKey);
+        Map<CacheKey, Long> pending = pendingKeys(false);
+        if (pending != null) {
+            pending.remove(cacheKey);
+        }
+        segmentFor(cacheKey).remove(cacheKey);
+    }
+
+    /**
+     * Removes all the cached keys.
+     */
+    public void clear() {
+        for (Segment segment : this.segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * A count of the cached keys.
+     *
+     * @return a count
+     */
+    public int size() {
+        int result = 0;
+        for (Segment segment : this.segments) {
+            result += segment.size();
+        }
+        return result;
+    }
+
+    /**
+     * A count of the lookups that found a cached key.
+     *
+     * @return a count
+     */
+    public long hitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * A count of the lookups that found no cached key.
+     *
+     * @return a count
+     */
+    public long missCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * A count of the keys evicted to make room for others.
+     *
+     * @return a count
+     */
+    public long evictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * The fraction of lookups that found a cached key.
+     *
+     * @return a hit rate, from 0 to 1
+     */
+    public double hitRate() {
+        long lookups = hitCount() + missCount();
+        return lookups == 0 ? 0 : (double) hitCount() / lookups;
+    }
+
+    /**
+     * Logs a description of this cache.
+     *
+     * @param log a logger
+     */
+    public void describe(Logger log) {
+        log.info(String.format(Description,
+                size(), this.capacity, hitCount(), missCount(), evictionCount(), hitRate()));
+    }
+
+    static final String Description = "hash cache size = %d / %d, hits = %d, misses = %d, evictions = %d, rate = %.3f";
+
+    /**
+     * Returns the keys cached by the current transaction, to be shared once it commits.
+     *
+     * @param create whether to start caching the keys of the current transaction
+     * @return the pending keys, or null outside a transaction
+     */
+    @SuppressWarnings("unchecked")
+    private Map<CacheKey, Long> pendingKeys(boolean create) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+
+        Map<CacheKey, Long> result = (Map<CacheKey, Long>) TransactionSynchronizationManager.getResource(this);
+        if (result == null && create) {
+            Map<CacheKey, Long> pending = new HashMap<>();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    for (Map.Entry<CacheKey, Long> entry : pending.entrySet()) {
+                        segmentFor(entry.getKey()).put(entry.getKey(), entry.getValue());
+                    }
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(HashCache.this);
+                }
+            });
+            result = pending;
+        }
+        return result;
+    }
+
+    private Segment segmentFor(CacheKey cacheKey) {
+        int hash = cacheKey.hashCode();
+        return this.segments[(hash ^ (hash >>> 16)) & (SegmentCount - 1)];
+    }
+
+    /**
+     * Identifies a cached item by storage scope, type, and content hash.
+     */
+    private static final class CacheKey {
+
+        private final Object scope;
+        private final Class<?> itemType;
+        private final long hashKey;
+
+        CacheKey(Object scope, Class<?> itemType, long hashKey) {
+            this.scope = scope;
+            this.itemType = itemType;
+            this.hashKey = hashKey;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 31 * System.identityHashCode(this.scope) + this.itemType.hashCode();
+            return 31 * result + Long.hashCode(this.hashKey);
+        }
+
+        @Override
+        public boolean equals(Object candidate) {
+            if (!(candidate instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) candidate;
+            return other.hashKey == this.hashKey && other.itemType == this.itemType && other.scope == this.scope;
+        }
+
+    } // CacheKey
+
+    /**
+     * A least recently used portion of the cache.
+     */
+    private final class Segment {
+
+        private final LinkedHashMap<CacheKey, Long> keys;
+
+        Segment(final int capacity) {
+            this.keys = new LinkedHashMap<CacheKey, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, Long> eldest) {
+                    boolean full = size() > capacity;
+                    if (full) {
+                        evictions.incrementAndGet();
+                    }
+                    return full;
+                }
+            };
+        }
+
+        synchronized Long find(CacheKey cacheKey) {
+            return this.keys.get(cacheKey);
+        }
+
+        synchronized void put(CacheKey cacheKey, long key) {
+            this.keys.put(cacheKey, key);
+        }
+
+        synchronized void remove(CacheKey cacheKey) {
+            this.keys.remove(cacheKey);
+        }
+
+        synchronized void clear() {
+            this.keys.clear();
+        }
+
+        synchronized int size() {
+            return this.keys.size();
+        }
+
+    } // Segment
+
+} // HashCache
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A scalable Bloom filter over the stored hashes of a kind of hashed item. Indicates when an item is definitely absent
+ * from storage, so that a search for it can be skipped.
+ *
+ * <h4>HashFilter Responsibilities:</h4>
+ * <ul>
+ * <li>knows (approximately) which hashes were stored</li>
+ * <li>adds filter stages as it grows, so its false positive rate stays bounded</li>
+ * <li>knows the filters registered for each kind of hashed item</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>rebuilds the filters from storage (inside a transaction) before relying on them</li>
+ * <li>adds the hash of each newly stored item</li>
+ * <li>registers filters only when this process is the sole writer of the hashed items</li>
+ * </ul>
+ */
+public class HashFilter {
+
+    private static final Logger Log = LoggerFactory.getLogger(HashFilter.class);
+    private static final Map<Class<?>, HashFilter> Filters = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, HashFilter> Rebuilding = new ConcurrentHashMap<>();
+
+    public static final double DefaultErrorRate = 0.01;
+    private static final long MinimumCapacity = 1024;
+    private static final int GrowthFactor = 2;
+    private static final double Tightening = 0.5;
+    private static final double Ln2 = Math.log(2);
+
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private final double errorRate;
+
+    /**
+     * Returns the filter registered for a kind of hashed item.
+     *
+     * @param itemType a kind of hashed item
+     * @return a HashFilter, or null
+     */
+    public static HashFilter forType(Class<?> itemType) {
+        return Filters.get(itemType);
+    }
+
+    /**
+     * Indicates whether an item with a given hash might be stored. Returns true when no filter is registered, or when
+     * another registry (e.g., a shard) is selected, since the filters only cover the default registry.
+     *
+     * @param itemType a kind of hashed item
+     * @param hashKey a content hash
+     * @return whether the hash might be stored
+     */
+    public static boolean mightContain(Class<?> itemType, long hashKey) {
+        if (StorageMechanism.Registry.isSelected()) {
+            return true;
+        }
+
+        HashFilter filter = forType(itemType);
+        return filter == null || filter.mightContain(hashKey);
+    }
+
+    /**
+     * Records the hash of a newly stored item, if a filter is registered for its type.
+     *
+     * @param itemType a kind of hashed item
+     * @param hashKey a content hash
+     */
+    public static void record(Class<?> itemType, long hashKey) {
+        if (StorageMechanism.Registry.isSelected()) {
+            return;
+        }
+
+        // a filter still being rebuilt gets the hash too, since its stream may have passed the new item already
+        HashFilter rebuilt = Rebuilding.get(itemType);
+        if (rebuilt != null) {
+            rebuilt.add(hashKey);
+        }
+
+        HashFilter filter = forType(itemType);
+        if (filter != null && filter != rebuilt) {
+            filter.add(hashKey);
+        }
+    }
+
+    /**
+     * Registers a filter for a kind of hashed item, replacing any previous filter.
+     *
+     * @param itemType a kind of hashed item
+     * @param filter a HashFilter
+     */
+    public static void register(Class<?> itemType, HashFilter filter) {
+        Filters.put(itemType, filter);
+    }
+
+    /**
+     * Removes all the registered filters.
+     */
+    public static void clearAll() {
+        Filters.clear();
+        Rebuilding.clear();
+    }
+
+    /**
+     * Rebuilds the filter for a kind of hashed item by streaming its stored hashes. Must be called inside a
+     * transaction. The new filter replaces the old one only after it is fully loaded, and meanwhile also records
+     * the hashes of any items stored concurrently.
+     *
+     * @param itemType a kind of hashed item
+     * @return the new HashFilter
+     */
+    public static HashFilter rebuild(Class<?> itemType) {
+        Hashed.Search<?> store = (Hashed.Search<?>) StorageMechanism.get(itemType);
+        HashFilter result = new HashFilter(store.count(), DefaultErrorRate);
+        Rebuilding.put(itemType, result);
+        try (Stream<Long> hashKeys = store.streamHashKeys()) {
+            hashKeys.forEach(hashKey -> result.add(hashKey));
+            register(itemType, result); // before it stops recording, so no concurrent hash is missed
+        } finally {
+            Rebuilding.remove(itemType, result);
+        }
+
+        result.describe(itemType);
+        return result;
+    }
+
+    /**
+     * Rebuilds the filters for all the registered hashed model types. Must be called inside a transaction.
+     *
+     * @param registry a storage registry
+     */
+    public static void rebuildAll(StorageMechanism.Registry registry) {
+        for (StorageMechanism mechanism : registry.mechanisms()) {
+            if (mechanism.getStore() instanceof Hashed.Search) {
+                rebuild(mechanism.getModelType());
+            }
+        }
+    }
+
+    /**
+     * Constructs a new HashFilter.
+     *
+     * @param expected an expected count of stored hashes
+     * @param errorRate a maximum false positive rate
+     */
+    public HashFilter(long expected, double errorRate) {
+        this.errorRate = errorRate;
+        long capacity = Math.max(MinimumCapacity, expected * GrowthFactor);
+        this.stages.add(new Stage(capacity, errorRate * (1 - Tightening)));
+    }
+
+    /**
+     * Indicates whether a given hash might have been added.
+     *
+     * @param hashKey a content hash
+     * @return false if the hash was definitely not added
+     */
+    public boolean mightContain(long hashKey) {
+        long mixed = mix(hashKey);
+        for (Stage stage : this.stages) {
+            if (stage.mightContain(mixed)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a hash to this filter.
+     *
+     * @param hashKey a content hash
+     */
+    public void add(long hashKey) {
+        currentStage().add(mix(hashKey));
+    }
+
+    /**
+     * An approximate count of the added hashes.
+     *
+     * @return a count
+     */
+    public long count() {
+        long result = 0;
+        for (Stage stage : this.stages) {
+            result += stage.count.get();
+        }
+        return result;
+    }
+
+    /**
+     * A count of the stages in this filter.
+     *
+     * @return a count
+     */
+    public int stageCount() {
+        return this.stages.size();
+    }
+
+    /**
+     * The configured false positive rate.
+     *
+     * @return a rate, from 0 to 1
+     */
+    public double errorRate() {
+        return this.errorRate;
+    }
+
+    private Stage currentStage() {
+        Stage result = this.stages.get(this.stages.size() - 1);
+        if (result.count.get() < result.capacity) {
+            return result;
+        }
+
+        synchronized (this.stages) {
+            result = this.stages.get(this.stages.size() - 1);
+            if (result.count.get() >= result.capacity) {
+                result = new Stage(result.capacity * GrowthFactor, result.errorRate * Tightening);
+                this.stages.add(result);
+            }
+            return result;
+        }
+    }
+
+    private void describe(Class<?> itemType) {
+        Log.info(String.format(Description, itemType.getSimpleName(), count(), stageCount()));
+    }
+
+    static final String Description = "loaded hash filter for %s with %d hashes in %d stage(s)";
+
+    private static long mix(long hashKey) {
+        hashKey ^= hashKey >>> 33;
+        hashKey *= 0xff51afd7ed558ccdL;
+        hashKey ^= hashKey >>> 33;
+        return hashKey;
+    }
+
+    /**
+     * A fixed size Bloom filter.
+     */
+    private static final class Stage {
+
+        private final long capacity;
+        private final double errorRate;
+        private final long bitCount;
+        private final int probeCount;
+        private final AtomicLongArray bits;
+        private final AtomicLong count = new AtomicLong();
+
+        Stage(long capacity, double errorRate) {
+            this.capacity = capacity;
+            this.errorRate = errorRate;
+            long words = (long) Math.ceil(-capacity * Math.log(errorRate) / (Ln2 * Ln2) / Long.SIZE);
+            this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, Math.max(1, words)));
+            this.bitCount = (long) this.bits.length() * Long.SIZE;
+            this.probeCount = Math.max(1, (int) Math.round((double) this.bitCount / capacity * Ln2));
+        }
+
+        boolean mightContain(long mixed) {
+            int low = (int) mixed;
+            int high = (int) (mixed >>> 32);
+            for (int probe = 1; probe <= this.probeCount; probe++) {
+                long bit = Math.floorMod(low + (long) probe * high, this.bitCount);
+                if ((this.bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(long mixed) {
+            int low = (int) mixed;
+            int high = (int) (mixed >>> 32);
+            for (int probe = 1; probe <= this.probeCount; probe++) {
+                long bit = Math.floorMod(low + (long) probe * high, this.bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long value = this.bits.get(word);
+                while ((value & mask) == 0 && !this.bits.compareAndSet(word, value, value | mask)) {
+                    value = this.bits.get(word);
+                }
+            }
+            this.count.incrementAndGet();
+        }
+
+    } // Stage
+
+} // HashFilter
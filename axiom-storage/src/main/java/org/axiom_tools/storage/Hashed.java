@@ -13,9 +13,19 @@
 package org.axiom_tools.storage;
 
 import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import javax.persistence.Column;
 import javax.persistence.MappedSuperclass;
+import javax.persistence.QueryHint;
+import org.hibernate.Hibernate;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * An item uniquely identified using a hash of its contents.
@@ -28,10 +38,10 @@ public abstract class Hashed<ItemType>
         extends Surrogated<ItemType> implements HashedItem {
 
     /**
-     * A hash of the item contents.
+     * A 64-bit hash of the item contents.
      */
     @Column(name = "hash_key", nullable = false)
-    protected int hashKey = 0;
+    protected long hashKey = 0;
 
     /**
      * Returns this item.
@@ -51,12 +61,20 @@ public abstract class Hashed<ItemType>
         this.hashKey = 0;
     }
 
+    /**
+     * Returns the content fields from which the hash of this item is computed. Items that compare equal must return
+     * equal hash sources.
+     *
+     * @return the content fields of this item
+     */
+    protected abstract String[] hashSources();
+
     /**
      * Prepares this item for saving.
      */
     public void prepareHash() {
         if (this.hashKey == 0) {
-            this.hashKey = hashCode();
+            this.hashKey = ContentHash.of(hashSources());
         }
     }
 
@@ -64,7 +82,7 @@ public abstract class Hashed<ItemType>
      * The hash of the item contents.
      */
     @Override
-    public int hashKey() {
+    public long hashKey() {
         prepareHash();
         return this.hashKey;
     }
@@ -84,13 +102,159 @@ public abstract class Hashed<ItemType>
     }
 
     /**
-     * Finds this item with its hash.
+     * Finds this item with its hash. Any stored items that share the hash of this item are resolved by equality.
      *
-     * @return this item
+     * @return this item, or null
      */
     public ItemType findWithHash() {
+        return findWithHash(false);
+    }
+
+    /**
+     * Finds this item with its hash, either loaded or (with a cached key) as a reference.
+     */
+    private ItemType findWithHash(boolean referenced) {
         prepareHash();
-        return getSearchStore().findHash(hashKey());
+        if (!HashFilter.mightContain(getClass(), hashKey())) {
+            return null; // definitely not stored
+        }
+
+        ItemType result = referenced ? referCachedHash() : findCachedHash();
+        if (result == null) {
+            result = resolveHash(getSearchStore().findHash(hashKey()));
+            cacheHash(result);
+        }
+        return result;
+    }
+
+    /**
+     * Finds this item with the key cached for its hash. The lookup replaces a query against the hash index (and the
+     * resolution of any colliding candidates) with a primary key lookup, which still selects the item unless it is
+     * already in the persistence context.
+     *
+     * @return this item, or null if not cached
+     */
+    protected ItemType findCachedHash() {
+        Long cachedKey = getHashCache().find(getClass(), hashKey());
+        if (cachedKey == null) {
+            return null;
+        }
+
+        Optional<ItemType> result = getStore().findById(cachedKey);
+        if (result.isPresent() && this.equals(result.get())) {
+            return result.get();
+        }
+
+        // stale key, e.g., from a rolled back transaction
+        getHashCache().remove(getClass(), hashKey());
+        return null;
+    }
+
+    /**
+     * Refers to this item with the key cached for its hash, without a query. The reference is verified by equality
+     * when its item is already in the persistence context, and otherwise trusts the cached key, since keys are
+     * cached only once their transactions commit. Must be called inside a transaction.
+     *
+     * @return a reference to this item, or null if not cached
+     */
+    protected ItemType referCachedHash() {
+        Long cachedKey = getHashCache().find(getClass(), hashKey());
+        if (cachedKey == null) {
+            return null;
+        }
+
+        ItemType result = getSearchStore().getById(cachedKey);
+        if (!Hibernate.isInitialized(result) || this.equals(Hibernate.unproxy(result))) {
+            return result;
+        }
+
+        // stale key, e.g., from an item removed elsewhere
+        getHashCache().remove(getClass(), hashKey());
+        return null;
+    }
+
+    /**
+     * Caches the key of a saved item.
+     *
+     * @param item a saved item, or null
+     */
+    protected void cacheHash(ItemType item) {
+        if (item != null) {
+            Hashed<?> saved = (Hashed<?>) item;
+            getHashCache().put(getClass(), saved.hashKey(), saved.getKey());
+        }
+    }
+
+    /**
+     * The cache of the keys of saved items.
+     *
+     * @return a HashCache
+     */
+    protected HashCache getHashCache() {
+        return HashCache.getInstance();
+    }
+
+    /**
+     * Returns the candidate that equals this item.
+     *
+     * @param candidates the stored items that share the hash of this item
+     * @return a stored item equal to this one, or null
+     */
+    protected ItemType resolveHash(List<ItemType> candidates) {
+        if (candidates == null) {
+            return null;
+        }
+        for (ItemType candidate : candidates) {
+            if (this.equals(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recomputes and saves the stored hashes of the items of a given type. Migrates items whose hashes were stored
+     * with an earlier hash function, after the hash_key column has been widened to 64 bits.
+     *
+     * @param itemType a kind of hashed item
+     * @return a count of the rehashed items
+     */
+    public static int rehashAll(Class<?> itemType) {
+        CrudRepository<Hashed, Long> store = Surrogated.<Hashed>getStore(itemType);
+        int count = 0;
+        for (Hashed item : store.findAll()) {
+            long priorKey = item.hashKey;
+            item.hashKey = 0;
+            item.prepareHash();
+            if (item.hashKey != priorKey) {
+                store.save(item);
+                count++;
+            }
+        }
+        HashCache.getInstance().clear();
+        if (HashFilter.forType(itemType) != null) {
+            HashFilter.rebuild(itemType);
+        }
+        return count;
+    }
+
+    /**
+     * Performs some saving work within a transaction. If the work conflicts with a concurrent save of an equal new
+     * item (e.g., a shared email host, whose name must be unique), performs it once more within a new transaction,
+     * which then finds the item saved by the other transaction with its hash.
+     *
+     * @param <ResultType> a result type
+     * @param transaction a transaction template
+     * @param work some saving work, which builds its (unsaved) items anew each time
+     * @return the work result
+     * @exception DataIntegrityViolationException if the retried work still conflicts
+     */
+    public static <ResultType> ResultType saveRetried(TransactionTemplate transaction, Supplier<ResultType> work) {
+        try {
+            return transaction.execute(status -> work.get());
+        } catch (DataIntegrityViolationException ex) {
+            return transaction.execute(status -> work.get());
+        }
     }
 
     protected Search<ItemType> getSearchStore() {
@@ -98,22 +262,38 @@ public abstract class Hashed<ItemType>
     }
 
     /**
-     * Saves this item.
+     * Saves this item. Within a transaction, an equal item already saved (with a cached key) is returned as a
+     * reference, so that it can be associated with its composite without a query.
      *
      * @return this item after saving it
      */
     @Override
     public ItemType saveItem() {
-        if (getKey() > 0) {
+        if (wasSaved()) {
             return findItem();
         }
 
-        ItemType result = findWithHash();
+        ItemType result = findWithHash(TransactionSynchronizationManager.isActualTransactionActive());
         if (result == null) {
-            return super.saveItem();
-        } else {
-            return result;
+            result = super.saveItem();
+            HashFilter.record(getClass(), hashKey());
+            cacheHash(result);
         }
+        return result;
+    }
+
+    /**
+     * Removes this item from its backing store, along with its cached key.
+     *
+     * @return whether this item was removed
+     */
+    @Override
+    public boolean removeItem() {
+        if (getKey() == 0) {
+            return false;
+        }
+        getHashCache().remove(getClass(), hashKey());
+        return super.removeItem();
     }
 
     /**
@@ -124,12 +304,41 @@ public abstract class Hashed<ItemType>
     public static interface Search<ItemType> extends CrudRepository<ItemType, Long> {
 
         /**
-         * Finds a hashed item.
+         * Finds the hashed items that share a hash.
          *
          * @param hashKey a hash key value
-         * @return a hashed item, or null
+         * @return any hashed items with the given hash
          */
-        public ItemType findHash(Integer hashKey);
+        public List<ItemType> findHash(Long hashKey);
+
+        /**
+         * Refers to a stored item by its key, without loading it (implemented by the base repository).
+         *
+         * @param key a surrogate key
+         * @return a reference to the stored item
+         */
+        public ItemType getById(Long key);
+
+        /**
+         * Finds the hashed items that have any of some hashes.
+         *
+         * @param hashKeys some hash key values
+         * @return any hashed items with the given hashes
+         */
+        @Query("SELECT e FROM #{#entityName} e WHERE e.hashKey IN :hashKeys")
+        public List<ItemType> findHashes(@Param("hashKeys") Collection<Long> hashKeys);
+
+        /**
+         * Streams the stored hashes. Must be called inside a transaction, and the stream must be closed.
+         *
+         * @return the stored hashes
+         */
+        @Query("SELECT e.hashKey FROM #{#entityName} e")
+        @QueryHints(@QueryHint(name = FetchSizeHint, value = HashFetchSize))
+        public Stream<Long> streamHashKeys();
     }
 
+    static final String FetchSizeHint = "org.hibernate.fetchSize";
+    static final String HashFetchSize = "1000";
+
 } // Hashed<ItemType>
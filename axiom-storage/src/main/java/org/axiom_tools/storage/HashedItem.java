@@ -24,10 +24,10 @@ package org.axiom_tools.storage;
 public interface HashedItem extends SurrogatedItem {
 
     /**
-     * Returns a hash of the contents of this item.
+     * Returns a 64-bit hash of the contents of this item.
      *
      * @return a hash of the contents
      */
-    public int hashKey();
+    public long hashKey();
 
 } // HashedItem
@@ -0,0 +1,436 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-local, size-bounded store of the replies to requests that carry an idempotency key, so that a retried
+ * request gets the original reply without being performed again.
+ *
+ * <h4>IdempotencyStore Responsibilities:</h4>
+ * <ul>
+ * <li>reserves a request key while its request is performed, so a concurrent retry can be refused</li>
+ * <li>remembers the reply to a request, with a fingerprint of the request (e.g., a hash of its body)</li>
+ * <li>evicts the oldest replies when full, and forgets replies older than their time to live</li>
+ * <li>optionally appends the replies to a local file, and reloads the live replies when opened</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>scopes each request key (e.g., with the method and path of its request)</li>
+ * <li>completes or releases each reserved key, and refuses a request whose fingerprint differs from the reply</li>
+ * <li>closes a store after use</li>
+ * </ul>
+ */
+public class IdempotencyStore implements AutoCloseable {
+
+    public static final int DefaultCapacity = 10000;
+    public static final long DefaultTimeToLive = 24L * 60 * 60 * 1000;
+    public static final long PendingTimeToLive = 60L * 1000;
+    private static final int SegmentCount = 16;
+    private static final int CompactionFactor = 2;
+    private static final String TempSuffix = ".tmp";
+
+    private static volatile IdempotencyStore Instance = new IdempotencyStore(DefaultCapacity, DefaultTimeToLive);
+
+    private final Segment[] segments = new Segment[SegmentCount];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final int capacity;
+    private final long timeToLive;
+    private Path path = null;
+    private DataOutputStream output = null;
+    private int appendCount = 0;
+
+    /**
+     * The configured store.
+     *
+     * @return an IdempotencyStore
+     */
+    public static IdempotencyStore getInstance() {
+        return Instance;
+    }
+
+    /**
+     * Installs a store, replacing (and closing) the one previously installed.
+     *
+     * @param store a store
+     * @return the installed store
+     */
+    public static IdempotencyStore install(IdempotencyStore store) {
+        IdempotencyStore prior = Instance;
+        Instance = store;
+        if (prior != store) {
+            prior.close();
+        }
+        return store;
+    }
+
+    /**
+     * Opens a store, loading the live replies saved in a local file.
+     *
+     * @param capacity a maximum count of replies, or zero to store none
+     * @param timeToLive the milliseconds a reply is kept
+     * @param filePath a file path, or empty to keep the replies only in memory
+     * @return a new IdempotencyStore
+     * @exception UncheckedIOException if the file cannot be read or written
+     */
+    public static IdempotencyStore open(int capacity, long timeToLive, String filePath) {
+        IdempotencyStore result = new IdempotencyStore(capacity, timeToLive);
+        if (filePath != null && !filePath.trim().isEmpty()) {
+            result.load(Paths.get(filePath.trim()));
+        }
+        return result;
+    }
+
+    /**
+     * Constructs a new IdempotencyStore.
+     *
+     * @param capacity a maximum count of replies
+     * @param timeToLive the milliseconds a reply is kept
+     */
+    protected IdempotencyStore(int capacity, long timeToLive) {
+        this.capacity = Math.max(0, capacity);
+        this.timeToLive = Math.max(1, timeToLive);
+        int segmentCapacity = (this.capacity + SegmentCount - 1) / SegmentCount;
+        for (int index = 0; index < SegmentCount; index++) {
+            this.segments[index] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * Reserves a request key, unless a reply (or a reservation) is already stored for it.
+     *
+     * @param requestKey a (scoped) request key
+     * @param fingerprint a fingerprint of the request
+     * @return null if reserved for the caller, or else the stored reply (which may be pending)
+     */
+    public Reply reserve(String requestKey, long fingerprint) {
+        if (this.capacity == 0) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        long expires = now + Math.min(this.timeToLive, PendingTimeToLive);
+        Reply result = segmentFor(requestKey).reserve(requestKey,
+                new Reply(fingerprint, Reply.PendingStatus, null, expires), now);
+        if (result != null && !result.isPending()) {
+            this.hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Stores the reply to a reserved request.
+     *
+     * @param requestKey a (scoped) request key
+     * @param fingerprint a fingerprint of the request
+     * @param status a reply status (e.g., an HTTP status code)
+     * @param body a reply body, or null
+     */
+    public void complete(String requestKey, long fingerprint, int status, String body) {
+        if (this.capacity == 0) {
+            return;
+        }
+
+        Reply reply = new Reply(fingerprint, status, body, System.currentTimeMillis() + this.timeToLive);
+        segmentFor(requestKey).put(requestKey, reply);
+        append(requestKey, reply);
+    }
+
+    /**
+     * Releases a reserved request key without a reply (e.g., after a failure), so the request may be retried.
+     *
+     * @param requestKey a (scoped) request key
+     */
+    public void release(String requestKey) {
+        segmentFor(requestKey).release(requestKey);
+    }
+
+    /**
+     * A count of the stored replies and reservations.
+     *
+     * @return a count
+     */
+    public int size() {
+        int result = 0;
+        for (Segment segment : this.segments) {
+            result += segment.size();
+        }
+        return result;
+    }
+
+    /**
+     * A count of the retries answered with a stored reply.
+     *
+     * @return a count
+     */
+    public long hitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * A count of the replies evicted to make room for others.
+     *
+     * @return a count
+     */
+    public long evictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * Closes the file of this store, if any.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.output != null) {
+            try {
+                this.output.close();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                this.output = null;
+            }
+        }
+    }
+
+    private Segment segmentFor(String requestKey) {
+        int hash = requestKey.hashCode();
+        return this.segments[(hash ^ (hash >>> 16)) & (SegmentCount - 1)];
+    }
+
+    /**
+     * Loads the live replies from a file, then rewrites the file with only those replies.
+     */
+    private synchronized void load(Path filePath) {
+        this.path = filePath;
+        long now = System.currentTimeMillis();
+        if (Files.exists(filePath)) {
+            try (DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(filePath)))) {
+                while (input.available() > 0) {
+                    String requestKey = input.readUTF();
+                    Reply reply = Reply.readFrom(input);
+                    if (reply.expires > now) {
+                        segmentFor(requestKey).put(requestKey, reply);
+                    }
+                }
+            } catch (EOFException ex) {
+                // a reply was cut short by a crash
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        compact();
+    }
+
+    private synchronized void append(String requestKey, Reply reply) {
+        if (this.output == null) {
+            return;
+        }
+
+        try {
+            this.output.writeUTF(requestKey);
+            reply.writeTo(this.output);
+            this.output.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+
+        if (++this.appendCount > this.capacity * CompactionFactor) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with the live replies, and reopens it for appending.
+     */
+    private void compact() {
+        close();
+        Path temporary = this.path.resolveSibling(this.path.getFileName() + TempSuffix);
+        try {
+            try (DataOutputStream compacted = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                this.appendCount = 0;
+                for (Segment segment : this.segments) {
+                    for (Map.Entry<String, Reply> entry : segment.completed()) {
+                        compacted.writeUTF(entry.getKey());
+                        entry.getValue().writeTo(compacted);
+                        this.appendCount++;
+                    }
+                }
+            }
+            Files.move(temporary, this.path, StandardCopyOption.REPLACE_EXISTING);
+            this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.path,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * A stored reply, or a reservation (a pending reply).
+     */
+    public static final class Reply {
+
+        static final int PendingStatus = 0;
+        private static final int NoBody = -1;
+
+        private final long fingerprint;
+        private final int status;
+        private final String body;
+        private final long expires;
+
+        Reply(long fingerprint, int status, String body, long expires) {
+            this.fingerprint = fingerprint;
+            this.status = status;
+            this.body = body;
+            this.expires = expires;
+        }
+
+        /**
+         * Indicates whether the request is still being performed.
+         *
+         * @return whether this reply is pending
+         */
+        public boolean isPending() {
+            return this.status == PendingStatus;
+        }
+
+        /**
+         * Indicates whether this reply answers a request with a given fingerprint.
+         *
+         * @param fingerprint a fingerprint of a request
+         * @return whether the fingerprints match
+         */
+        public boolean matches(long fingerprint) {
+            return this.fingerprint == fingerprint;
+        }
+
+        /**
+         * A reply status.
+         *
+         * @return a status (e.g., an HTTP status code)
+         */
+        public int getStatus() {
+            return this.status;
+        }
+
+        /**
+         * A reply body.
+         *
+         * @return a body, or null
+         */
+        public String getBody() {
+            return this.body;
+        }
+
+        void writeTo(DataOutputStream output) throws IOException {
+            output.writeLong(this.fingerprint);
+            output.writeInt(this.status);
+            output.writeLong(this.expires);
+            if (this.body == null) {
+                output.writeInt(NoBody);
+            } else {
+                byte[] bytes = this.body.getBytes(StandardCharsets.UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+        }
+
+        static Reply readFrom(DataInputStream input) throws IOException {
+            long fingerprint = input.readLong();
+            int status = input.readInt();
+            long expires = input.readLong();
+            int length = input.readInt();
+            String body = null;
+            if (length != NoBody) {
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                body = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return new Reply(fingerprint, status, body, expires);
+        }
+
+    } // Reply
+
+    /**
+     * A portion of the store, oldest replies first.
+     */
+    private final class Segment {
+
+        private final LinkedHashMap<String, Reply> replies;
+
+        Segment(final int capacity) {
+            this.replies = new LinkedHashMap<String, Reply>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Reply> eldest) {
+                    boolean full = size() > capacity;
+                    if (full) {
+                        evictions.incrementAndGet();
+                    }
+                    return full || eldest.getValue().expires <= System.currentTimeMillis();
+                }
+            };
+        }
+
+        synchronized Reply reserve(String requestKey, Reply pending, long now) {
+            Reply result = this.replies.get(requestKey);
+            if (result != null && result.expires > now) {
+                return result;
+            }
+
+            this.replies.remove(requestKey); // so the reservation is the newest entry
+            this.replies.put(requestKey, pending);
+            return null;
+        }
+
+        synchronized void put(String requestKey, Reply reply) {
+            this.replies.remove(requestKey);
+            this.replies.put(requestKey, reply);
+        }
+
+        synchronized void release(String requestKey) {
+            Reply reply = this.replies.get(requestKey);
+            if (reply != null && reply.isPending()) {
+                this.replies.remove(requestKey);
+            }
+        }
+
+        synchronized List<Map.Entry<String, Reply>> completed() {
+            long now = System.currentTimeMillis();
+            ArrayList<Map.Entry<String, Reply>> results = new ArrayList<>();
+            for (Map.Entry<String, Reply> entry : this.replies.entrySet()) {
+                if (!entry.getValue().isPending() && entry.getValue().expires > now) {
+                    results.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+            }
+            return results;
+        }
+
+        synchronized int size() {
+            return this.replies.size();
+        }
+
+    } // Segment
+
+} // IdempotencyStore
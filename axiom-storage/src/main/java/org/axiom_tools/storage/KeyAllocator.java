@@ -0,0 +1,188 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.Optimizer;
+import org.hibernate.id.enhanced.PooledLoOptimizer;
+import org.hibernate.id.enhanced.PooledOptimizer;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+
+/**
+ * Allocates surrogate keys on the client side, in ranges reserved from the entity sequences. Intended for bulk loads,
+ * so that high rate inserts do not serialize on key generation.
+ *
+ * <h4>KeyAllocator Responsibilities:</h4>
+ * <ul>
+ * <li>reserves a range of keys with a single sequence call</li>
+ * <li>interprets each reserved range the same way as the configured sequence optimizer</li>
+ * <li>hands out keys from a current range per item type, without locking</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>assigns allocated keys with Surrogated.assignKey, so the items are still inserted as new</li>
+ * </ul>
+ */
+public class KeyAllocator {
+
+    private static volatile KeyAllocator Instance = null;
+
+    private final SessionFactoryImplementor factory;
+    private final Map<Class<?>, KeyRange> ranges = new ConcurrentHashMap<>();
+
+    /**
+     * The configured key allocator.
+     *
+     * @return a KeyAllocator, or null
+     */
+    public static KeyAllocator getInstance() {
+        return Instance;
+    }
+
+    /**
+     * Configures a new key allocator.
+     *
+     * @param factory an entity manager factory
+     * @return a new KeyAllocator
+     */
+    public static KeyAllocator with(EntityManagerFactory factory) {
+        Instance = new KeyAllocator(factory.unwrap(SessionFactoryImplementor.class));
+        return Instance;
+    }
+
+    /**
+     * Constructs a new KeyAllocator.
+     *
+     * @param factory a session factory
+     */
+    protected KeyAllocator(SessionFactoryImplementor factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the next key for a given item type.
+     *
+     * @param itemType a kind of item
+     * @return a new surrogate key
+     */
+    public long nextKey(Class<?> itemType) {
+        while (true) {
+            KeyRange range = this.ranges.get(itemType);
+            if (range != null) {
+                long result = range.nextKey();
+                if (result > 0) {
+                    return result;
+                }
+            }
+
+            synchronized (this) {
+                if (range == this.ranges.get(itemType)) {
+                    this.ranges.put(itemType, reserve(itemType));
+                }
+            }
+        }
+    }
+
+    /**
+     * Assigns new keys to those given items that lack them.
+     *
+     * @param items some items
+     */
+    public void assignKeys(Collection<? extends Surrogated<?>> items) {
+        for (Surrogated<?> item : items) {
+            if (item.getKey() == 0) {
+                item.assignKey(nextKey(item.getClass()));
+            }
+        }
+    }
+
+    /**
+     * Reserves a new range of keys for a given item type.
+     *
+     * @param itemType a kind of item
+     * @return a new KeyRange
+     */
+    public KeyRange reserve(Class<?> itemType) {
+        SequenceStyleGenerator generator = (SequenceStyleGenerator)
+                this.factory.getMetamodel().entityPersister(itemType).getIdentifierGenerator();
+
+        Optimizer optimizer = generator.getOptimizer();
+        long size = optimizer.getIncrementSize();
+        long offset = generator instanceof SurrogateKeyGenerator
+                ? ((SurrogateKeyGenerator) generator).getKeyOffset() : 0;
+        try (StatelessSession session = this.factory.openStatelessSession()) {
+            SharedSessionContractImplementor source = (SharedSessionContractImplementor) session;
+            long value = nextValue(generator, source);
+            if (optimizer instanceof PooledLoOptimizer) {
+                return new KeyRange(offset + value, offset + value + size - 1);
+            }
+
+            if (optimizer instanceof PooledOptimizer) {
+                // the first blocks of a pooled sequence are claimed specially, so skip them
+                long initial = generator.getDatabaseStructure().getInitialValue();
+                while (value <= initial + size) {
+                    value = nextValue(generator, source);
+                }
+                return new KeyRange(offset + value - size + 1, offset + value);
+            }
+
+            return new KeyRange(offset + value, offset + value);
+        }
+    }
+
+    private static long nextValue(SequenceStyleGenerator generator, SharedSessionContractImplementor session) {
+        return generator.getDatabaseStructure().buildCallback(session).getNextValue().makeValue().longValue();
+    }
+
+    /**
+     * A range of reserved keys.
+     */
+    public static final class KeyRange {
+
+        private final long last;
+        private final AtomicLong next;
+
+        KeyRange(long first, long last) {
+            this.last = last;
+            this.next = new AtomicLong(first);
+        }
+
+        /**
+         * Returns the next key from this range.
+         *
+         * @return a key, or zero if this range is used up
+         */
+        public long nextKey() {
+            long result = this.next.getAndIncrement();
+            return result > this.last ? 0 : result;
+        }
+
+        /**
+         * A count of the keys remaining in this range.
+         *
+         * @return a count
+         */
+        public long remaining() {
+            return Math.max(0, this.last - this.next.get() + 1);
+        }
+
+    } // KeyRange
+
+} // KeyAllocator
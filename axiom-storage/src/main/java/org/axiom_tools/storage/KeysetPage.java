@@ -0,0 +1,192 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A page of query results, found by seeking past the sort values of a previous page (keyset pagination).
+ *
+ * <h4>KeysetPage Responsibilities:</h4>
+ * <ul>
+ * <li>knows the items of a page, and whether more items follow them</li>
+ * <li>encodes the sort values of its last item as an opaque continuation token (cursor)</li>
+ * <li>decodes a cursor back into the sort values from which the next page starts</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>fetches one more item than the page limit, so that a following page can be detected</li>
+ * <li>sorts the results by unique values (e.g., ending with the surrogate key)</li>
+ * </ul>
+ *
+ * @param <ItemType> a result item type
+ */
+public class KeysetPage<ItemType> {
+
+    private static final char LongValue = 'L';
+    private static final char IntegerValue = 'I';
+    private static final char TextValue = 'S';
+
+    private final List<ItemType> items;
+    private final String nextCursor;
+
+    /**
+     * Returns a new KeysetPage.
+     *
+     * @param <ItemType> a result item type
+     * @param fetched the fetched results, up to one more than the limit
+     * @param limit a maximum count of items per page
+     * @param seekValues obtains the sort values of an item
+     * @return a new KeysetPage
+     */
+    public static <ItemType> KeysetPage<ItemType> of(
+            List<ItemType> fetched, int limit, Function<ItemType, Object[]> seekValues) {
+        if (fetched.size() <= limit) {
+            return new KeysetPage<>(fetched, null);
+        }
+
+        List<ItemType> items = new ArrayList<>(fetched.subList(0, limit));
+        return new KeysetPage<>(items, encode(seekValues.apply(items.get(limit - 1))));
+    }
+
+    /**
+     * Constructs a new KeysetPage.
+     *
+     * @param items the items of this page
+     * @param nextCursor a cursor for the following page, or null
+     */
+    protected KeysetPage(List<ItemType> items, String nextCursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * The items of this page.
+     *
+     * @return some items
+     */
+    public List<ItemType> getItems() {
+        return this.items;
+    }
+
+    /**
+     * A cursor that locates the following page.
+     *
+     * @return a cursor, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return this.nextCursor;
+    }
+
+    /**
+     * Indicates whether more items follow this page.
+     *
+     * @return whether a following page exists
+     */
+    public boolean hasMore() {
+        return this.nextCursor != null;
+    }
+
+    /**
+     * Encodes some sort values as a cursor.
+     *
+     * @param seekValues some String, Integer, or Long values
+     * @return a URL safe cursor
+     */
+    public static String encode(Object... seekValues) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream data = new DataOutputStream(bytes)) {
+                for (Object value : seekValues) {
+                    if (value instanceof Long) {
+                        data.writeChar(LongValue);
+                        data.writeLong((Long) value);
+                    } else if (value instanceof Integer) {
+                        data.writeChar(IntegerValue);
+                        data.writeInt((Integer) value);
+                    } else if (value instanceof String) {
+                        data.writeChar(TextValue);
+                        data.writeUTF((String) value);
+                    } else {
+                        throw new IllegalArgumentException(String.format(UnsupportedValue, value));
+                    }
+                }
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Decodes the sort values of a cursor.
+     *
+     * @param cursor a cursor
+     * @return some sort values
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static Object[] decode(String cursor) {
+        ArrayList<Object> results = new ArrayList<>();
+        try (DataInputStream data = new DataInputStream(
+                new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+            while (data.available() > 0) {
+                char valueType = data.readChar();
+                switch (valueType) {
+                    case LongValue:
+                        results.add(data.readLong());
+                        break;
+                    case IntegerValue:
+                        results.add(data.readInt());
+                        break;
+                    case TextValue:
+                        results.add(data.readUTF());
+                        break;
+                    default:
+                        throw new IllegalArgumentException(String.format(MalformedCursor, cursor));
+                }
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(String.format(MalformedCursor, cursor), ex);
+        }
+        return results.toArray();
+    }
+
+    /**
+     * Decodes the sort values of a cursor, checking that they have the expected types.
+     *
+     * @param cursor a cursor
+     * @param valueTypes the expected types of the sort values
+     * @return some sort values
+     * @throws IllegalArgumentException if the cursor is malformed, or its values have other types
+     */
+    public static Object[] decode(String cursor, Class<?>... valueTypes) {
+        Object[] results = decode(cursor);
+        if (results.length != valueTypes.length) {
+            throw new IllegalArgumentException(String.format(MalformedCursor, cursor));
+        }
+
+        for (int index = 0; index < results.length; index++) {
+            if (!valueTypes[index].isInstance(results[index])) {
+                throw new IllegalArgumentException(String.format(MalformedCursor, cursor));
+            }
+        }
+        return results;
+    }
+
+    static final String UnsupportedValue = "unsupported cursor value: %s";
+    static final String MalformedCursor = "malformed cursor: %s";
+
+} // KeysetPage
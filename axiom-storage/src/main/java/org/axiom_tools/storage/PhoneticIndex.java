@@ -0,0 +1,130 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.function.Function;
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Encodes the words of names as phonetic (Double Metaphone) codes, so that similar sounding names can be found with
+ * an index of codes instead of comparing every stored name.
+ *
+ * <h4>PhoneticIndex Responsibilities:</h4>
+ * <ul>
+ * <li>knows the primary and alternate codes of each word of an indexed name</li>
+ * <li>knows the primary code of each word of a query</li>
+ * <li>ranks the candidates that share the codes of a query by their edit distance from it</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>stores the (distinct) sounds of each indexed name with the key of its owner</li>
+ * <li>selects the owners that have all the query codes, then ranks them</li>
+ * </ul>
+ */
+public final class PhoneticIndex {
+
+    /**
+     * The maximum length of a phonetic code.
+     */
+    public static final int CodeLength = 4;
+
+    private static final String Blank = " ";
+    private static final String WordSeparators = "[^\\p{L}]+";
+    private static final DoubleMetaphone Encoder = new DoubleMetaphone();
+
+    private PhoneticIndex() { }
+
+    /**
+     * Returns the distinct sounds of a name: the primary and alternate codes of its words.
+     *
+     * @param name a name
+     * @return some phonetic codes
+     */
+    public static Set<String> sounds(String name) {
+        LinkedHashSet<String> results = new LinkedHashSet<>();
+        for (String word : words(name)) {
+            addCode(results, Encoder.doubleMetaphone(word, false));
+            addCode(results, Encoder.doubleMetaphone(word, true));
+        }
+        return results;
+    }
+
+    /**
+     * Returns the distinct primary codes of the words of a query. A name sounds like the query if its sounds include
+     * all these codes.
+     *
+     * @param query a query name
+     * @return some phonetic codes, or empty if the query has no words
+     */
+    public static Set<String> codes(String query) {
+        LinkedHashSet<String> results = new LinkedHashSet<>();
+        for (String word : words(query)) {
+            addCode(results, Encoder.doubleMetaphone(word, false));
+        }
+        return results;
+    }
+
+    /**
+     * Returns a phonetic key for a whole name: the primary codes of its words, in order.
+     *
+     * @param name a name
+     * @return a phonetic name key, or empty
+     */
+    public static String nameKey(String name) {
+        return String.join(Blank, codes(name));
+    }
+
+    /**
+     * Returns some candidates ordered by the edit distance between their names and a query (nearest first).
+     *
+     * @param <ItemType> a kind of item
+     * @param query a query name
+     * @param candidates the items found with the codes of the query
+     * @param nameOf obtains the indexed name of an item
+     * @return the candidates, ranked
+     */
+    public static <ItemType> List<ItemType> rank(
+            String query, Collection<ItemType> candidates, Function<ItemType, String> nameOf) {
+        String normalQuery = TrigramIndex.normalize(query);
+        HashMap<ItemType, Integer> distances = new HashMap<>();
+        for (ItemType candidate : candidates) {
+            distances.put(candidate,
+                    StringUtils.getLevenshteinDistance(normalQuery, TrigramIndex.normalize(nameOf.apply(candidate))));
+        }
+
+        ArrayList<ItemType> results = new ArrayList<>(candidates);
+        results.sort(Comparator.<ItemType>comparingInt(distances::get)
+                .thenComparing(item -> TrigramIndex.normalize(nameOf.apply(item))));
+        return results;
+    }
+
+    private static List<String> words(String text) {
+        ArrayList<String> results = new ArrayList<>();
+        for (String word : TrigramIndex.normalize(text).split(WordSeparators)) {
+            if (!word.isEmpty()) {
+                results.add(word);
+            }
+        }
+        return results;
+    }
+
+    private static void addCode(Set<String> results, String code) {
+        if (code != null && !code.isEmpty()) {
+            results.add(code);
+        }
+    }
+
+} // PhoneticIndex
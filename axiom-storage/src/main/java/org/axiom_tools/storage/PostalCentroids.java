@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.springframework.util.ResourceUtils;
+
+/**
+ * Locates postal codes by their centroids (the center of the area each code serves), loaded from a local file.
+ *
+ * <h4>PostalCentroids Responsibilities:</h4>
+ * <ul>
+ * <li>loads the centroids from a CSV file, with lines like: code,latitude,longitude</li>
+ * <li>knows the location and the geohash of each loaded postal code</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>installs the centroids at startup, before saving any located items</li>
+ * <li>normalizes a postal code (upper case, trimmed) before looking it up</li>
+ * </ul>
+ */
+public class PostalCentroids {
+
+    private static final String Comma = ",";
+    private static final String Comment = "#";
+    private static final int CodeColumn = 0;
+    private static final int LatitudeColumn = 1;
+    private static final int LongitudeColumn = 2;
+
+    private static volatile PostalCentroids Instance = new PostalCentroids();
+
+    private final HashMap<String, double[]> locations = new HashMap<>();
+    private final HashMap<String, String> geohashes = new HashMap<>();
+
+    /**
+     * The installed centroids.
+     *
+     * @return some PostalCentroids, empty if none were loaded
+     */
+    public static PostalCentroids getInstance() {
+        return Instance;
+    }
+
+    /**
+     * Installs some centroids, replacing those previously installed.
+     *
+     * @param centroids some centroids
+     * @return the installed centroids
+     */
+    public static PostalCentroids install(PostalCentroids centroids) {
+        Instance = centroids;
+        return centroids;
+    }
+
+    /**
+     * Loads the centroids from a file, or from a class path resource (e.g., classpath:postal-centroids.csv).
+     * Blank lines, comments (#), and lines without a numeric location (e.g., a header) are skipped.
+     *
+     * @param location a file path or resource location, or empty for no centroids
+     * @return some new PostalCentroids
+     * @exception UncheckedIOException if the file cannot be read
+     */
+    public static PostalCentroids load(String location) {
+        PostalCentroids result = new PostalCentroids();
+        if (location == null || location.trim().isEmpty()) {
+            return result;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                ResourceUtils.getURL(location.trim()).openStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                result.addLine(line);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Constructs a new (empty) PostalCentroids.
+     */
+    public PostalCentroids() {
+        super();
+    }
+
+    /**
+     * Adds a centroid.
+     *
+     * @param postalCode a (normalized) postal code
+     * @param latitude a latitude, in degrees
+     * @param longitude a longitude, in degrees
+     * @return this PostalCentroids
+     */
+    public PostalCentroids with(String postalCode, double latitude, double longitude) {
+        double[] location = {latitude, longitude};
+        this.locations.put(postalCode, location);
+        this.geohashes.put(postalCode, GeoHash.encode(latitude, longitude, GeoHash.Precision));
+        return this;
+    }
+
+    private void addLine(String line) {
+        String text = line.trim();
+        if (text.isEmpty() || text.startsWith(Comment)) {
+            return;
+        }
+
+        String[] columns = text.split(Comma);
+        if (columns.length <= LongitudeColumn) {
+            return;
+        }
+
+        try {
+            with(columns[CodeColumn].trim().toUpperCase(),
+                    Double.parseDouble(columns[LatitudeColumn].trim()),
+                    Double.parseDouble(columns[LongitudeColumn].trim()));
+        } catch (NumberFormatException ex) {
+            // not a centroid, e.g., a header
+        }
+    }
+
+    /**
+     * A count of the loaded centroids.
+     *
+     * @return a count
+     */
+    public int size() {
+        return this.locations.size();
+    }
+
+    /**
+     * Returns the centroid of a postal code.
+     *
+     * @param postalCode a (normalized) postal code
+     * @return a latitude and longitude, or null if unknown
+     */
+    public double[] locate(String postalCode) {
+        double[] result = this.locations.get(postalCode);
+        return result == null ? null : result.clone();
+    }
+
+    /**
+     * Returns the geohash of the centroid of a postal code.
+     *
+     * @param postalCode a (normalized) postal code
+     * @return a geohash, or null if unknown
+     */
+    public String geohash(String postalCode) {
+        return this.geohashes.get(postalCode);
+    }
+
+} // PostalCentroids
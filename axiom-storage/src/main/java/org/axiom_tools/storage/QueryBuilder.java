@@ -12,10 +12,12 @@
  */
 package org.axiom_tools.storage;
 
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
@@ -28,12 +30,16 @@ import javax.persistence.Query;
  * <li>knows either query text or a query name</li>
  * <li>knows either count text or a count name</li>
  * <li>knows query parameter values</li>
- * <li>builds a query and / or a count query from its values</li>
+ * <li>knows an optional page of results</li>
+ * <li>knows optional seek paths, and the sort values after which a keyset page starts</li>
+ * <li>builds a query and / or a count query from its values, using cached query plans</li>
  * </ul>
  *
  * <h4>Client Responsibilities:</h4>
  * <ul>
  * <li>properly constructs a QueryBuilder</li>
+ * <li>supplies keyset query text without any ORDER BY or GROUP BY clauses, and seek paths that end with a unique
+ * path (e.g., the surrogate key)</li>
  * </ul>
  */
 public class QueryBuilder {
@@ -42,10 +48,19 @@ public class QueryBuilder {
     private static final String QueryText = "queryText";
     private static final String CountName = "countName";
     private static final String CountText = "countText";
-    private static final String[] ReservedWords = {QueryName, QueryText, CountName, CountText};
-    private static final List<String> Reservations = Arrays.asList(ReservedWords);
+    private static final String SeekValue = "seek";
+    private static final Pattern WhereClause = Pattern.compile("where\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SortClause = Pattern.compile("(order|group)\\s+by\\b", Pattern.CASE_INSENSITIVE);
 
-    private final HashMap<String, Object> values = new HashMap<>();
+    private String queryName;
+    private String queryText;
+    private String countName;
+    private String countText;
+    private int firstResult = 0;
+    private int maxResults = -1;
+    private String[] seekPaths = {};
+    private Object[] seekValues = {};
+    private final LinkedHashMap<String, Object> values = new LinkedHashMap<>();
 
     /**
      * Returns a new QueryBuilder.
@@ -97,7 +112,22 @@ public class QueryBuilder {
      * @return this QueryBuilder
      */
     public QueryBuilder withValue(String valueName, Object namedValue) {
-        this.values.put(valueName, namedValue);
+        switch (valueName) {
+            case QueryName:
+                this.queryName = (String) namedValue;
+                break;
+            case QueryText:
+                this.queryText = (String) namedValue;
+                break;
+            case CountName:
+                this.countName = (String) namedValue;
+                break;
+            case CountText:
+                this.countText = (String) namedValue;
+                break;
+            default:
+                this.values.put(valueName, namedValue);
+        }
         return this;
     }
 
@@ -108,64 +138,210 @@ public class QueryBuilder {
      * @return this QueryBuilder
      */
     public QueryBuilder withValues(Map<String, Object> namedValues) {
-        this.values.putAll(namedValues);
+        for (Map.Entry<String, Object> entry : namedValues.entrySet()) {
+            withValue(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Limits the results of a built query to a page. Count queries are not limited.
+     *
+     * @param firstResult the position of the first result
+     * @param maxResults a maximum count of results
+     * @return this QueryBuilder
+     */
+    public QueryBuilder withPage(int firstResult, int maxResults) {
+        this.firstResult = firstResult;
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    /**
+     * Orders the results of a built query by some seek paths, for keyset pagination.
+     *
+     * @param seekPaths some query paths (e.g., "p.name", "p.key")
+     * @return this QueryBuilder
+     */
+    public QueryBuilder orderedBy(String... seekPaths) {
+        this.seekPaths = seekPaths.clone();
         return this;
     }
 
+    /**
+     * Starts the results of a built query after the given sort values of a previous page.
+     *
+     * @param lastValues the values of the seek paths in the last result of a previous page
+     * @return this QueryBuilder
+     */
+    public QueryBuilder after(Object... lastValues) {
+        if (lastValues.length > 0 && lastValues.length != this.seekPaths.length) {
+            throw new IllegalArgumentException(String.format(SeekMismatch, lastValues.length, this.seekPaths.length));
+        }
+
+        this.seekValues = lastValues.clone();
+        for (int index = 0; index < this.seekValues.length; index++) {
+            this.values.put(SeekValue + index, this.seekValues[index]);
+        }
+        return this;
+    }
+
+    static final String SeekMismatch = "%d seek values given for %d seek paths";
+
+    /**
+     * Starts the results of a built query after the page that produced a cursor.
+     *
+     * @param cursor a cursor from a previous KeysetPage, or null for the first page
+     * @return this QueryBuilder
+     */
+    public QueryBuilder afterCursor(String cursor) {
+        return cursor == null || cursor.isEmpty() ? this : after(KeysetPage.decode(cursor));
+    }
+
+    /**
+     * Limits the results of a built query to a maximum count, without skipping any.
+     *
+     * @param maxResults a maximum count of results
+     * @return this QueryBuilder
+     */
+    public QueryBuilder limit(int maxResults) {
+        return withPage(0, maxResults);
+    }
+
+    /**
+     * Indicates whether this builder orders its results by seek paths.
+     */
+    public boolean hasSeekPaths() {
+        return this.seekPaths.length > 0;
+    }
+
     /**
      * Indicates whether this builder contains a query name.
      */
     public boolean hasNamedQuery() {
-        return this.values.containsKey(QueryName);
+        return this.queryName != null;
     }
 
     /**
      * Indicates whether this builder contains query text.
      */
     public boolean hasTextQuery() {
-        return this.values.containsKey(QueryText);
+        return this.queryText != null;
     }
 
     /**
      * Indicates whether this builder contains a count name.
      */
     public boolean hasNamedCount() {
-        return this.values.containsKey(QueryName);
+        return this.countName != null;
     }
 
     /**
      * Indicates whether this builder contains count text.
      */
     public boolean hasTextCount() {
-        return this.values.containsKey(QueryText);
+        return this.countText != null;
     }
 
     /**
      * A query name.
      */
     public String getQueryName() {
-        return (String) this.values.get(QueryName);
+        return this.queryName;
     }
 
     /**
      * The text of a query.
      */
     public String getQueryText() {
-        return (String) this.values.get(QueryText);
+        return this.queryText;
     }
 
     /**
      * A count name.
      */
     public String getCountName() {
-        return (String) this.values.get(CountName);
+        return this.countName;
     }
 
     /**
      * The text of a count query.
      */
     public String getCountText() {
-        return (String) this.values.get(CountText);
+        return this.countText;
+    }
+
+    /**
+     * The text of a keyset query, which seeks past any given sort values and orders its results by the seek paths.
+     * Any predicate of the query text is kept intact, and combined with the seek predicate.
+     */
+    public String getSeekText() {
+        if (!hasTextQuery() || !hasSeekPaths()) {
+            return getQueryText();
+        }
+
+        String queryText = getQueryText();
+        if (findClause(queryText, SortClause) >= 0) {
+            throw new IllegalStateException(String.format(SortedSeek, queryText));
+        }
+
+        StringBuilder result = new StringBuilder();
+        int where = findClause(queryText, WhereClause);
+        if (this.seekValues.length == 0) {
+            result.append(queryText);
+        } else if (where < 0) {
+            result.append(queryText).append(" WHERE (");
+        } else {
+            result.append(queryText, 0, where).append("WHERE (");
+            result.append(queryText.substring(where + "where".length()).trim()).append(") AND (");
+        }
+
+        if (this.seekValues.length > 0) {
+            for (int index = 0; index < this.seekPaths.length; index++) {
+                if (index > 0) {
+                    result.append(" OR ");
+                }
+                result.append("(");
+                for (int prior = 0; prior < index; prior++) {
+                    result.append(this.seekPaths[prior]).append(" = :").append(SeekValue).append(prior).append(" AND ");
+                }
+                result.append(this.seekPaths[index]).append(" > :").append(SeekValue).append(index).append(")");
+            }
+            result.append(")");
+        }
+
+        result.append(" ORDER BY ").append(String.join(", ", this.seekPaths));
+        return result.toString();
+    }
+
+    static final String SortedSeek = "keyset query text must not order or group its results: %s";
+
+    /**
+     * Finds a clause of a query text, outside any string literals and parenthesized subqueries.
+     *
+     * @param queryText a query text
+     * @param clause a clause pattern
+     * @return the position of the clause, or -1 if not found
+     */
+    private static int findClause(String queryText, Pattern clause) {
+        Matcher matcher = clause.matcher(queryText);
+        boolean quoted = false;
+        int depth = 0;
+        for (int index = 0; index < queryText.length(); index++) {
+            char c = queryText.charAt(index);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0
+                    && (index == 0 || !Character.isJavaIdentifierPart(queryText.charAt(index - 1)))
+                    && matcher.region(index, queryText.length()).lookingAt()) {
+                return index;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -175,17 +351,53 @@ public class QueryBuilder {
      * @return a new Query
      */
     public Query buildQuery(EntityManager manager) {
+        return buildQuery(manager, this.maxResults);
+    }
+
+    private Query buildQuery(EntityManager manager, int maxResults) {
+        Query result = null;
         if (hasNamedQuery()) {
-            return queryWithValues(manager.createNamedQuery(getQueryName()));
+            if (hasSeekPaths()) {
+                throw new IllegalStateException(String.format(NamedSeek, getQueryName()));
+            }
+            result = QueryPlan.named(manager, getQueryName()).createQuery(manager, this.values);
+        } else if (hasTextQuery()) {
+            result = QueryPlan.text(manager, getSeekText()).createQuery(manager, this.values);
         }
 
-        if (hasTextQuery()) {
-            return queryWithValues(manager.createQuery(getQueryText()));
+        if (result != null) {
+            result.setFirstResult(this.firstResult);
+            if (maxResults >= 0) {
+                result.setMaxResults(maxResults);
+            }
         }
+        return result;
+    }
 
-        return null;
+    static final String NamedSeek = "named query %s cannot seek, use query text instead";
+
+    /**
+     * Builds and runs a keyset query, fetching one more result than the limit to detect a following page.
+     *
+     * @param <ItemType> a result item type
+     * @param manager a query factory
+     * @param seekValues obtains the values of the seek paths from a result
+     * @return a new KeysetPage
+     */
+    @SuppressWarnings("unchecked")
+    public <ItemType> KeysetPage<ItemType> buildPage(
+            EntityManager manager, Function<ItemType, Object[]> seekValues) {
+        if (!hasSeekPaths() || this.maxResults < 1) {
+            throw new IllegalStateException(NoKeyset);
+        }
+
+        int limit = Math.min(this.maxResults, Integer.MAX_VALUE - 1);
+        List<ItemType> fetched = buildQuery(manager, limit + 1).getResultList();
+        return KeysetPage.of(fetched, limit, seekValues);
     }
 
+    static final String NoKeyset = "a keyset page needs seek paths and a positive limit";
+
     /**
      * Builds a new count Query.
      *
@@ -194,29 +406,14 @@ public class QueryBuilder {
      */
     public Query buildCount(EntityManager manager) {
         if (hasNamedCount()) {
-            return queryWithValues(manager.createNamedQuery(getCountName()));
+            return QueryPlan.named(manager, getCountName()).createQuery(manager, this.values);
         }
 
         if (hasTextCount()) {
-            return queryWithValues(manager.createQuery(getCountText()));
+            return QueryPlan.text(manager, getCountText()).createQuery(manager, this.values);
         }
 
         return null;
     }
 
-    /**
-     * Returns a query after adding parameter values from this builder.
-     *
-     * @param query a query
-     * @return a Query
-     */
-    private Query queryWithValues(Query query) {
-        for (String valueName : this.values.keySet()) {
-            if (!Reservations.contains(valueName)) {
-                query.setParameter(valueName, this.values.get(valueName));
-            }
-        }
-        return query;
-    }
-
 } // QueryBuilder
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+
+/**
+ * A compiled query and its parameter binding plan, cached by query name or text.
+ *
+ * <h4>QueryPlan Responsibilities:</h4>
+ * <ul>
+ * <li>compiles a text query once, and registers it as a named query with its entity manager factory</li>
+ * <li>knows the parameters declared by its query, so it binds only those</li>
+ * <li>caches the plans of each entity manager factory, up to a maximum count, after which it compiles each text
+ * query anew without registering it</li>
+ * <li>holds its factories weakly, and drops the plans of any factory once it closes</li>
+ * </ul>
+ */
+public final class QueryPlan {
+
+    public static final int MaximumPlans = 1000;
+    private static final String PlanPrefix = "axiom.plan.";
+
+    private static final Map<EntityManagerFactory, FactoryPlans> Plans =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final AtomicInteger PlanCount = new AtomicInteger();
+
+    private final String queryName;
+    private final String queryText;
+    private final String[] parameterNames;
+
+    /**
+     * Returns the plan of a named query.
+     *
+     * @param manager an entity manager
+     * @param queryName a query name
+     * @return a QueryPlan
+     */
+    public static QueryPlan named(EntityManager manager, String queryName) {
+        return planFor(manager, new PlanKey(true, queryName));
+    }
+
+    /**
+     * Returns the plan of a text query.
+     *
+     * @param manager an entity manager
+     * @param queryText a query text
+     * @return a QueryPlan
+     */
+    public static QueryPlan text(EntityManager manager, String queryText) {
+        return planFor(manager, new PlanKey(false, queryText));
+    }
+
+    private static QueryPlan planFor(EntityManager manager, PlanKey planKey) {
+        FactoryPlans plans = plansOf(manager.getEntityManagerFactory());
+        QueryPlan result = plans.find(planKey);
+        if (result != null) {
+            return result;
+        }
+
+        if (planKey.named) {
+            return plans.add(planKey, new QueryPlan(planKey.query, null, manager.createNamedQuery(planKey.query)));
+        }
+
+        Query query = manager.createQuery(planKey.query);
+        if (plans.isFull()) {
+            return new QueryPlan(null, planKey.query, query); // compiled anew for each use, never registered
+        }
+
+        String queryName = PlanPrefix + PlanCount.incrementAndGet();
+        manager.getEntityManagerFactory().addNamedQuery(queryName, query);
+        return plans.add(planKey, new QueryPlan(queryName, null, query));
+    }
+
+    private static FactoryPlans plansOf(EntityManagerFactory factory) {
+        synchronized (Plans) {
+            FactoryPlans result = Plans.get(factory);
+            if (result == null) {
+                Plans.keySet().removeIf(closed -> !closed.isOpen());
+                result = new FactoryPlans();
+                Plans.put(factory, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A count of the cached plans.
+     *
+     * @return a count
+     */
+    public static int size() {
+        synchronized (Plans) {
+            int result = 0;
+            for (FactoryPlans plans : Plans.values()) {
+                result += plans.size();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Removes all the cached plans.
+     */
+    public static void clear() {
+        Plans.clear();
+    }
+
+    /**
+     * Constructs a new QueryPlan.
+     *
+     * @param queryName the name of a compiled query, or null
+     * @param queryText the text of a query (compiled for each use), or null
+     * @param query a query
+     */
+    private QueryPlan(String queryName, String queryText, Query query) {
+        this.queryName = queryName;
+        this.queryText = queryText;
+        ArrayList<String> names = new ArrayList<>();
+        for (Parameter<?> parameter : query.getParameters()) {
+            if (parameter.getName() != null) {
+                names.add(parameter.getName());
+            }
+        }
+        this.parameterNames = names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * The names of the parameters declared by the query.
+     *
+     * @return some parameter names
+     */
+    public List<String> parameterNames() {
+        return Collections.unmodifiableList(Arrays.asList(this.parameterNames));
+    }
+
+    /**
+     * Creates a query from this plan, binding any declared parameters found in some values.
+     *
+     * @param manager an entity manager
+     * @param values some named values
+     * @return a new Query
+     */
+    public Query createQuery(EntityManager manager, Map<String, Object> values) {
+        Query result = this.queryName == null
+                ? manager.createQuery(this.queryText) : manager.createNamedQuery(this.queryName);
+        for (String parameterName : this.parameterNames) {
+            if (values.containsKey(parameterName)) {
+                result.setParameter(parameterName, values.get(parameterName));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Identifies a plan by query.
+     */
+    private static final class PlanKey {
+
+        private final boolean named;
+        private final String query;
+
+        PlanKey(boolean named, String query) {
+            this.named = named;
+            this.query = query;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Boolean.hashCode(this.named) + this.query.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object candidate) {
+            if (!(candidate instanceof PlanKey)) {
+                return false;
+            }
+            PlanKey other = (PlanKey) candidate;
+            return other.named == this.named && other.query.equals(this.query);
+        }
+
+    } // PlanKey
+
+    /**
+     * The cached plans of an entity manager factory.
+     */
+    private static final class FactoryPlans {
+
+        private final HashMap<PlanKey, QueryPlan> plans = new HashMap<>();
+
+        synchronized QueryPlan find(PlanKey planKey) {
+            return this.plans.get(planKey);
+        }
+
+        synchronized QueryPlan add(PlanKey planKey, QueryPlan plan) {
+            if (isFull()) {
+                return plan;
+            }
+            QueryPlan prior = this.plans.putIfAbsent(planKey, plan);
+            return prior == null ? plan : prior;
+        }
+
+        synchronized boolean isFull() {
+            return this.plans.size() >= MaximumPlans;
+        }
+
+        synchronized int size() {
+            return this.plans.size();
+        }
+
+    } // FactoryPlans
+
+} // QueryPlan
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the aggregates of a root type into the shards where their hashes now belong, e.g., after shards were added.
+ *
+ * <h4>ShardRebalancer Responsibilities:</h4>
+ * <ul>
+ * <li>finds the misplaced roots of each shard by streaming its stored hashes</li>
+ * <li>copies each misplaced aggregate into its proper shard, and then removes it from its old shard</li>
+ * <li>keeps the surrogate keys of a moved aggregate, since they identify its items to clients (e.g., a person ID);
+ * ShardSet.findById still finds an item whose key lies outside the key range of its shard</li>
+ * <li>reports the counts of the scanned, moved, and failed roots</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>supplies a detached deep copy of a root (e.g., from its JSON) with the keys of its items, which are then
+ * inserted with those keys; the copier runs within a transaction of the source shard, so it may load lazy
+ * components</li>
+ * <li>rebalances while writes are paused, and reruns a rebalance after any failures</li>
+ * </ul>
+ *
+ * @param <ItemType> a kind of aggregate root
+ */
+@SuppressWarnings("unchecked")
+public class ShardRebalancer<ItemType extends HashedItem> {
+
+    private static final Logger Log = LoggerFactory.getLogger(ShardRebalancer.class);
+    private static final int BatchSize = 500;
+
+    private final ShardSet shards;
+    private final Class<ItemType> rootType;
+    private final UnaryOperator<ItemType> copier;
+
+    private long scanned = 0;
+    private long moved = 0;
+    private long failed = 0;
+
+    /**
+     * Constructs a new ShardRebalancer.
+     *
+     * @param shards a shard set
+     * @param rootType a kind of aggregate root
+     * @param copier copies a root and its components
+     */
+    public ShardRebalancer(ShardSet shards, Class<ItemType> rootType, UnaryOperator<ItemType> copier) {
+        this.shards = shards;
+        this.rootType = rootType;
+        this.copier = copier;
+    }
+
+    /**
+     * Moves all the misplaced roots into their proper shards.
+     *
+     * @return this rebalancer
+     */
+    public ShardRebalancer<ItemType> rebalance() {
+        for (int index = 0; index < this.shards.size(); index++) {
+            rebalance(index);
+        }
+        Log.info(String.format(Report, this.rootType.getSimpleName(), this.scanned, this.moved, this.failed));
+        return this;
+    }
+
+    static final String Report = "rebalanced %s: scanned = %d, moved = %d, failed = %d";
+
+    private void rebalance(int source) {
+        List<Long> misplaced = this.shards.within(source, true, () -> {
+            try (Stream<Long> hashKeys = searchStore().streamHashKeys()) {
+                return hashKeys.peek(hashKey -> this.scanned++)
+                        .filter(hashKey -> this.shards.shardFor(hashKey) != source)
+                        .distinct().collect(Collectors.toList());
+            }
+        });
+
+        for (int index = 0; index < misplaced.size(); index += BatchSize) {
+            List<Long> batch = misplaced.subList(index, Math.min(misplaced.size(), index + BatchSize));
+            // copies while the roots are attached, so that any lazy components get loaded
+            Map<Long, ItemType> copies = this.shards.within(source, true, () -> copy(source, batch));
+            for (Map.Entry<Long, ItemType> entry : copies.entrySet()) {
+                move(source, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private Map<Long, ItemType> copy(int source, List<Long> hashKeys) {
+        LinkedHashMap<Long, ItemType> results = new LinkedHashMap<>();
+        for (ItemType root : searchStore().findHashes(hashKeys)) {
+            try {
+                results.put(root.getKey(), this.copier.apply(root));
+            } catch (RuntimeException ex) {
+                this.failed++;
+                Log.warn(String.format(CopyFailed, root.getKey(), source, ex.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    static final String CopyFailed = "failed to copy %d from shard %d: %s";
+
+    private void move(int source, long rootKey, ItemType copy) {
+        int target = this.shards.shardFor(copy.hashKey());
+        try {
+            assignKeys(copy);
+            this.shards.within(target, false, () -> copy.saveItem());
+            this.shards.within(source, false, () -> {
+                ((Surrogated<?>) searchStore().findById(rootKey).get()).removeItem();
+                return null;
+            });
+            this.moved++;
+        } catch (RuntimeException ex) {
+            this.failed++;
+            Log.warn(String.format(MoveFailed, rootKey, source, target, ex.getMessage()));
+        }
+    }
+
+    static final String MoveFailed = "failed to move %d from shard %d to %d: %s";
+
+    private Hashed.Search<ItemType> searchStore() {
+        return (Hashed.Search<ItemType>) StorageMechanism.get(this.rootType);
+    }
+
+    /**
+     * Assigns the copied surrogate keys of an item and its components, so that they are inserted with those keys.
+     */
+    private static void assignKeys(SurrogatedItem item) {
+        ((Surrogated<?>) item).assignKey(item.getKey());
+        for (SurrogatedItem component : BatchWriter.listComponents(item)) {
+            assignKeys(component);
+        }
+    }
+
+    /**
+     * A count of the roots scanned.
+     *
+     * @return a count
+     */
+    public long scannedCount() {
+        return this.scanned;
+    }
+
+    /**
+     * A count of the roots moved.
+     *
+     * @return a count
+     */
+    public long movedCount() {
+        return this.moved;
+    }
+
+    /**
+     * A count of the roots that failed to move.
+     *
+     * @return a count
+     */
+    public long failedCount() {
+        return this.failed;
+    }
+
+} // ShardRebalancer
@@ -0,0 +1,359 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.jpa.repository.support.JpaRepositoryFactory;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A set of databases across which the aggregates of hashed items are partitioned (sharded).
+ *
+ * <p>Sharding is opt-in: the default storage paths (e.g., Hashed.saveItem, findWithHash, and findItem, and the
+ * repositories of the default registry) still use the default data source. Only the aggregates saved and found
+ * through a ShardSet are sharded.</p>
+ *
+ * <h4>ShardSet Responsibilities:</h4>
+ * <ul>
+ * <li>assigns each hash to a shard with a jump consistent hash, so that adding shards moves few items</li>
+ * <li>reserves a range of surrogate keys for each shard, so that a key identifies its home shard</li>
+ * <li>saves and finds items in their shards, within a transaction of that shard</li>
+ * <li>finds an item by key in its home shard, or (once moved by a rebalance, which keeps its key) in the others</li>
+ * <li>gathers the results of a query from all its shards in parallel</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>saves an aggregate through its root, so that all its components are stored in the same shard</li>
+ * <li>finds items with the methods of this set, or with within a shard</li>
+ * </ul>
+ */
+@SuppressWarnings("unchecked")
+public class ShardSet implements AutoCloseable {
+
+    private static final Logger Log = LoggerFactory.getLogger(ShardSet.class);
+
+    /**
+     * The position of the shard index within a surrogate key. Each shard owns 2^48 keys.
+     */
+    public static final int KeyShardShift = 48;
+    private static final String UnitName = "shard-";
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final ExecutorService executor;
+
+    /**
+     * Returns a new ShardSet, with an entity manager factory and repositories for each shard.
+     *
+     * @param dataSources a data source for each shard
+     * @param modelPackages the packages containing the model types
+     * @param properties the JPA properties
+     * @param registry a registry whose storage types are mirrored in each shard
+     * @return a new ShardSet
+     */
+    public static ShardSet with(List<DataSource> dataSources,
+            String[] modelPackages, Properties properties, StorageMechanism.Registry registry) {
+        ArrayList<Shard> shards = new ArrayList<>();
+        try {
+            for (int index = 0; index < dataSources.size(); index++) {
+                shards.add(buildShard(index, dataSources.get(index), modelPackages, properties, registry));
+            }
+        } catch (RuntimeException ex) {
+            new ShardSet(shards).close();
+            for (DataSource dataSource : dataSources.subList(shards.size(), dataSources.size())) {
+                closeQuietly(dataSource);
+            }
+            throw ex;
+        }
+        return new ShardSet(shards);
+    }
+
+    private static Shard buildShard(int index, DataSource dataSource,
+            String[] modelPackages, Properties properties, StorageMechanism.Registry registry) {
+        Properties shardProperties = new Properties();
+        shardProperties.putAll(properties);
+        shardProperties.setProperty(SurrogateKeyGenerator.KeyOffset, String.valueOf(firstKey(index) - 1));
+
+        LocalContainerEntityManagerFactoryBean factoryBean = new LocalContainerEntityManagerFactoryBean();
+        factoryBean.setPersistenceUnitName(UnitName + index);
+        factoryBean.setJpaVendorAdapter(new HibernateJpaVendorAdapter());
+        factoryBean.setDataSource(dataSource);
+        factoryBean.setPackagesToScan(modelPackages);
+        factoryBean.setJpaProperties(shardProperties);
+        factoryBean.afterPropertiesSet();
+        return new Shard(index, dataSource, factoryBean.getObject(), registry);
+    }
+
+    /**
+     * Constructs a new ShardSet.
+     *
+     * @param shards some shards
+     */
+    protected ShardSet(List<Shard> shards) {
+        this.shards.addAll(shards);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, shards.size()), work -> {
+            Thread result = new Thread(work, ShardSet.class.getSimpleName());
+            result.setDaemon(true);
+            return result;
+        });
+    }
+
+    /**
+     * A count of the shards in this set.
+     *
+     * @return a count
+     */
+    public int size() {
+        return this.shards.size();
+    }
+
+    /**
+     * Indicates whether this set has no shards.
+     *
+     * @return whether this set is empty
+     */
+    public boolean isEmpty() {
+        return this.shards.isEmpty();
+    }
+
+    /**
+     * The first surrogate key of a shard.
+     *
+     * @param shardIndex a shard index
+     * @return a surrogate key
+     */
+    public static long firstKey(int shardIndex) {
+        return ((long) shardIndex << KeyShardShift) + 1;
+    }
+
+    /**
+     * Returns the shard of a hash, given a count of shards.
+     *
+     * @param hashKey a content hash
+     * @param shardCount a count of shards
+     * @return a shard index
+     */
+    public static int shardFor(long hashKey, int shardCount) {
+        // Lamping and Veach, "A Fast, Minimal Memory, Consistent Hash Algorithm"
+        long bucket = -1;
+        long next = 0;
+        while (next < shardCount) {
+            bucket = next;
+            hashKey = hashKey * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((hashKey >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    /**
+     * Returns the shard of a hash.
+     *
+     * @param hashKey a content hash
+     * @return a shard index
+     */
+    public int shardFor(long hashKey) {
+        checkShards();
+        return shardFor(hashKey, size());
+    }
+
+    /**
+     * Returns the home shard of a surrogate key, within whose key range the key was generated.
+     *
+     * @param key a surrogate key
+     * @return a shard index
+     */
+    public int shardForKey(long key) {
+        checkShards();
+        int result = (int) (key >>> KeyShardShift);
+        if (result >= size()) {
+            throw new IllegalArgumentException(String.format(UnknownShard, key));
+        }
+        return result;
+    }
+
+    static final String UnknownShard = "key %d belongs to no configured shard";
+    static final String NoShards = "no shards configured";
+
+    private void checkShards() {
+        if (isEmpty()) {
+            throw new IllegalStateException(NoShards);
+        }
+    }
+
+    /**
+     * Performs some work with the stores of a shard, within a transaction of that shard.
+     *
+     * @param <ResultType> a result type
+     * @param shardIndex a shard index
+     * @param readOnly whether the work only reads
+     * @param work some work
+     * @return the work result
+     */
+    public <ResultType> ResultType within(int shardIndex, boolean readOnly, Supplier<ResultType> work) {
+        Shard shard = this.shards.get(shardIndex);
+        TransactionTemplate transaction = readOnly ? shard.readTransaction : shard.writeTransaction;
+        return transaction.execute(status -> shard.registry.within(work));
+    }
+
+    /**
+     * Saves an aggregate in the shard of its root.
+     *
+     * @param <ItemType> a kind of item
+     * @param item an aggregate root
+     * @return the saved item
+     */
+    public <ItemType extends HashedItem> ItemType save(ItemType item) {
+        return within(shardFor(item.hashKey()), false, () -> (ItemType) item.saveItem());
+    }
+
+    /**
+     * Finds an item by its surrogate key, first in the home shard of the key, and then in the other shards (in
+     * parallel), since a rebalance moves an item without changing its key.
+     *
+     * @param <ItemType> a kind of item
+     * @param itemType a kind of item
+     * @param key a surrogate key
+     * @return an item, or null
+     */
+    public <ItemType> ItemType findById(Class<ItemType> itemType, long key) {
+        int home = shardForKey(key);
+        ItemType result = findById(home, itemType, key);
+        if (result != null) {
+            return result;
+        }
+
+        ArrayList<CompletableFuture<ItemType>> futures = new ArrayList<>();
+        for (Shard shard : this.shards) {
+            if (shard.index != home) {
+                futures.add(CompletableFuture.supplyAsync(
+                        () -> findById(shard.index, itemType, key), this.executor));
+            }
+        }
+
+        for (CompletableFuture<ItemType> future : futures) {
+            ItemType moved = future.join();
+            if (moved != null) {
+                result = moved;
+            }
+        }
+        return result;
+    }
+
+    private <ItemType> ItemType findById(int shardIndex, Class<ItemType> itemType, long key) {
+        return within(shardIndex, true, () -> Surrogated.<ItemType>getStore(itemType).findById(key).orElse(null));
+    }
+
+    /**
+     * Finds the items with a given hash in the shard of that hash.
+     *
+     * @param <ItemType> a kind of item
+     * @param itemType a kind of item
+     * @param hashKey a content hash
+     * @return the items with the hash
+     */
+    public <ItemType> List<ItemType> findHash(Class<ItemType> itemType, long hashKey) {
+        return within(shardFor(hashKey), true,
+                () -> ((Hashed.Search<ItemType>) StorageMechanism.get(itemType)).findHash(hashKey));
+    }
+
+    /**
+     * Runs a query against each shard in parallel, and merges the results in shard order.
+     *
+     * @param <StorageType> a kind of Repository
+     * @param <ItemType> a result item type
+     * @param storageType a kind of Repository
+     * @param query a query
+     * @return the merged results
+     */
+    public <StorageType, ItemType> List<ItemType> gather(
+            Class<StorageType> storageType, Function<StorageType, List<ItemType>> query) {
+        ArrayList<CompletableFuture<List<ItemType>>> futures = new ArrayList<>();
+        for (Shard shard : this.shards) {
+            futures.add(CompletableFuture.supplyAsync(() -> within(shard.index, true,
+                    () -> query.apply((StorageType) StorageMechanism.getStorage((Class) storageType))),
+                    this.executor));
+        }
+
+        ArrayList<ItemType> results = new ArrayList<>();
+        for (CompletableFuture<List<ItemType>> future : futures) {
+            results.addAll(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Closes the entity manager factories and data sources of the shards.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+        for (Shard shard : this.shards) {
+            shard.factory.close();
+            closeQuietly(shard.dataSource);
+        }
+    }
+
+    private static void closeQuietly(DataSource dataSource) {
+        if (dataSource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dataSource).close();
+            } catch (Exception ex) {
+                Log.warn(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /**
+     * A database with its own repositories and transactions.
+     */
+    protected static final class Shard {
+
+        private final int index;
+        private final DataSource dataSource;
+        private final EntityManagerFactory factory;
+        private final StorageMechanism.Registry registry;
+        private final TransactionTemplate writeTransaction;
+        private final TransactionTemplate readTransaction;
+
+        Shard(int index, DataSource dataSource, EntityManagerFactory factory, StorageMechanism.Registry registry) {
+            this.index = index;
+            this.dataSource = dataSource;
+            this.factory = factory;
+
+            JpaRepositoryFactory stores =
+                    new JpaRepositoryFactory(SharedEntityManagerCreator.createSharedEntityManager(factory));
+            this.registry = registry.mirror(storageType -> (CrudRepository) stores.getRepository(storageType));
+
+            JpaTransactionManager transactions = new JpaTransactionManager(factory);
+            this.writeTransaction = new TransactionTemplate(transactions);
+            this.readTransaction = new TransactionTemplate(transactions);
+            this.readTransaction.setReadOnly(true);
+        }
+
+    } // Shard
+
+} // ShardSet
@@ -13,6 +13,9 @@
 package org.axiom_tools.storage;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import org.springframework.data.repository.CrudRepository;
 
 /**
@@ -76,10 +79,11 @@ public class StorageMechanism<ModelType, StorageType extends CrudRepository<Mode
      * @return a storage mechanism
      */
     public static <StorageType extends CrudRepository> StorageType get(Class<?> modelType) {
-        if (Registry.Instance == null) {
+        Registry registry = Registry.current();
+        if (registry == null) {
             return null;
         }
-        return (StorageType) Registry.Instance.getModelStorage(modelType);
+        return (StorageType) registry.getModelStorage(modelType);
     }
 
     /**
@@ -90,76 +94,228 @@ public class StorageMechanism<ModelType, StorageType extends CrudRepository<Mode
      * @return a storage mechanism
      */
     public static <StorageType extends CrudRepository> StorageType getStorage(Class<StorageType> storeType) {
-        if (Registry.Instance == null) {
+        Registry registry = Registry.current();
+        if (registry == null) {
             return null;
         }
-        return (StorageType) Registry.Instance.getStorage(storeType);
+        return (StorageType) registry.getStorage(storeType);
     }
 
     /**
-     * A storage mechanism registry. Provides access to the configured storage mechanisms.
+     * A storage mechanism registry. Provides access to the configured storage mechanisms. A registry is immutable once
+     * built, and the installed registry may be replaced atomically (e.g., by tests or for another tenant).
+     *
+     * <h4>Registry Responsibilities:</h4>
+     * <ul>
+     * <li>finds the storage of a model type, or of its nearest registered supertype (e.g., for proxies)</li>
+     * <li>caches each lookup per class, so repeated lookups take constant time without locking</li>
+     * </ul>
      */
-    public static class Registry {
+    public static final class Registry {
+
+        private static final AtomicReference<Registry> Installed = new AtomicReference<>();
+        private static final ThreadLocal<Registry> Local = new ThreadLocal<>();
+
+        private final Map<Class<?>, StorageMechanism> storageMap;
+        private final Map<Class<?>, StorageMechanism> modelMap;
+
+        private final ClassValue<Optional<StorageMechanism>> storageLookup =
+                new ClassValue<Optional<StorageMechanism>>() {
+                    @Override
+                    protected Optional<StorageMechanism> computeValue(Class<?> storeType) {
+                        return Optional.ofNullable(resolve(storageMap, storeType));
+                    }
+                };
+
+        private final ClassValue<Optional<StorageMechanism>> modelLookup =
+                new ClassValue<Optional<StorageMechanism>>() {
+                    @Override
+                    protected Optional<StorageMechanism> computeValue(Class<?> modelType) {
+                        return Optional.ofNullable(resolve(modelMap, modelType));
+                    }
+                };
+
+        /**
+         * Constructs a new Registry.
+         *
+         * @param beans the storage beans
+         */
+        private Registry(Collection<StorageMechanism> beans) {
+            LinkedHashMap<Class<?>, StorageMechanism> stores = new LinkedHashMap<>();
+            LinkedHashMap<Class<?>, StorageMechanism> models = new LinkedHashMap<>();
+            for (StorageMechanism bean : beans) {
+                stores.put(bean.getStorageType(), bean);
+                models.put(bean.getModelType(), bean);
+            }
+            this.storageMap = Collections.unmodifiableMap(stores);
+            this.modelMap = Collections.unmodifiableMap(models);
+        }
+
+        /**
+         * Finds the mechanism registered for a type, or for its nearest registered supertype.
+         */
+        private static StorageMechanism resolve(Map<Class<?>, StorageMechanism> beans, Class<?> type) {
+            StorageMechanism result = beans.get(type);
+            if (result != null) {
+                return result;
+            }
+
+            for (Class<?> face : type.getInterfaces()) {
+                result = resolve(beans, face);
+                if (result != null) {
+                    return result;
+                }
+            }
+
+            Class<?> superType = type.getSuperclass();
+            return superType == null ? null : resolve(beans, superType);
+        }
+
+        /**
+         * Builds a registry, without installing it.
+         *
+         * @param beans the storage beans
+         * @return a new Registry
+         */
+        public static Registry of(StorageMechanism... beans) {
+            return new Registry(Arrays.asList(beans));
+        }
+
+        /**
+         * Builds and installs a registry.
+         *
+         * @param beans the storage beans
+         * @return a new Registry
+         */
+        public static Registry with(StorageMechanism... beans) {
+            Registry result = of(beans);
+            install(result);
+            return result;
+        }
+
+        /**
+         * The installed registry.
+         *
+         * @return a Registry, or null
+         */
+        public static Registry getInstance() {
+            return Installed.get();
+        }
 
-        public static Registry Instance = null;
+        /**
+         * Installs a registry, replacing any previously installed registry.
+         *
+         * @param registry a registry
+         * @return the previously installed registry, or null
+         */
+        public static Registry install(Registry registry) {
+            return Installed.getAndSet(registry);
+        }
+
+        /**
+         * Replaces the installed registry, but only if it is still an expected registry.
+         *
+         * @param expected an expected registry
+         * @param registry a replacement registry
+         * @return whether the registry was replaced
+         */
+        public static boolean replace(Registry expected, Registry registry) {
+            return Installed.compareAndSet(expected, registry);
+        }
+
+        /**
+         * The registry in use by the current thread: any registry selected with within, otherwise the installed one.
+         *
+         * @return a Registry, or null
+         */
+        public static Registry current() {
+            Registry result = Local.get();
+            return result == null ? getInstance() : result;
+        }
+
+        /**
+         * Indicates whether the current thread selected a registry with within.
+         *
+         * @return whether a registry was selected
+         */
+        public static boolean isSelected() {
+            return Local.get() != null;
+        }
+
+        /**
+         * Performs some work with this registry selected for the current thread.
+         *
+         * @param <ResultType> a result type
+         * @param work some work
+         * @return the work result
+         */
+        public <ResultType> ResultType within(Supplier<ResultType> work) {
+            Registry prior = Local.get();
+            Local.set(this);
+            try {
+                return work.get();
+            } finally {
+                if (prior == null) {
+                    Local.remove();
+                } else {
+                    Local.set(prior);
+                }
+            }
+        }
 
-        private final HashMap<String, StorageMechanism> map = new HashMap();
-        private final HashMap<String, StorageMechanism> modelMap = new HashMap();
+        /**
+         * Returns a new registry with the same model and storage types as this one, but other stores.
+         *
+         * @param stores supplies a store for each storage type
+         * @return a new Registry
+         */
+        public Registry mirror(Function<Class<?>, CrudRepository> stores) {
+            ArrayList<StorageMechanism> results = new ArrayList<>();
+            for (StorageMechanism bean : mechanisms()) {
+                results.add(new StorageMechanism(
+                        stores.apply(bean.getStorageType()), bean.getStorageType(), bean.getModelType()));
+            }
+            return new Registry(results);
+        }
 
         /**
          * Returns a registered storage mechanism.
          *
          * @param <StorageType> a kind of Repository
          * @param storeType a storage type
-         * @return a registered JPA Repository
+         * @return a registered JPA Repository, or null
          */
         public <StorageType extends CrudRepository> StorageType getStorage(Class<StorageType> storeType) {
-            return (StorageType) map.get(storeType.getName()).getStore();
+            return (StorageType) this.storageLookup.get(storeType).map(StorageMechanism::getStore).orElse(null);
         }
 
         /**
          * Returns a registered storage mechanism.
          *
          * @param modelType a model type
-         * @return a registered JPA Repository
+         * @return a registered JPA Repository, or null
          */
         public CrudRepository getModelStorage(Class<?> modelType) {
-            return (CrudRepository) modelMap.get(modelType.getName()).getStore();
+            return (CrudRepository) this.modelLookup.get(modelType).map(StorageMechanism::getStore).orElse(null);
         }
 
         /**
          * Returns a registered storage type.
          *
          * @param modelType a model type
-         * @return a registered storage type
+         * @return a registered storage type, or null
          */
         public Class<?> getStorageType(Class<?> modelType) {
-            return modelMap.get(modelType.getName()).getStorageType();
-        }
-
-        /**
-         * Registers storage beans.
-         *
-         * @param beans the storage beans
-         * @return a new Registry
-         */
-        public static Registry with(StorageMechanism... beans) {
-            Registry result = new Registry();
-            for (StorageMechanism bean : beans) {
-                result.register(bean);
-            }
-            Instance = result;
-            return result;
+            return this.modelLookup.get(modelType).map(StorageMechanism::getStorageType).orElse(null);
         }
 
         /**
-         * Registers a storage bean.
+         * The registered storage mechanisms.
          *
-         * @param bean a storage bean
+         * @return the storage mechanisms
          */
-        public void register(StorageMechanism bean) {
-            map.put(bean.getStorageType().getName(), bean);
-            modelMap.put(bean.getModelType().getName(), bean);
+        public Collection<StorageMechanism> mechanisms() {
+            return this.storageMap.values();
         }
 
         /**
@@ -168,7 +324,7 @@ public class StorageMechanism<ModelType, StorageType extends CrudRepository<Mode
          * @return a count
          */
         public int size() {
-            return this.map.size();
+            return this.storageMap.size();
         }
 
     } // Registry
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.springframework.orm.jpa.EntityManagerFactoryUtils;
+
+/**
+ * Reads large query results as streams in constant memory. Intended for bulk listings and exports.
+ *
+ * <h4>StreamingReader Responsibilities:</h4>
+ * <ul>
+ * <li>defines the fetch size used by streaming repository queries</li>
+ * <li>clears the transactional persistence context periodically while a stream is consumed, so that the items
+ * already read can be collected</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>consumes (and closes) a stream within a read-only transaction</li>
+ * <li>finishes with each item (and its lazy associations) before pulling the next one, as earlier items get
+ * detached</li>
+ * </ul>
+ */
+public class StreamingReader {
+
+    /**
+     * The count of rows fetched per database round trip by streaming queries.
+     */
+    public static final String FetchSize = "500";
+    public static final int DefaultClearInterval = 500;
+
+    private static volatile StreamingReader Instance = null;
+
+    private final EntityManagerFactory factory;
+    private final int clearInterval;
+
+    /**
+     * The configured streaming reader.
+     *
+     * @return a StreamingReader, or null
+     */
+    public static StreamingReader getInstance() {
+        return Instance;
+    }
+
+    /**
+     * Configures a new streaming reader.
+     *
+     * @param factory an entity manager factory
+     * @param clearInterval the count of items read between clearing the persistence context
+     * @return a new StreamingReader
+     */
+    public static StreamingReader with(EntityManagerFactory factory, int clearInterval) {
+        Instance = new StreamingReader(factory, clearInterval);
+        return Instance;
+    }
+
+    /**
+     * Constructs a new StreamingReader.
+     *
+     * @param factory an entity manager factory
+     * @param clearInterval the count of items read between clearing the persistence context
+     */
+    protected StreamingReader(EntityManagerFactory factory, int clearInterval) {
+        this.factory = factory;
+        this.clearInterval = clearInterval > 0 ? clearInterval : DefaultClearInterval;
+    }
+
+    /**
+     * Returns a stream that clears the current persistence context after each interval of items read.
+     *
+     * @param <ItemType> a kind of item
+     * @param results the results of a streaming query
+     * @return a clearing stream
+     */
+    public <ItemType> Stream<ItemType> clearing(Stream<ItemType> results) {
+        EntityManager manager = EntityManagerFactoryUtils.getTransactionalEntityManager(this.factory);
+        if (manager == null) {
+            return results;
+        }
+
+        Spliterator<ItemType> source = results.spliterator();
+        AtomicLong count = new AtomicLong();
+        Spliterator<ItemType> clearing = new Spliterators.AbstractSpliterator<ItemType>(
+                source.estimateSize(), source.characteristics() & ~Spliterator.SIZED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super ItemType> action) {
+                // clears before reading the next item, so that the previous item was fully used while attached
+                if (count.get() > 0 && count.get() % clearInterval == 0) {
+                    manager.clear();
+                }
+                return source.tryAdvance(item -> {
+                    count.incrementAndGet();
+                    action.accept(item);
+                });
+            }
+        };
+        return StreamSupport.stream(clearing, false).onClose(results::close);
+    }
+
+    /**
+     * Returns a stream that clears the current persistence context periodically, if a reader was configured.
+     *
+     * @param <ItemType> a kind of item
+     * @param results the results of a streaming query
+     * @return a (clearing) stream
+     */
+    public static <ItemType> Stream<ItemType> cleared(Stream<ItemType> results) {
+        StreamingReader reader = getInstance();
+        return reader == null ? results : reader.clearing(results);
+    }
+
+    /**
+     * The count of items read between clearing the persistence context.
+     *
+     * @return a count
+     */
+    public int getClearInterval() {
+        return this.clearInterval;
+    }
+
+} // StreamingReader
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Properties;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+/**
+ * Generates surrogate keys from a sequence per entity, allocating keys in pooled blocks.
+ *
+ * <h4>SurrogateKeyGenerator Responsibilities:</h4>
+ * <ul>
+ * <li>names a sequence for each entity table: (table)_seq</li>
+ * <li>configures its optimizer and allocation size from the persistence settings</li>
+ * <li>offsets its keys into a configured range (e.g., that of a shard)</li>
+ * <li>keeps any key assigned in advance (e.g., by a KeyAllocator)</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>configures the AssignedKeys interceptor, so items with assigned keys are inserted rather than merged</li>
+ * </ul>
+ */
+public class SurrogateKeyGenerator extends SequenceStyleGenerator {
+
+    public static final String Name = "surrogate_key";
+    public static final String Strategy = "org.axiom_tools.storage.SurrogateKeyGenerator";
+
+    public static final String Optimizer = "axiom.id.optimizer";
+    public static final String AllocationSize = "axiom.id.allocation_size";
+    public static final String KeyOffset = "axiom.id.key_offset";
+    public static final String PooledLo = "pooled-lo";
+    public static final String Pooled = "pooled";
+    public static final String DefaultAllocation = "50";
+    public static final String Interceptor = "hibernate.session_factory.interceptor";
+
+    private static final String Dot = ".";
+    private static final String NoOptimizer = "none";
+    private static final String SequenceSuffix = "_seq";
+    private static final String Zero = "0";
+
+    private long keyOffset = 0;
+
+    /**
+     * The offset added to each sequence value to form a key.
+     *
+     * @return a key offset
+     */
+    public long getKeyOffset() {
+        return this.keyOffset;
+    }
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry registry) throws MappingException {
+        Map<String, Object> settings = registry.getService(ConfigurationService.class).getSettings();
+        String entityName = params.getProperty(JPA_ENTITY_NAME);
+        String allocation = setting(settings, AllocationSize + Dot + entityName,
+                setting(settings, AllocationSize, DefaultAllocation));
+
+        String optimizer = setting(settings, Optimizer, PooledLo);
+        params.setProperty(INCREMENT_PARAM, allocation);
+        this.keyOffset = Long.parseLong(setting(settings, KeyOffset, Zero));
+        params.setProperty(OPT_PARAM, Integer.parseInt(allocation) > 1 ? optimizer : NoOptimizer);
+        params.setProperty(SEQUENCE_PARAM, params.getProperty(PersistentIdentifierGenerator.TABLE).toLowerCase()
+                + SequenceSuffix);
+        super.configure(type, params, registry);
+    }
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object item) {
+        if (item instanceof Surrogated && ((Surrogated<?>) item).getKey() > 0) {
+            return ((Surrogated<?>) item).getKey();
+        }
+        return ((Number) super.generate(session, item)).longValue() + this.keyOffset;
+    }
+
+    /**
+     * Reports items with keys assigned in advance as transient, so that persisting them inserts them.
+     */
+    public static class AssignedKeys extends EmptyInterceptor {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Boolean isTransient(Object item) {
+            if (item instanceof Surrogated && ((Surrogated<?>) item).getKey() > 0) {
+                return ((Surrogated<?>) item).isNew() ? Boolean.TRUE : null;
+            }
+            return null;
+        }
+
+    } // AssignedKeys
+
+    private static String setting(Map<String, Object> settings, String name, String defaultValue) {
+        Object result = settings.get(name);
+        return result == null ? defaultValue : result.toString().trim();
+    }
+
+} // SurrogateKeyGenerator
@@ -13,6 +13,7 @@
 package org.axiom_tools.storage;
 
 import java.util.*;
+import java.util.regex.Pattern;
 import java.io.Serializable;
 import javax.persistence.*;
 import javax.xml.bind.annotation.*;
@@ -20,6 +21,8 @@ import javax.xml.bind.annotation.*;
 import org.slf4j.Logger;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.WordUtils;
+import org.hibernate.annotations.GenericGenerator;
+import org.springframework.data.domain.Persistable;
 import org.springframework.data.repository.CrudRepository;
 
 /**
@@ -29,7 +32,7 @@ import org.springframework.data.repository.CrudRepository;
  */
 @MappedSuperclass
 @SuppressWarnings("unchecked")
-public abstract class Surrogated<ItemType> implements SurrogatedItem, Serializable {
+public abstract class Surrogated<ItemType> implements SurrogatedItem, Persistable<Long>, Serializable {
 
     protected static final String Empty = "";
     protected static final String Blank = " ";
@@ -43,6 +46,11 @@ public abstract class Surrogated<ItemType> implements SurrogatedItem, Serializab
     protected static final String PunctuationFilter = "[" + PosixSymbols + PosixPunctuators + AND + ExcludedSymbols + "]";
     protected static final String MultipleSpaceFilter = " +";
 
+    private static final Pattern Punctuation = Pattern.compile(PunctuationFilter);
+    private static final Pattern MultipleSpaces = Pattern.compile(MultipleSpaceFilter);
+    private static final char Space = ' ';
+    private static final char LastAscii = 0x7F;
+
     /**
      * Returns the storage mechanism for a given model type.
      *
@@ -71,13 +79,21 @@ public abstract class Surrogated<ItemType> implements SurrogatedItem, Serializab
     protected abstract Logger getLogger();
 
     /**
-     * A surrogate key. The key value is generated automatically by the configured persistence framework.
+     * A surrogate key. The key value is generated automatically by the configured persistence framework, from a
+     * pooled sequence per entity, unless a key was assigned in advance.
      */
     @Id
     @Column(name = "id")
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = SurrogateKeyGenerator.Name)
+    @GenericGenerator(name = SurrogateKeyGenerator.Name, strategy = SurrogateKeyGenerator.Strategy)
     protected long key;
 
+    /**
+     * Indicates whether the key was assigned in advance (e.g., by a KeyAllocator), before this item was saved.
+     */
+    @Transient
+    protected transient boolean keyAssigned = false;
+
     /**
      * A surrogate key.
      */
@@ -91,12 +107,48 @@ public abstract class Surrogated<ItemType> implements SurrogatedItem, Serializab
         this.key = key;
     }
 
+    /**
+     * Assigns a key to this unsaved item in advance, so that it will still be inserted when saved.
+     *
+     * @param key an allocated surrogate key
+     */
+    public void assignKey(long key) {
+        this.key = key;
+        this.keyAssigned = key > 0;
+    }
+
     /**
      * Indicates whether this item was previously saved.
      */
     @Override
     public boolean wasSaved() {
-        return getKey() > 0;
+        return getKey() > 0 && !this.keyAssigned;
+    }
+
+    /**
+     * A surrogate key.
+     */
+    @Override
+    @XmlTransient
+    public Long getId() {
+        return getKey();
+    }
+
+    /**
+     * Indicates whether this item still needs to be inserted.
+     */
+    @Override
+    @XmlTransient
+    public boolean isNew() {
+        return !wasSaved();
+    }
+
+    /**
+     * Marks an item with an assigned key as saved once it is persisted, as with a generated key.
+     */
+    @PrePersist
+    protected void markSaved() {
+        this.keyAssigned = false;
     }
 
     /**
@@ -117,6 +169,18 @@ public abstract class Surrogated<ItemType> implements SurrogatedItem, Serializab
         return getStore().save(this.asItem());
     }
 
+    /**
+     * Saves a batch of items and their components. Hashed items with equal contents are saved only once, and
+     * each item type is found and inserted in bulk. Must be called inside a transaction.
+     *
+     * @param <ItemType> a kind of item
+     * @param items some items
+     * @return the saved items, in the same order
+     */
+    public static <ItemType extends SurrogatedItem> List<ItemType> saveAll(Collection<ItemType> items) {
+        return BatchWriter.saveAll(items);
+    }
+
     private boolean isComposite() {
         return this instanceof SurrogatedComposite;
     }
@@ -255,8 +319,56 @@ public abstract class Surrogated<ItemType> implements SurrogatedItem, Serializab
      * @return normalized text
      */
     public static String normalizeWords(String text) {
-        return WordUtils.capitalizeFully(StringUtils.defaultString(text).trim())
-                .replaceAll(PunctuationFilter, Empty).replaceAll(MultipleSpaceFilter, Blank);
+        String trimmed = StringUtils.defaultString(text).trim();
+        char[] results = new char[trimmed.length()];
+        int count = 0;
+        boolean changed = trimmed != text; // trim returns the same string if it trims nothing
+        boolean capitalizeNext = true;
+        for (int index = 0; index < trimmed.length(); index++) {
+            char original = trimmed.charAt(index);
+            if (original > LastAscii) {
+                return normalizeWordsFully(trimmed);
+            }
+
+            char c = original;
+            if (Character.isWhitespace(c)) {
+                capitalizeNext = true;
+            } else {
+                // capitalize (or lower) each letter before dropping any punctuation, as capitalizeFully would
+                if (c >= 'A' && c <= 'Z' && !capitalizeNext) {
+                    c = (char) (c + ('a' - 'A'));
+                } else if (c >= 'a' && c <= 'z' && capitalizeNext) {
+                    c = (char) (c - ('a' - 'A'));
+                }
+                capitalizeNext = false;
+            }
+
+            if (isDropped(c) || (c == Space && count > 0 && results[count - 1] == Space)) {
+                changed = true;
+                continue;
+            }
+            changed |= c != original;
+            results[count++] = c;
+        }
+        return changed ? new String(results, 0, count) : text;
+    }
+
+    /**
+     * Normalizes text that contains characters beyond ASCII, whose case mappings need the full Unicode rules.
+     */
+    private static String normalizeWordsFully(String trimmed) {
+        String capitalized = WordUtils.capitalizeFully(trimmed);
+        return MultipleSpaces.matcher(Punctuation.matcher(capitalized).replaceAll(Empty)).replaceAll(Blank);
+    }
+
+    /**
+     * Indicates whether an ASCII character is a symbol or punctuation mark dropped from normalized words.
+     */
+    private static boolean isDropped(char c) {
+        if (AllowedSymbols.indexOf(c) >= 0) {
+            return false;
+        }
+        return (c > Space && c < '0') || (c > '9' && c < 'A') || (c > 'Z' && c < 'a') || (c > 'z' && c < LastAscii);
     }
 
     /**
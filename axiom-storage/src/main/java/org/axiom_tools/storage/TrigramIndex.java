@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Splits text into trigrams (overlapping three character slices), so that substring searches can use an inverted
+ * index of trigrams instead of scanning with an unanchored LIKE pattern.
+ *
+ * <h4>TrigramIndex Responsibilities:</h4>
+ * <ul>
+ * <li>normalizes text (lower case, single spaces) before slicing it into trigrams</li>
+ * <li>knows whether a query is long enough (and plain enough) to search with trigrams</li>
+ * <li>confirms that an indexed candidate contains a query, as the shared trigrams only suggest it does</li>
+ * <li>ranks the confirmed candidates: exact matches first, then prefixes, then word starts, then shorter texts</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>stores the (distinct) trigrams of each indexed text with the key of its owner</li>
+ * <li>selects the owners that have all the trigrams of a query, then confirms and ranks them</li>
+ * </ul>
+ */
+public final class TrigramIndex {
+
+    /**
+     * The length of each indexed slice of text.
+     */
+    public static final int GramLength = 3;
+
+    private static final char Blank = ' ';
+    private static final String LikeWildcards = "%_";
+    private static final String MultipleSpaceFilter = "\\s+";
+
+    private static final int ExactRank = 0;
+    private static final int PrefixRank = 1;
+    private static final int WordRank = 2;
+    private static final int InnerRank = 3;
+
+    private TrigramIndex() { }
+
+    /**
+     * Normalizes some text for indexing or searching.
+     *
+     * @param text some text
+     * @return the normalized text, or empty
+     */
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.trim().replaceAll(MultipleSpaceFilter, String.valueOf(Blank)).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the distinct trigrams of some text.
+     *
+     * @param text some text
+     * @return some trigrams, or empty if the text is too short
+     */
+    public static Set<String> trigrams(String text) {
+        String normal = normalize(text);
+        LinkedHashSet<String> results = new LinkedHashSet<>();
+        for (int index = 0; index + GramLength <= normal.length(); index++) {
+            results.add(normal.substring(index, index + GramLength));
+        }
+        return results;
+    }
+
+    /**
+     * Indicates whether a query can be searched with trigrams. Shorter queries, and LIKE patterns, cannot.
+     *
+     * @param query a query text
+     * @return whether the query can use a trigram index
+     */
+    public static boolean searchable(String query) {
+        if (query == null) {
+            return false;
+        }
+
+        for (char wildcard : LikeWildcards.toCharArray()) {
+            if (query.indexOf(wildcard) >= 0) {
+                return false;
+            }
+        }
+        return normalize(query).length() >= GramLength;
+    }
+
+    /**
+     * Indicates whether some text contains a query (ignoring case and extra spaces).
+     *
+     * @param query a query text
+     * @param text a candidate text
+     * @return whether the text contains the query
+     */
+    public static boolean matches(String query, String text) {
+        return normalize(text).contains(normalize(query));
+    }
+
+    /**
+     * Returns those candidates that contain a query, best matches first.
+     *
+     * @param <ItemType> a kind of item
+     * @param query a query text
+     * @param candidates the items found with the trigrams of the query
+     * @param textOf obtains the indexed text of an item
+     * @return the matching items, ranked
+     */
+    public static <ItemType> List<ItemType> rank(
+            String query, Collection<ItemType> candidates, Function<ItemType, String> textOf) {
+        String normalQuery = normalize(query);
+        ArrayList<Ranked<ItemType>> ranked = new ArrayList<>();
+        for (ItemType candidate : candidates) {
+            String text = normalize(textOf.apply(candidate));
+            int position = text.indexOf(normalQuery);
+            if (position >= 0) {
+                ranked.add(new Ranked<>(candidate, text, rankOf(text, position, normalQuery.length())));
+            }
+        }
+
+        ranked.sort(Comparator.<Ranked<ItemType>>comparingInt(item -> item.rank)
+                .thenComparingInt(item -> item.text.length())
+                .thenComparing(item -> item.text));
+
+        ArrayList<ItemType> results = new ArrayList<>(ranked.size());
+        for (Ranked<ItemType> item : ranked) {
+            results.add(item.item);
+        }
+        return results;
+    }
+
+    private static int rankOf(String text, int position, int length) {
+        if (position == 0) {
+            return length == text.length() ? ExactRank : PrefixRank;
+        }
+        return text.charAt(position - 1) == Blank ? WordRank : InnerRank;
+    }
+
+    /**
+     * A matching item and its rank.
+     */
+    private static final class Ranked<ItemType> {
+
+        private final ItemType item;
+        private final String text;
+        private final int rank;
+
+        Ranked(ItemType item, String text, int rank) {
+            this.item = item;
+            this.text = text;
+            this.rank = rank;
+        }
+
+    } // Ranked
+
+} // TrigramIndex
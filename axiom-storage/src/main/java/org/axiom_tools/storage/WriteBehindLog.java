@@ -0,0 +1,334 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of keyed records, held in a memory-mapped file. Appending a record only copies it into
+ * the mapped pages, so it costs microseconds, yet the record survives a crash of the process.
+ *
+ * <h4>WriteBehindLog Responsibilities:</h4>
+ * <ul>
+ * <li>appends records (a key and a payload) after the last record, with a checksum</li>
+ * <li>reads the records after the last flushed (committed) record, e.g., those left by a crash</li>
+ * <li>remembers (in its header) the position of the last flushed record</li>
+ * <li>starts over at the front of the file once every record was flushed</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>commits each batch of records after they are stored elsewhere</li>
+ * <li>uses a single reader (e.g., a flusher thread), and closes the log after use</li>
+ * </ul>
+ *
+ * <p>Each record holds: a payload length, the log generation, a key, a checksum, and the payload. The generation
+ * changes whenever the log starts over, so stale records left behind from an earlier pass are never replayed.</p>
+ */
+public class WriteBehindLog implements AutoCloseable {
+
+    private static final int FlushedField = 0;
+    private static final int GenerationField = 8;
+    private static final int HeaderSize = 16;
+    private static final int RecordHeaderSize = 20;
+    private static final int GenerationOffset = 4;
+    private static final int KeyOffset = 8;
+    private static final int ChecksumOffset = 16;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final boolean forced;
+    private int generation;
+    private int flushed;
+    private int end;
+
+    /**
+     * Opens a log, creating its file if needed, and finds the records left after the last flushed record.
+     *
+     * @param path a file path
+     * @param capacity the size of the file, in bytes
+     * @param forced whether each append is forced to the disk (surviving a crash of the system, not just the process)
+     * @return a new WriteBehindLog
+     * @exception UncheckedIOException if the file cannot be mapped
+     */
+    public static WriteBehindLog open(Path path, int capacity, boolean forced) {
+        if (capacity <= HeaderSize + RecordHeaderSize) {
+            throw new IllegalArgumentException(String.format(BadCapacity, capacity));
+        }
+
+        try {
+            return new WriteBehindLog(path, capacity, forced);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private WriteBehindLog(Path path, int capacity, boolean forced) throws IOException {
+        this.path = path;
+        this.forced = forced;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int size = (int) Math.max(capacity, this.channel.size());
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.generation = this.buffer.getInt(GenerationField);
+        this.flushed = (int) this.buffer.getLong(FlushedField);
+        if (this.flushed < HeaderSize || this.flushed > size) {
+            this.flushed = HeaderSize; // a new (or damaged) file
+            writeHeader();
+        }
+        this.end = scan(this.flushed);
+    }
+
+    /**
+     * Finds the end of the valid records that start at a given position.
+     */
+    private int scan(int position) {
+        int result = position;
+        Record record = readRecord(result);
+        while (record != null) {
+            result = record.next;
+            record = readRecord(result);
+        }
+        return result;
+    }
+
+    /**
+     * Appends a record to this log.
+     *
+     * @param key a record key
+     * @param payload a record payload
+     * @return whether the record was appended, false if the log is full
+     */
+    public synchronized boolean append(long key, byte[] payload) {
+        int next = this.end + RecordHeaderSize + payload.length;
+        if (next > this.buffer.capacity()) {
+            return false;
+        }
+
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(this.end + RecordHeaderSize);
+        record.put(payload);
+        this.buffer.putInt(this.end + GenerationOffset, this.generation);
+        this.buffer.putLong(this.end + KeyOffset, key);
+        this.buffer.putInt(this.end + ChecksumOffset, checksum(this.generation, key, payload));
+        this.buffer.putInt(this.end, payload.length); // written last, so a torn record fails its checksum
+        if (next + RecordHeaderSize <= this.buffer.capacity()) {
+            this.buffer.putInt(next, 0); // marks the end of the log
+        }
+
+        this.end = next;
+        if (this.forced) {
+            this.buffer.force();
+        }
+        return true;
+    }
+
+    /**
+     * Reads the records after the last flushed record.
+     *
+     * @param limit a maximum count of records
+     * @return some unflushed records, oldest first
+     */
+    public synchronized Batch read(int limit) {
+        Batch result = new Batch(this.flushed);
+        int position = this.flushed;
+        while (position < this.end && result.records.size() < limit) {
+            Record record = readRecord(position);
+            if (record == null) {
+                break;
+            }
+            result.records.add(record);
+            position = record.next;
+        }
+        result.end = position;
+        return result;
+    }
+
+    /**
+     * Commits a batch of records, after which they are never read again. Starts this log over at the front of its
+     * file once every record was committed.
+     *
+     * @param batch a batch read from this log
+     */
+    public synchronized void commit(Batch batch) {
+        if (batch.start != this.flushed) {
+            throw new IllegalStateException(String.format(BadCommit, batch.start, this.flushed));
+        }
+
+        this.flushed = batch.end;
+        if (this.flushed == this.end) {
+            this.generation++;
+            this.flushed = HeaderSize;
+            this.end = HeaderSize;
+            this.buffer.putInt(this.end, 0);
+        }
+        writeHeader();
+        this.buffer.force();
+    }
+
+    /**
+     * A count of the bytes used by unflushed records.
+     *
+     * @return a count of bytes
+     */
+    public synchronized int pendingSize() {
+        return this.end - this.flushed;
+    }
+
+    /**
+     * Indicates whether every record was flushed.
+     *
+     * @return whether this log is empty
+     */
+    public synchronized boolean isEmpty() {
+        return this.end == this.flushed;
+    }
+
+    /**
+     * The path of the log file.
+     *
+     * @return a file path
+     */
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Forces the log to the disk, and closes its file.
+     */
+    @Override
+    public synchronized void close() {
+        this.buffer.force();
+        try {
+            this.channel.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void writeHeader() {
+        this.buffer.putInt(GenerationField, this.generation);
+        this.buffer.putLong(FlushedField, this.flushed);
+    }
+
+    private Record readRecord(int position) {
+        if (position + RecordHeaderSize > this.buffer.capacity()) {
+            return null;
+        }
+
+        int length = this.buffer.getInt(position);
+        int next = position + RecordHeaderSize + length;
+        if (length <= 0 || next > this.buffer.capacity()
+                || this.buffer.getInt(position + GenerationOffset) != this.generation) {
+            return null;
+        }
+
+        long key = this.buffer.getLong(position + KeyOffset);
+        byte[] payload = new byte[length];
+        ByteBuffer record = this.buffer.duplicate();
+        record.position(position + RecordHeaderSize);
+        record.get(payload);
+        if (this.buffer.getInt(position + ChecksumOffset) != checksum(this.generation, key, payload)) {
+            return null;
+        }
+        return new Record(key, payload, next);
+    }
+
+    private static int checksum(int generation, long key, byte[] payload) {
+        CRC32 result = new CRC32();
+        result.update(ByteBuffer.allocate(KeyOffset + Integer.BYTES).putInt(generation).putLong(key).array());
+        result.update(payload);
+        return (int) result.getValue();
+    }
+
+    /**
+     * A logged record.
+     */
+    public static final class Record {
+
+        private final long key;
+        private final byte[] payload;
+        private final int next;
+
+        Record(long key, byte[] payload, int next) {
+            this.key = key;
+            this.payload = payload;
+            this.next = next;
+        }
+
+        /**
+         * A record key.
+         *
+         * @return a key
+         */
+        public long getKey() {
+            return this.key;
+        }
+
+        /**
+         * A record payload.
+         *
+         * @return a payload
+         */
+        public byte[] getPayload() {
+            return this.payload;
+        }
+
+    } // Record
+
+    /**
+     * A batch of records read together, and committed together.
+     */
+    public static final class Batch {
+
+        private final int start;
+        private int end;
+        private final ArrayList<Record> records = new ArrayList<>();
+
+        Batch(int start) {
+            this.start = start;
+            this.end = start;
+        }
+
+        /**
+         * The records of this batch.
+         *
+         * @return some records, oldest first
+         */
+        public List<Record> getRecords() {
+            return this.records;
+        }
+
+        /**
+         * Indicates whether this batch has no records.
+         *
+         * @return whether this batch is empty
+         */
+        public boolean isEmpty() {
+            return this.records.isEmpty();
+        }
+
+    } // Batch
+
+    static final String BadCapacity = "log capacity %d is too small";
+    static final String BadCommit = "batch at %d is not the next batch at %d";
+
+} // WriteBehindLog
@@ -0,0 +1,409 @@
+/**
+ * Copyright 2013,2015 Nikolas Boyd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.axiom_tools.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Accepts new hashed items for a later (write-behind) save. An accepted item gets its key at once, from a range
+ * reserved by the KeyAllocator, and is appended to a WriteBehindLog. A background flusher then saves the logged
+ * items in batches with a BatchWriter, so their inserts use JDBC batching.
+ *
+ * <h4>WriteBehindQueue Responsibilities:</h4>
+ * <ul>
+ * <li>accepts only those items that the HashFilter proves are not yet stored, so an assigned key is never merged
+ * away into an equal stored item</li>
+ * <li>returns the already assigned key for an item equal to one still queued</li>
+ * <li>flushes the queued items periodically, retrying a failed batch item by item, and logging (then dropping) any
+ * item that still fails, though a batch that fails because the database is unavailable is retried intact</li>
+ * <li>counts the dropped items, and warns of them after each flush that drops any, and when it closes</li>
+ * <li>replays the items left in its log by a crash, skipping any that were saved before the crash</li>
+ * </ul>
+ *
+ * <h4>Client Responsibilities:</h4>
+ * <ul>
+ * <li>validates an item before offering it, since a failed save can no longer be reported to its sender</li>
+ * <li>monitors the dropped items (see droppedCount), whose senders were told they were accepted</li>
+ * <li>saves an item directly when it is not accepted (e.g., it might be stored, or the log is full)</li>
+ * <li>registers hash filters (as the sole writer) before starting a queue, and closes a queue after use</li>
+ * </ul>
+ *
+ * @param <ItemType> a kind of hashed item
+ */
+public class WriteBehindQueue<ItemType extends Hashed<?>> implements AutoCloseable {
+
+    private static final Logger Log = LoggerFactory.getLogger(WriteBehindQueue.class);
+    private static final Map<Class<?>, WriteBehindQueue<?>> Queues = new ConcurrentHashMap<>();
+
+    private final Class<ItemType> itemType;
+    private final WriteBehindLog log;
+    private final Function<ItemType, String> encoder;
+    private final Function<String, ItemType> decoder;
+    private final TransactionTemplate transaction;
+    private final int batchSize;
+    private final long interval;
+    private final ScheduledExecutorService flusher;
+
+    private final ConcurrentHashMap<Long, Long> queuedKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Long> queuedHashes = new ConcurrentHashMap<>();
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Object offers = new Object();
+    private boolean checkSaved = false;
+
+    /**
+     * Returns the queue registered for a kind of item.
+     *
+     * @param <ItemType> a kind of item
+     * @param itemType a kind of item
+     * @return a WriteBehindQueue, or null
+     */
+    @SuppressWarnings("unchecked")
+    public static <ItemType extends Hashed<?>> WriteBehindQueue<ItemType> forType(Class<ItemType> itemType) {
+        return (WriteBehindQueue<ItemType>) Queues.get(itemType);
+    }
+
+    /**
+     * Registers a queue for its kind of item, replacing (and closing) any previous queue.
+     *
+     * @param <ItemType> a kind of item
+     * @param queue a WriteBehindQueue
+     * @return the registered queue
+     */
+    public static <ItemType extends Hashed<?>> WriteBehindQueue<ItemType> register(WriteBehindQueue<ItemType> queue) {
+        WriteBehindQueue<?> prior = Queues.put(queue.itemType, queue);
+        if (prior != null && prior != queue) {
+            prior.close();
+        }
+        return queue;
+    }
+
+    /**
+     * Closes and removes all the registered queues, flushing their items.
+     */
+    public static void closeAll() {
+        for (Class<?> itemType : new ArrayList<>(Queues.keySet())) {
+            WriteBehindQueue<?> queue = Queues.remove(itemType);
+            if (queue != null) {
+                queue.close();
+            }
+        }
+    }
+
+    /**
+     * Constructs a new WriteBehindQueue.
+     *
+     * @param itemType a kind of item
+     * @param log a durable log of the queued items
+     * @param encoder encodes an item (e.g., as JSON)
+     * @param decoder decodes an encoded item
+     * @param transaction a template for the transactions that save the queued items
+     * @param batchSize a maximum count of items saved together
+     * @param interval the milliseconds between flushes
+     */
+    public WriteBehindQueue(Class<ItemType> itemType, WriteBehindLog log,
+            Function<ItemType, String> encoder, Function<String, ItemType> decoder,
+            TransactionTemplate transaction, int batchSize, long interval) {
+        this.itemType = itemType;
+        this.log = log;
+        this.encoder = encoder;
+        this.decoder = decoder;
+        this.transaction = transaction;
+        this.batchSize = Math.max(1, batchSize);
+        this.interval = Math.max(1, interval);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(work -> {
+            Thread result = new Thread(work, WriteBehindQueue.class.getSimpleName());
+            result.setDaemon(true);
+            return result;
+        });
+    }
+
+    /**
+     * Replays the items left in the log (e.g., by a crash), and then starts flushing periodically.
+     *
+     * @return this queue
+     */
+    public WriteBehindQueue<ItemType> start() {
+        WriteBehindLog.Batch left = this.log.read(Integer.MAX_VALUE);
+        for (WriteBehindLog.Record record : left.getRecords()) {
+            queue(decode(record).hashKey(), record.getKey());
+        }
+
+        if (!left.isEmpty()) {
+            Log.info(String.format(ReplayReport, left.getRecords().size(), this.itemType.getSimpleName()));
+            synchronized (this) {
+                this.checkSaved = true;
+            }
+            flush();
+        }
+
+        this.flusher.scheduleWithFixedDelay(this::flush, this.interval, this.interval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Offers a new item to this queue.
+     *
+     * @param item a new item, validated
+     * @return the key assigned to the item, or zero if not accepted (the item should then be saved directly)
+     */
+    public long offer(ItemType item) {
+        long hashKey = item.hashKey();
+        Long queued = this.queuedKeys.get(hashKey);
+        if (queued != null) {
+            return queued;
+        }
+
+        if (HashFilter.forType(this.itemType) == null || HashFilter.mightContain(this.itemType, hashKey)) {
+            return 0; // might be stored already
+        }
+
+        long key = KeyAllocator.getInstance().nextKey(this.itemType);
+        item.assignKey(key);
+        byte[] payload = this.encoder.apply(item).getBytes(StandardCharsets.UTF_8);
+        synchronized (this.offers) {
+            // an equal item offered concurrently may have been logged meanwhile
+            queued = this.queuedKeys.get(hashKey);
+            if (queued != null) {
+                item.assignKey(0);
+                return queued;
+            }
+
+            // a key is published only once its item was logged, so a key returned to any sender is never lost
+            if (!this.log.append(key, payload)) {
+                item.assignKey(0);
+                return 0; // the log is full
+            }
+
+            queue(hashKey, key);
+            this.acceptedCount.incrementAndGet();
+            return key;
+        }
+    }
+
+    /**
+     * Saves the queued items, one batch at a time, until the log is empty.
+     */
+    public synchronized void flush() {
+        long dropped = this.droppedCount.get();
+        try {
+            WriteBehindLog.Batch batch = this.log.read(this.batchSize);
+            while (!batch.isEmpty()) {
+                saveBatch(batch);
+                this.log.commit(batch);
+                this.checkSaved = false;
+                synchronized (this.offers) { // after any offer of these records published their keys
+                    for (WriteBehindLog.Record record : batch.getRecords()) {
+                        dequeue(record.getKey());
+                    }
+                }
+                batch = this.log.read(this.batchSize);
+            }
+        } catch (RuntimeException ex) {
+            Log.error(ex.getMessage(), ex); // retried with the next flush
+        }
+
+        if (this.droppedCount.get() > dropped) {
+            Log.warn(String.format(DropSummary, this.droppedCount.get() - dropped,
+                    this.itemType.getSimpleName(), this.droppedCount.get()));
+        }
+    }
+
+    private void saveBatch(WriteBehindLog.Batch batch) {
+        List<WriteBehindLog.Record> records = unsaved(batch.getRecords());
+        try {
+            this.transaction.executeWithoutResult(status -> BatchWriter.saveAll(decode(records)));
+            this.flushedCount.addAndGet(records.size());
+        } catch (RuntimeException ex) {
+            if (isUnavailable(ex)) {
+                throw ex;
+            }
+
+            Log.warn(String.format(RetryReport, records.size(), ex.getMessage()));
+            this.checkSaved = true; // until the batch is committed, since some of its items will be saved
+            for (WriteBehindLog.Record record : records) {
+                saveRecord(record);
+            }
+        }
+    }
+
+    private void saveRecord(WriteBehindLog.Record record) {
+        try {
+            this.transaction.executeWithoutResult(status -> BatchWriter.saveAll(decode(Arrays.asList(record))));
+            this.flushedCount.incrementAndGet();
+        } catch (RuntimeException ex) {
+            if (isUnavailable(ex)) {
+                throw ex;
+            }
+
+            this.droppedCount.incrementAndGet();
+            Log.error(String.format(DropReport, record.getKey(),
+                    new String(record.getPayload(), StandardCharsets.UTF_8)), ex);
+        }
+    }
+
+    private static boolean isUnavailable(RuntimeException ex) {
+        return ex instanceof TransientDataAccessException
+                || ex instanceof RecoverableDataAccessException
+                || ex instanceof DataAccessResourceFailureException
+                || ex instanceof CannotCreateTransactionException;
+    }
+
+    /**
+     * Returns the records not yet saved. Only a replayed batch, or a batch whose retry was interrupted, might have
+     * been saved (partly) already.
+     */
+    private List<WriteBehindLog.Record> unsaved(List<WriteBehindLog.Record> records) {
+        if (!this.checkSaved) {
+            return records;
+        }
+
+        ArrayList<Long> keys = new ArrayList<>();
+        for (WriteBehindLog.Record record : records) {
+            keys.add(record.getKey());
+        }
+
+        HashSet<Long> saved = new HashSet<>();
+        CrudRepository<SurrogatedItem, Long> store = Surrogated.getStore(this.itemType);
+        this.transaction.executeWithoutResult(status -> {
+            for (SurrogatedItem item : store.findAllById(keys)) {
+                saved.add(item.getKey());
+            }
+        });
+
+        ArrayList<WriteBehindLog.Record> results = new ArrayList<>();
+        for (WriteBehindLog.Record record : records) {
+            if (!saved.contains(record.getKey())) {
+                results.add(record);
+            }
+        }
+        return results;
+    }
+
+    private void queue(long hashKey, long key) {
+        this.queuedKeys.put(hashKey, key);
+        this.queuedHashes.put(key, hashKey);
+    }
+
+    private void dequeue(long key) {
+        Long hashKey = this.queuedHashes.remove(key);
+        if (hashKey != null) {
+            this.queuedKeys.remove(hashKey, key);
+        }
+    }
+
+    private List<ItemType> decode(List<WriteBehindLog.Record> records) {
+        ArrayList<ItemType> results = new ArrayList<>(records.size());
+        for (WriteBehindLog.Record record : records) {
+            results.add(decode(record));
+        }
+        return results;
+    }
+
+    private ItemType decode(WriteBehindLog.Record record) {
+        ItemType result = this.decoder.apply(new String(record.getPayload(), StandardCharsets.UTF_8));
+        result.assignKey(record.getKey());
+        return result;
+    }
+
+    /**
+     * A count of the items queued but not yet flushed.
+     *
+     * @return a count
+     */
+    public int queuedCount() {
+        return this.queuedKeys.size();
+    }
+
+    /**
+     * A count of the items accepted.
+     *
+     * @return a count
+     */
+    public long acceptedCount() {
+        return this.acceptedCount.get();
+    }
+
+    /**
+     * A count of the items saved by flushes.
+     *
+     * @return a count
+     */
+    public long flushedCount() {
+        return this.flushedCount.get();
+    }
+
+    /**
+     * A count of the items dropped because they could not be saved.
+     *
+     * @return a count
+     */
+    public long droppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * Logs a description of this queue, warning of any dropped items.
+     *
+     * @param log a logger
+     */
+    public void describe(Logger log) {
+        String description = String.format(Description, this.itemType.getSimpleName(),
+                queuedCount(), acceptedCount(), flushedCount(), droppedCount());
+        if (droppedCount() > 0) {
+            log.warn(description);
+        } else {
+            log.info(description);
+        }
+    }
+
+    /**
+     * Stops flushing periodically, flushes the queued items, describes this queue, and closes the log.
+     */
+    @Override
+    public void close() {
+        this.flusher.shutdown();
+        try {
+            this.flusher.awaitTermination(this.interval * 10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+        describe(Log);
+        this.log.close();
+    }
+
+    static final String ReplayReport = "replaying %d logged %s items";
+    static final String RetryReport = "saving %d items one at a time after a failed batch: %s";
+    static final String DropReport = "dropped item %d that could not be saved: %s";
+    static final String DropSummary = "dropped %d accepted %s items in a flush, %d in all";
+    static final String Description = "write-behind %s queued = %d, accepted = %d, flushed = %d, dropped = %d";
+
+} // WriteBehindQueue
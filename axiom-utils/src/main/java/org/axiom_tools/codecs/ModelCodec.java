@@ -14,12 +14,17 @@ package org.axiom_tools.codecs;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
 import javax.xml.bind.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.lang.StringUtils;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
@@ -31,6 +36,7 @@ import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
  * <ul>
  * <li>encodes a model to JSON or XML</li>
  * <li>decodes a model from JSON or XML</li>
+ * <li>writes a stream of models as JSON lines (NDJSON)</li>
  * </ul>
  *
  * <h4>Client Responsibilities:</h4>
@@ -45,6 +51,7 @@ public class ModelCodec<ModelType> {
     private static final Logger Log = LoggerFactory.getLogger(ModelCodec.class);
     private static final String XML_ENCODING = "UTF-8";
     private static final String Empty = "";
+    private static final char NewLine = '\n';
 
     private Class<ModelType> entityClass;
     private ModelType entity;
@@ -143,6 +150,31 @@ public class ModelCodec<ModelType> {
         }
     }
 
+    /**
+     * Writes some models as JSON lines (NDJSON), one compact JSON object per line, as each model arrives.
+     * @param <ModelType> a model type
+     * @param models some models
+     * @param stream an output stream, left open
+     * @return the count of models written
+     * @throws IOException if raised while writing
+     */
+    public static <ModelType> long writeJSONLines(Stream<ModelType> models, OutputStream stream) throws IOException {
+        ObjectMapper mapper = buildMapper();
+        mapper.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        mapper.disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        long result = 0;
+        try (JsonGenerator generator = mapper.getFactory().createGenerator(stream)) {
+            generator.setRootValueSeparator(null); // each line starts with its value, not a space
+            Iterator<ModelType> iterator = models.iterator();
+            while (iterator.hasNext()) {
+                mapper.writeValue(generator, iterator.next());
+                generator.writeRaw(NewLine);
+                result++;
+            }
+        }
+        return result;
+    }
+
     /**
      * Returns a new JAXB context.
      * @return a JAXBContext
@@ -156,9 +188,17 @@ public class ModelCodec<ModelType> {
      * Returns a new JSON object mapper.
      */
     private ObjectMapper buildObjectMapper() {
+        ObjectMapper result = buildMapper();
+        result.enable(SerializationFeature.INDENT_OUTPUT);
+        return result;
+    }
+
+    /**
+     * Returns a new compact JSON object mapper.
+     */
+    private static ObjectMapper buildMapper() {
         ObjectMapper result = new ObjectMapper();
         result.setAnnotationIntrospector(new JaxbAnnotationIntrospector(result.getTypeFactory()));
-        result.enable(SerializationFeature.INDENT_OUTPUT);
         return result;
     }
 
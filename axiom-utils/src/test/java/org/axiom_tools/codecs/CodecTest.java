@@ -12,7 +12,9 @@
  */
 package org.axiom_tools.codecs;
 
+import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
+import java.util.stream.Stream;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -60,6 +62,22 @@ public class CodecTest {
         result.reportDifferences(vm);
     }
 
+    @Test
+    public void sampleLines() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        long count = ModelCodec.writeJSONLines(Stream.of(
+                ValueMap.withID("1001"), ValueMap.withID("1002"), ValueMap.withID("1003")), stream);
+        assertTrue(count == 3);
+
+        String[] lines = stream.toString("UTF-8").split("\n");
+        assertTrue(lines.length == 3);
+        for (int index = 0; index < lines.length; index++) {
+            String id = "100" + (index + 1);
+            assertEquals("{\"id\":\"" + id + "\",\"namedValues\":{\"id\":\"" + id + "\"}}", lines[index]);
+        }
+        getLogger().info(Indent + stream.toString("UTF-8"));
+    }
+
     private Logger getLogger() {
         return LoggerFactory.getLogger(getClass());
     }